@@ -0,0 +1,79 @@
+package cz.trinera.anakon.dtd_executor;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Jar with trivial process classes for the ProcessFactory benchmarks.
+ * <p>
+ * The classes are compiled at runtime so that they are not on the benchmark's classpath, otherwise the class loader
+ * of the jar would delegate to the application class loader and the class would never be loaded from the jar.
+ */
+final class BenchmarkProcessJar {
+
+    static final String DIRECT_PROCESS = "bench.DirectProcess";
+    static final String DUCK_TYPED_PROCESS = "bench.DuckTypedProcess";
+
+    private static final String RUN_SIGNATURE = "public void run(java.util.UUID id, String type, String inputData, java.io.File logFile,"
+            + " java.io.File outputDir, java.io.File configFile, java.util.concurrent.atomic.AtomicBoolean cancelRequested)";
+
+    private BenchmarkProcessJar() {
+    }
+
+    /**
+     * @return jar with {@value #DIRECT_PROCESS} (implements Process) and {@value #DUCK_TYPED_PROCESS} (just has run(...))
+     */
+    static File create() throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("The benchmarks must run on a JDK, not a JRE");
+        }
+        Path dir = Files.createTempDirectory("dtd-bench");
+        Path sources = Files.createDirectories(dir.resolve("src/bench"));
+        Path classes = Files.createDirectories(dir.resolve("classes"));
+        Files.write(sources.resolve("DirectProcess.java"), ("package bench;\n"
+                + "public class DirectProcess implements cz.trinera.anakon.dtd_executor.dtd_definitions.Process {\n"
+                + "    public static long runs;\n"
+                + "    " + RUN_SIGNATURE + " { runs++; }\n"
+                + "}\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(sources.resolve("DuckTypedProcess.java"), ("package bench;\n"
+                + "public class DuckTypedProcess {\n"
+                + "    public static long runs;\n"
+                + "    " + RUN_SIGNATURE + " { runs++; }\n"
+                + "}\n").getBytes(StandardCharsets.UTF_8));
+        int result = compiler.run(null, null, null,
+                "-classpath", System.getProperty("java.class.path"),
+                "-d", classes.toString(),
+                sources.resolve("DirectProcess.java").toString(),
+                sources.resolve("DuckTypedProcess.java").toString());
+        if (result != 0) {
+            throw new IllegalStateException("Failed to compile the benchmark processes");
+        }
+
+        File jar = dir.resolve("bench-processes.jar").toFile();
+        List<Path> classFiles;
+        try (Stream<Path> files = Files.walk(classes)) {
+            classFiles = files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            for (Path classFile : classFiles) {
+                out.putNextEntry(new JarEntry(classes.relativize(classFile).toString().replace(File.separatorChar, '/')));
+                Files.copy(classFile, (OutputStream) out);
+                out.closeEntry();
+            }
+        }
+        jar.deleteOnExit();
+        return jar;
+    }
+}
@@ -0,0 +1,52 @@
+package cz.trinera.anakon.dtd_executor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the dynamic configuration (dynamic-config-sample.yaml), from the file and from the bytes already read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DynamicConfigBenchmark {
+
+    private File file;
+    private byte[] content;
+
+    @Setup
+    public void readSample() throws Exception {
+        try (InputStream in = DynamicConfigBenchmark.class.getResourceAsStream("/dynamic-config-sample.yaml")) {
+            content = in.readAllBytes();
+        }
+        file = File.createTempFile("dynamic-config", ".yaml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+    }
+
+    @Benchmark
+    public DynamicConfig create() throws Exception {
+        return DynamicConfig.create(file);
+    }
+
+    @Benchmark
+    public DynamicConfig parse() throws Exception {
+        return DynamicConfig.parse(content);
+    }
+}
@@ -0,0 +1,77 @@
+package cz.trinera.anakon.dtd_executor;
+
+import cz.trinera.anakon.dtd_executor.dtd_definitions.Process;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Dispatch of Process.run(...) of a loaded process: a class implementing Process (direct call) vs. a duck typed class
+ * with just the method run(...) (method handle), both through the wrapper returned by ProcessFactory.load(...).
+ * The baselines are a plain interface call and Method.invoke(...).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProcessDispatchBenchmark {
+
+    private static final UUID ID = UUID.randomUUID();
+    private static final AtomicBoolean NOT_CANCELED = new AtomicBoolean(false);
+
+    private Process direct;
+    private Process duckTyped;
+    private Process plainInstance;
+    private Object duckTypedInstance;
+    private Method duckTypedRunMethod;
+
+    @Setup
+    public void load() throws Exception {
+        File jar = BenchmarkProcessJar.create();
+        direct = ProcessFactory.load(jar, BenchmarkProcessJar.DIRECT_PROCESS, 10, TimeUnit.HOURS.toMillis(1));
+        duckTyped = ProcessFactory.load(jar, BenchmarkProcessJar.DUCK_TYPED_PROCESS, 10, TimeUnit.HOURS.toMillis(1));
+
+        ClassLoader loader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, Process.class.getClassLoader());
+        plainInstance = (Process) loader.loadClass(BenchmarkProcessJar.DIRECT_PROCESS).getDeclaredConstructor().newInstance();
+        Class<?> duckTypedClass = loader.loadClass(BenchmarkProcessJar.DUCK_TYPED_PROCESS);
+        duckTypedInstance = duckTypedClass.getDeclaredConstructor().newInstance();
+        duckTypedRunMethod = duckTypedClass.getMethod("run", UUID.class, String.class, String.class, File.class, File.class, File.class, AtomicBoolean.class);
+    }
+
+    @Benchmark
+    public void factoryDirect() throws Exception {
+        direct.run(ID, "bench", "{}", null, null, null, NOT_CANCELED);
+    }
+
+    @Benchmark
+    public void factoryMethodHandle() throws Exception {
+        duckTyped.run(ID, "bench", "{}", null, null, null, NOT_CANCELED);
+    }
+
+    @Benchmark
+    public void baselineInterfaceCall() throws Exception {
+        plainInstance.run(ID, "bench", "{}", null, null, null, NOT_CANCELED);
+    }
+
+    @Benchmark
+    public Object baselineReflection() throws Exception {
+        return duckTypedRunMethod.invoke(duckTypedInstance, ID, "bench", "{}", null, null, null, NOT_CANCELED);
+    }
+}
@@ -0,0 +1,73 @@
+package cz.trinera.anakon.dtd_executor;
+
+import cz.trinera.anakon.dtd_executor.dtd_definitions.Process;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ProcessFactory.load(...) of a process from its jar: cold (new class loader, class loading and run method lookup)
+ * and cached (class loader and class from the cache).
+ * <p>
+ * The loaded process is run (it does nothing) to release its class loader lease, as the executor does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProcessFactoryBenchmark {
+
+    private static final UUID ID = UUID.randomUUID();
+    private static final AtomicBoolean NOT_CANCELED = new AtomicBoolean(false);
+
+    private File jar;
+
+    @Setup(Level.Trial)
+    public void createJar() throws Exception {
+        jar = BenchmarkProcessJar.create();
+    }
+
+    @State(Scope.Thread)
+    public static class ColdCache {
+        @Setup(Level.Invocation)
+        public void clear() {
+            ProcessFactory.clearClassCache();
+        }
+    }
+
+    @Benchmark
+    public Process loadCold(ColdCache coldCache) throws Exception {
+        return loadAndRun(BenchmarkProcessJar.DIRECT_PROCESS);
+    }
+
+    @Benchmark
+    public Process loadCached() throws Exception {
+        return loadAndRun(BenchmarkProcessJar.DIRECT_PROCESS);
+    }
+
+    @Benchmark
+    public Process loadCachedDuckTyped() throws Exception {
+        return loadAndRun(BenchmarkProcessJar.DUCK_TYPED_PROCESS);
+    }
+
+    private Process loadAndRun(String className) throws Exception {
+        Process process = ProcessFactory.load(jar, className, 10, TimeUnit.HOURS.toMillis(1));
+        process.run(ID, "bench", "{}", null, null, null, NOT_CANCELED);
+        return process;
+    }
+}
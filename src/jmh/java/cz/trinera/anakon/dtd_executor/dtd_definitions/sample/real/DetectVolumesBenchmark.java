@@ -0,0 +1,79 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions.sample.real;
+
+import cz.trinera.anakon.dtd_executor.dtd_definitions.sample.real.DetectVolumesWithLowIssueCountProcess.KrameriusItemsSearchResult;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.sample.real.DetectVolumesWithLowIssueCountProcess.KrameriusVolumesSearchResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DetectVolumesWithLowIssueCountProcess on recorded Kramerius search responses: deserialization of a page of volumes
+ * (100 docs) and of the issue count of a volume, and writing of a CSV row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DetectVolumesBenchmark {
+
+    private final DetectVolumesWithLowIssueCountProcess process = new DetectVolumesWithLowIssueCountProcess();
+    private final BufferedWriter log = new BufferedWriter(Writer.nullWriter());
+    private final DetectVolumesWithLowIssueCountProcess.Params params = new DetectVolumesWithLowIssueCountProcess.Params();
+    private String volumesResponse;
+    private String itemsResponse;
+    private KrameriusVolumesSearchResult.KrameriusResponse.Docs volume;
+    private File csvFile;
+
+    @Setup
+    public void readResponses() throws Exception {
+        volumesResponse = readResource("/responses/kramerius-volumes-search.json");
+        itemsResponse = readResource("/responses/kramerius-items-search.json");
+        volume = deserializeVolumes().response.docs.get(0);
+        params.dig_lib_code = "mzk";
+        csvFile = File.createTempFile("export", ".csv");
+        csvFile.deleteOnExit();
+    }
+
+    @Setup(Level.Iteration)
+    public void truncateCsv() throws Exception {
+        process.writeCsvHeader(csvFile);
+    }
+
+    @Benchmark
+    public KrameriusVolumesSearchResult deserializeVolumes() throws Exception {
+        return DetectVolumesWithLowIssueCountProcess.objectMapper.readValue(volumesResponse, KrameriusVolumesSearchResult.class);
+    }
+
+    @Benchmark
+    public KrameriusItemsSearchResult deserializeItems() throws Exception {
+        return DetectVolumesWithLowIssueCountProcess.objectMapper.readValue(itemsResponse, KrameriusItemsSearchResult.class);
+    }
+
+    @Benchmark
+    public void writeCsvRow() throws Exception {
+        process.writeSearchResult(csvFile, log, volume, 1, params);
+    }
+
+    private static String readResource(String name) throws Exception {
+        try (InputStream in = DetectVolumesBenchmark.class.getResourceAsStream(name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
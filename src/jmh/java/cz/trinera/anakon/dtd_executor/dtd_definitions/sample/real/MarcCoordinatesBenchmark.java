@@ -0,0 +1,92 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions.sample.real;
+
+import cz.trinera.anakon.dtd_executor.dtd_definitions.sample.real.MarcCoordinatesConsistencyCheckProcess.AnakonCoordsSearchResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MarcCoordinatesConsistencyCheckProcess on a recorded page (100 records) of the Anakon search response:
+ * deserialization, checking of the coordinates (parsing of 255.c and toCode() compared with 034) and writing of a CSV row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MarcCoordinatesBenchmark {
+
+    private final MarcCoordinatesConsistencyCheckProcess process = new MarcCoordinatesConsistencyCheckProcess();
+    private final BufferedWriter log = new BufferedWriter(Writer.nullWriter());
+    private String response;
+    private AnakonCoordsSearchResult page;
+    private AnakonCoordsSearchResult.AnakonItems.Item item;
+    private File csvFile;
+
+    @Setup
+    public void readResponse() throws Exception {
+        try (InputStream in = MarcCoordinatesBenchmark.class.getResourceAsStream("/responses/anakon-coordinates-search.json")) {
+            response = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        page = MarcCoordinatesConsistencyCheckProcess.objectMapper.readValue(response, AnakonCoordsSearchResult.class);
+        item = page.hits.hits.get(0);
+        csvFile = File.createTempFile("export", ".csv");
+        csvFile.deleteOnExit();
+    }
+
+    @Setup(Level.Iteration)
+    public void truncateCsv() throws Exception {
+        process.writeCsvHeader(csvFile);
+    }
+
+    @Benchmark
+    public AnakonCoordsSearchResult deserializeResponse() throws Exception {
+        return MarcCoordinatesConsistencyCheckProcess.objectMapper.readValue(response, AnakonCoordsSearchResult.class);
+    }
+
+    /**
+     * Same loop as MarcCoordinatesConsistencyCheckProcess.process(...) over one page, without writing the CSV.
+     */
+    @Benchmark
+    public void checkCoordinates(Blackhole blackhole) {
+        for (AnakonCoordsSearchResult.AnakonItems.Item item : page.hits.hits) {
+            String errMessage = MarcCoordinatesConsistencyCheckProcess.checkKeysSize(item._source);
+            if (errMessage != null) {
+                blackhole.consume(errMessage);
+                continue;
+            }
+            for (int i = 0; i < item._source.df_255.size(); i++) {
+                MarcCoordinatesConsistencyCheckProcess.ItemProcessor processor = new MarcCoordinatesConsistencyCheckProcess.ItemProcessor();
+                blackhole.consume(processor.process(item._source, i));
+                blackhole.consume(processor.getErrorMessage(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public String parseCoordinateToCode() {
+        return new MarcCoordinatesConsistencyCheckProcess.Coords().parse("E 15°33'00\"").toCode();
+    }
+
+    @Benchmark
+    public void writeCsvRow() throws Exception {
+        process.writeSearchResult(csvFile, log, item, "Index 0: Coordinates mismatch on df_034 e", 0);
+    }
+}
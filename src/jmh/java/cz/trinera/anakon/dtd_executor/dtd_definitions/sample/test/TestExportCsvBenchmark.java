@@ -0,0 +1,41 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions.sample.test;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing of the CSV export (header and 10 rows) of the sample process TestExportCsv.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TestExportCsvBenchmark {
+
+    private final TestExportCsv process = new TestExportCsv();
+    private File csvFile;
+
+    @Setup
+    public void createFile() throws Exception {
+        csvFile = File.createTempFile("export", ".csv");
+        csvFile.deleteOnExit();
+    }
+
+    @Benchmark
+    public void writeCsv() throws Exception {
+        process.fillCsvFileWithRandomData(csvFile, true);
+    }
+}
@@ -2,12 +2,14 @@ package cz.trinera.anakon.dtd_executor;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.file.Files;
 import java.util.Properties;
+import java.util.UUID;
 
 public class Config {
 
-    public static final Integer EXECUTOR_VERSION = 6; // Increment this version every time the executor changes significantly
+    public static final Integer EXECUTOR_VERSION = 8; // Increment this version every time the executor changes significantly
 
     private static Config instance;
 
@@ -19,6 +21,17 @@ public class Config {
     private final String dbPassword;
     private final String dynamicConfigFile;
     private final String processesDefinitionDir;
+    private final int dbPoolMaxSize;
+    private final int dbPoolMaxIdleSeconds;
+    private final int dbPoolMaxLifetimeSeconds;
+    private final int dbPoolBorrowTimeoutSeconds;
+    private final String executorId;
+    private final int metricsPort;
+    private final String logFile;
+    private final int logFileMaxSizeMb;
+    private final int logFileMaxBackups;
+    private final int logQueueCapacity;
+    private final boolean logQueueBlockWhenFull;
 
     public static void init(File propertiesFile) throws IOException {
         instance = new Config(propertiesFile);
@@ -42,6 +55,38 @@ public class Config {
         dbPassword = getNonemptyProperty(properties, "db.password");
         dynamicConfigFile = getNonemptyProperty(properties, "dynamic.config.file");
         processesDefinitionDir = getNonemptyProperty(properties, "processes.definition.dir");
+        dbPoolMaxSize = getIntProperty(properties, "db.pool.max.size", 4);
+        dbPoolMaxIdleSeconds = getIntProperty(properties, "db.pool.max.idle.seconds", 300);
+        dbPoolMaxLifetimeSeconds = getIntProperty(properties, "db.pool.max.lifetime.seconds", 1800);
+        dbPoolBorrowTimeoutSeconds = getIntProperty(properties, "db.pool.borrow.timeout.seconds", 30);
+        metricsPort = getIntProperty(properties, "metrics.port", 0);
+        String configuredLogFile = properties.getProperty("log.file");
+        logFile = configuredLogFile == null || configuredLogFile.trim().isEmpty() ? null : configuredLogFile.trim();
+        logFileMaxSizeMb = getIntProperty(properties, "log.file.max.size.mb", 10);
+        logFileMaxBackups = getIntProperty(properties, "log.file.max.backups", 5);
+        logQueueCapacity = getIntProperty(properties, "log.queue.capacity", 10000);
+        String logQueueFullPolicy = properties.getProperty("log.queue.full.policy", "drop").trim();
+        if (!logQueueFullPolicy.equals("drop") && !logQueueFullPolicy.equals("block")) {
+            throw new IllegalArgumentException("Invalid property: log.queue.full.policy=" + logQueueFullPolicy + " (expected drop or block)");
+        }
+        logQueueBlockWhenFull = logQueueFullPolicy.equals("block");
+        String configuredExecutorId = properties.getProperty("executor.id");
+        executorId = configuredExecutorId == null || configuredExecutorId.trim().isEmpty()
+                ? generateExecutorId()
+                : configuredExecutorId.trim();
+    }
+
+    /**
+     * Unique id of this executor instance, hostname (container id in Docker) with a random suffix.
+     */
+    private static String generateExecutorId() {
+        String hostname;
+        try {
+            hostname = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            hostname = "executor";
+        }
+        return hostname + "-" + UUID.randomUUID().toString().substring(0, 8);
     }
 
 
@@ -60,6 +105,18 @@ public class Config {
         return value;
     }
 
+    private int getIntProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer property: " + key + "=" + value);
+        }
+    }
+
     public String getProcessExecutionDir() {
         return processExecutionDir;
     }
@@ -92,10 +149,64 @@ public class Config {
         return processesDefinitionDir;
     }
 
+    public int getDbPoolMaxSize() {
+        return dbPoolMaxSize;
+    }
+
+    public int getDbPoolMaxIdleSeconds() {
+        return dbPoolMaxIdleSeconds;
+    }
+
+    public int getDbPoolMaxLifetimeSeconds() {
+        return dbPoolMaxLifetimeSeconds;
+    }
+
+    public int getDbPoolBorrowTimeoutSeconds() {
+        return dbPoolBorrowTimeoutSeconds;
+    }
+
+    public String getExecutorId() {
+        return executorId;
+    }
+
+    /**
+     * Port of the Prometheus metrics endpoint (/metrics), 0 if disabled.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Log file (rotated by size), null for the standard output.
+     */
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public int getLogFileMaxSizeMb() {
+        return logFileMaxSizeMb;
+    }
+
+    public int getLogFileMaxBackups() {
+        return logFileMaxBackups;
+    }
+
+    public int getLogQueueCapacity() {
+        return logQueueCapacity;
+    }
+
+    /**
+     * True if logging should wait for a full queue, false if messages (below ERROR) should be dropped.
+     */
+    public boolean isLogQueueBlockWhenFull() {
+        return logQueueBlockWhenFull;
+    }
+
     @Override
     public String toString() {
         return "Config{" +
                 "executorVersion=" + EXECUTOR_VERSION +
+                ", executorId='" + executorId + '\'' +
                 ", dbUser='" + dbUser + '\'' +
                 ", dbDatabase='" + dbDatabase + '\'' +
                 ", dbPort=" + dbPort +
@@ -103,6 +214,16 @@ public class Config {
                 ", processExecutionDir='" + processExecutionDir + '\'' +
                 ", dynamicConfigFile='" + dynamicConfigFile + '\'' +
                 ", processesDefinitionDir='" + processesDefinitionDir + '\'' +
+                ", dbPoolMaxSize=" + dbPoolMaxSize +
+                ", dbPoolMaxIdleSeconds=" + dbPoolMaxIdleSeconds +
+                ", dbPoolMaxLifetimeSeconds=" + dbPoolMaxLifetimeSeconds +
+                ", dbPoolBorrowTimeoutSeconds=" + dbPoolBorrowTimeoutSeconds +
+                ", metricsPort=" + metricsPort +
+                ", logFile='" + logFile + '\'' +
+                ", logFileMaxSizeMb=" + logFileMaxSizeMb +
+                ", logFileMaxBackups=" + logFileMaxBackups +
+                ", logQueueCapacity=" + logQueueCapacity +
+                ", logQueueBlockWhenFull=" + logQueueBlockWhenFull +
                 '}';
     }
 
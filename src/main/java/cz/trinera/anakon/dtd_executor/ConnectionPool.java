@@ -0,0 +1,374 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small bounded pool of JDBC connections to the Anakon database.
+ * <p>
+ * Connections are validated on borrow (unless used very recently), evicted after being idle for too long
+ * and closed after reaching their max lifetime. Calling {@link Connection#close()} on a borrowed connection
+ * returns it to the pool.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private static final long VALIDATION_BYPASS_WINDOW_MS = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final long HOUSEKEEPING_INTERVAL_SECONDS = 30;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long maxIdleMs;
+    private final long maxLifetimeMs;
+    private final long borrowTimeoutMs;
+
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed = false;
+
+    //metrics
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong closedCount = new AtomicLong();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowNanosTotal = new AtomicLong();
+    private final AtomicLong borrowNanosMax = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private volatile double creationRatePerMinute = 0.0;
+    private long createdAtLastHousekeeping = 0;
+    private long lastHousekeepingNanos = System.nanoTime();
+
+    public ConnectionPool(Config config) {
+        this.url = "jdbc:postgresql://" + config.getDbHost() + ":" + config.getDbPort() + "/" + config.getDbDatabase();
+        this.user = config.getDbUser();
+        this.password = config.getDbPassword();
+        this.maxSize = config.getDbPoolMaxSize();
+        this.maxIdleMs = config.getDbPoolMaxIdleSeconds() * 1000L;
+        this.maxLifetimeMs = config.getDbPoolMaxLifetimeSeconds() * 1000L;
+        this.borrowTimeoutMs = config.getDbPoolBorrowTimeoutSeconds() * 1000L;
+        this.permits = new Semaphore(maxSize, true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dtd-db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleAtFixedRate(this::housekeeping, HOUSEKEEPING_INTERVAL_SECONDS, HOUSEKEEPING_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool. The connection must be closed to be returned back to the pool.
+     *
+     * @return connection in auto-commit mode
+     * @throws SQLException if no connection is available within the borrow timeout or it cannot be opened
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                borrowTimeouts.incrementAndGet();
+                throw new SQLTransientConnectionException("Timeout waiting for database connection (" + borrowTimeoutMs + " ms), pool: " + getStats());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for database connection", e);
+        }
+        try {
+            PooledConnection pooled = takeValidIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(createConnection());
+            }
+            active.incrementAndGet();
+            recordBorrow(System.nanoTime() - start);
+            return pooled.borrow();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a connection that is not managed by the pool, used for long-lived sessions (e.g. LISTEN).
+     * The caller is responsible for closing it.
+     */
+    public Connection openDedicatedConnection() throws SQLException {
+        return createConnection();
+    }
+
+    private Connection createConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        createdCount.incrementAndGet();
+        Logger.debug(() -> "Opened new database connection to " + url);
+        return connection;
+    }
+
+    private PooledConnection takeValidIdle() {
+        while (true) {
+            PooledConnection pooled;
+            synchronized (idle) {
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (pooled.isExpired(now)) {
+                pooled.closePhysically();
+                continue;
+            }
+            if (now - pooled.lastReturned > VALIDATION_BYPASS_WINDOW_MS && !pooled.isValid()) {
+                validationFailures.incrementAndGet();
+                pooled.closePhysically();
+                continue;
+            }
+            return pooled;
+        }
+    }
+
+    private void release(PooledConnection pooled, boolean broken) {
+        active.decrementAndGet();
+        try {
+            if (closed || broken || pooled.isExpired(System.currentTimeMillis())) {
+                pooled.closePhysically();
+            } else {
+                pooled.lastReturned = System.currentTimeMillis();
+                synchronized (idle) {
+                    idle.addFirst(pooled); //LIFO, so that surplus connections stay idle and get evicted
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void recordBorrow(long nanos) {
+        borrowCount.incrementAndGet();
+        borrowNanosTotal.addAndGet(nanos);
+        borrowNanosMax.accumulateAndGet(nanos, Math::max);
+    }
+
+    private void housekeeping() {
+        List<PooledConnection> toClose = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (idle) {
+            Iterator<PooledConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                PooledConnection pooled = it.next();
+                if (pooled.isExpired(now) || now - pooled.lastReturned > maxIdleMs) {
+                    it.remove();
+                    toClose.add(pooled);
+                }
+            }
+        }
+        toClose.forEach(PooledConnection::closePhysically);
+
+        long nowNanos = System.nanoTime();
+        long created = createdCount.get();
+        double minutes = (nowNanos - lastHousekeepingNanos) / 60_000_000_000.0;
+        if (minutes > 0) {
+            creationRatePerMinute = (created - createdAtLastHousekeeping) / minutes;
+        }
+        createdAtLastHousekeeping = created;
+        lastHousekeepingNanos = nowNanos;
+    }
+
+    public Stats getStats() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        long borrows = borrowCount.get();
+        return new Stats(
+                maxSize,
+                active.get(),
+                idleCount,
+                createdCount.get(),
+                closedCount.get(),
+                borrows,
+                borrows == 0 ? 0.0 : borrowNanosTotal.get() / (double) borrows / 1_000_000.0,
+                borrowNanosMax.get() / 1_000_000.0,
+                borrowTimeouts.get(),
+                validationFailures.get(),
+                creationRatePerMinute
+        );
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        List<PooledConnection> toClose;
+        synchronized (idle) {
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+        }
+        toClose.forEach(PooledConnection::closePhysically);
+    }
+
+    public static final class Stats {
+        public final int maxSize;
+        public final int active;
+        public final int idle;
+        public final long created;
+        public final long closed;
+        public final long borrows;
+        public final double borrowAvgMs;
+        public final double borrowMaxMs;
+        public final long borrowTimeouts;
+        public final long validationFailures;
+        public final double creationRatePerMinute;
+
+        Stats(int maxSize, int active, int idle, long created, long closed, long borrows, double borrowAvgMs, double borrowMaxMs,
+              long borrowTimeouts, long validationFailures, double creationRatePerMinute) {
+            this.maxSize = maxSize;
+            this.active = active;
+            this.idle = idle;
+            this.created = created;
+            this.closed = closed;
+            this.borrows = borrows;
+            this.borrowAvgMs = borrowAvgMs;
+            this.borrowMaxMs = borrowMaxMs;
+            this.borrowTimeouts = borrowTimeouts;
+            this.validationFailures = validationFailures;
+            this.creationRatePerMinute = creationRatePerMinute;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "active=" + active +
+                    ", idle=" + idle +
+                    ", maxSize=" + maxSize +
+                    ", created=" + created +
+                    ", closed=" + closed +
+                    ", borrows=" + borrows +
+                    String.format(", borrowAvgMs=%.3f, borrowMaxMs=%.3f", borrowAvgMs, borrowMaxMs) +
+                    ", borrowTimeouts=" + borrowTimeouts +
+                    ", validationFailures=" + validationFailures +
+                    String.format(", createdPerMinute=%.2f", creationRatePerMinute) +
+                    '}';
+        }
+    }
+
+    /**
+     * Physical connection held by the pool. Each borrow hands out a new proxy, so that a connection closed
+     * (returned) by one user cannot be used by it again after being borrowed by someone else.
+     */
+    private final class PooledConnection {
+        final Connection connection;
+        final long createdAt = System.currentTimeMillis();
+        volatile long lastReturned = createdAt;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        boolean isExpired(long now) {
+            return now - createdAt > maxLifetimeMs;
+        }
+
+        boolean isValid() {
+            try {
+                return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void closePhysically() {
+            closedCount.incrementAndGet();
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+        }
+
+        Connection borrow() {
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new Handler(this));
+        }
+    }
+
+    private final class Handler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean returned = false;
+
+        Handler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        release(pooled, !resetState());
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || pooled.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled(" + pooled.connection + ")";
+                default:
+                    if (returned) {
+                        throw new SQLException("Connection already returned to the pool");
+                    }
+                    try {
+                        return method.invoke(pooled.connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+
+        /**
+         * Rolls back unfinished transaction and restores auto-commit.
+         *
+         * @return false if the connection is broken and must not be reused
+         */
+        private boolean resetState() {
+            try {
+                if (pooled.connection.isClosed()) {
+                    return false;
+                }
+                if (!pooled.connection.getAutoCommit()) {
+                    pooled.connection.rollback();
+                    pooled.connection.setAutoCommit(true);
+                }
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+    }
+}
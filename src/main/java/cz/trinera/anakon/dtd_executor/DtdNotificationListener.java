@@ -0,0 +1,97 @@
+package cz.trinera.anakon.dtd_executor;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * Holds a dedicated database connection that LISTENs on a notification channel.
+ * The channel is notified by triggers on tables dtd and dtd_kill_request (see sql/dtd_notify_triggers.sql),
+ * so the executor can wake up as soon as a new DTD is created or a kill request appears.
+ */
+public class DtdNotificationListener implements AutoCloseable {
+
+    public static final String PAYLOAD_CREATED_PREFIX = "created:";
+    public static final String PAYLOAD_KILL_PREFIX = "kill:";
+
+    private static final Pattern CHANNEL_NAME = Pattern.compile("[a-z_][a-z0-9_]*");
+
+    private final String channel;
+    private final Callable<Connection> connectionFactory;
+    private Connection connection;
+
+    public DtdNotificationListener(String channel, Callable<Connection> connectionFactory) {
+        if (channel == null || !CHANNEL_NAME.matcher(channel).matches()) {
+            throw new IllegalArgumentException("Invalid notification channel name: " + channel);
+        }
+        this.channel = channel;
+        this.connectionFactory = connectionFactory;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * Blocks until a notification arrives or the timeout elapses.
+     * If the connection cannot be (re)established, it just sleeps for the timeout, so the caller falls back to polling.
+     *
+     * @param timeoutMs maximal time to wait
+     * @return payloads of received notifications, empty if none arrived
+     */
+    public List<String> await(long timeoutMs) throws InterruptedException {
+        int timeout = (int) Math.max(1, Math.min(timeoutMs, Integer.MAX_VALUE)); //0 would mean "block forever"
+        try {
+            ensureListening();
+            PGNotification[] notifications = connection.unwrap(PGConnection.class).getNotifications(timeout);
+            if (notifications == null || notifications.length == 0) {
+                return Collections.emptyList();
+            }
+            List<String> payloads = new ArrayList<>(notifications.length);
+            for (PGNotification notification : notifications) {
+                payloads.add(notification.getParameter());
+            }
+            return payloads;
+        } catch (Exception e) {
+            Logger.warning("Listening on channel '" + channel + "' failed, falling back to polling: " + e.getMessage());
+            closeConnection();
+            Thread.sleep(timeout);
+            return Collections.emptyList();
+        }
+    }
+
+    private void ensureListening() throws Exception {
+        if (connection != null && !connection.isClosed()) {
+            return;
+        }
+        connection = connectionFactory.call();
+        connection.setAutoCommit(true);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("LISTEN " + channel);
+        }
+        Logger.info("Listening for notifications on channel '" + channel + "'");
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+            connection = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeConnection();
+    }
+}
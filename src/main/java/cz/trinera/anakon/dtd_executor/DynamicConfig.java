@@ -8,21 +8,61 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * Dynamic configuration (YAML). Instances are snapshots, they are not modified after being parsed.
+ * Use {@link DynamicConfigProvider} to get the current one.
+ */
 public class DynamicConfig {
+
+    private static final ObjectMapper MAPPER = JsonMapper
+            .builder(new YAMLFactory())
+            .enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS)
+            .build();
+
     @JsonProperty("executor_config")
     private ExecutorConfig executorConfig;
     @JsonProperty
     private List<Process> processes;
 
+    private Map<String, Process> processesByType = Collections.emptyMap();
+
     public static DynamicConfig create(File dynamicConfigFile) throws IOException {
-        final ObjectMapper mapper = JsonMapper
-                .builder(new YAMLFactory())
-                .enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS)
-                .build();
-        return mapper.readValue(dynamicConfigFile, DynamicConfig.class);
+        return MAPPER.readValue(dynamicConfigFile, DynamicConfig.class).init();
+    }
+
+    public static DynamicConfig parse(byte[] content) throws IOException {
+        return MAPPER.readValue(content, DynamicConfig.class).init();
+    }
+
+    private DynamicConfig init() throws IOException {
+        if (executorConfig == null) {
+            throw new IOException("Missing executor_config");
+        }
+        if (executorConfig.submitterColumn != null && !executorConfig.submitterColumn.matches("[a-z_][a-z0-9_]*")) {
+            throw new IOException("Invalid submitter_column: " + executorConfig.submitterColumn);
+        }
+        processes = processes == null ? Collections.emptyList() : Collections.unmodifiableList(processes);
+        Map<String, Process> byType = new HashMap<>();
+        for (Process process : processes) {
+            //first definition wins, same as the former linear lookup
+            byType.putIfAbsent(process.getType(), process);
+        }
+        processesByType = Collections.unmodifiableMap(byType);
+        for (Map.Entry<String, NodeConfig> node : executorConfig.getNodes().entrySet()) {
+            if (node.getValue() == null) {
+                throw new IOException("Empty configuration of node " + node.getKey());
+            }
+        }
+        return this;
     }
 
     public ExecutorConfig getExecutorConfig() {
@@ -33,6 +73,32 @@ public class DynamicConfig {
         return processes;
     }
 
+    /**
+     * @return definition of the process type, null if not defined
+     */
+    public Process findProcess(String type) {
+        return processesByType.get(type);
+    }
+
+    /**
+     * @return true if some process type has a retry policy, columns attempt and not_before of table dtd are then used
+     */
+    public boolean hasRetries() {
+        for (Process process : processes) {
+            if (process.getRetry() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return settings of executor_config resolved for the executor, with its entry in nodes applied
+     */
+    public Node forExecutor(String executorId) {
+        return new Node(this, executorConfig.getNodes().get(executorId));
+    }
+
     public static class ExecutorConfig {
         @JsonProperty("min_supported_executor_version")
         private int minSupportedExecutorVersion;
@@ -42,6 +108,56 @@ public class DynamicConfig {
         private int pollingInterval;
         @JsonProperty("log_level")
         private LogLevel logLevel;
+        @JsonProperty("listen_notify")
+        private boolean listenNotify = false;
+        @JsonProperty("notification_channel")
+        private String notificationChannel = "dtd_events";
+        @JsonProperty("max_polling_interval")
+        private int maxPollingInterval = 0;
+        @JsonProperty("final_state_batch_size")
+        private int finalStateBatchSize = 50;
+        @JsonProperty("final_state_max_delay_ms")
+        private int finalStateMaxDelayMs = 200;
+        @JsonProperty("progress_flush_interval_ms")
+        private int progressFlushIntervalMs = 2000;
+        @JsonProperty("kill_request_cleanup_interval")
+        private int killRequestCleanupInterval = 300;
+        @JsonProperty("cancel_grace_period")
+        private int cancelGracePeriod = 10;
+        @JsonProperty("class_cache_max_jars")
+        private int classCacheMaxJars = 16;
+        @JsonProperty("class_cache_idle_timeout")
+        private int classCacheIdleTimeout = 3600;
+        @JsonProperty("submitter_column")
+        private String submitterColumn;
+        @JsonProperty("resource_budget")
+        private Cost resourceBudget;
+        @JsonProperty("heap_usage_watermark")
+        private double heapUsageWatermark = 0.0;
+        @JsonProperty("execution_mode")
+        private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+        @JsonProperty("lease_duration")
+        private int leaseDuration = 0;
+        @JsonProperty("forked_warm_jvms")
+        private int forkedWarmJvms = 1;
+        @JsonProperty("served_types")
+        private List<String> servedTypes;
+        @JsonProperty("served_tags")
+        private List<String> servedTags;
+        @JsonProperty("max_concurrent")
+        private Map<String, Integer> maxConcurrent;
+        @JsonProperty("nodes")
+        private Map<String, NodeConfig> nodes;
+        @JsonProperty("job_dir_maintenance_interval")
+        private int jobDirMaintenanceInterval = 0;
+        @JsonProperty("job_dir_compress_after_hours")
+        private int jobDirCompressAfterHours = 24;
+        @JsonProperty("job_dir_compressed_extensions")
+        private List<String> jobDirCompressedExtensions = Arrays.asList("log", "csv");
+        @JsonProperty("job_dir_retention_days")
+        private int jobDirRetentionDays = 0;
+        @JsonProperty("job_dir_io_rate_mb")
+        private int jobDirIoRateMb = 5;
 
         public int getMinSupportedExecutorVersion() {
             return minSupportedExecutorVersion;
@@ -59,6 +175,249 @@ public class DynamicConfig {
             return logLevel;
         }
 
+        public boolean isListenNotify() {
+            return listenNotify;
+        }
+
+        public String getNotificationChannel() {
+            return notificationChannel;
+        }
+
+        /**
+         * Upper bound (in seconds) for the adaptive polling interval when the executor is idle.
+         * Values lower than polling_interval (default 0) disable the backoff.
+         */
+        public int getMaxPollingInterval() {
+            return Math.max(maxPollingInterval, pollingInterval);
+        }
+
+        public int getFinalStateBatchSize() {
+            return finalStateBatchSize;
+        }
+
+        public int getFinalStateMaxDelayMs() {
+            return finalStateMaxDelayMs;
+        }
+
+        /**
+         * @return milliseconds between writes of the progress reported by the running processes
+         */
+        public int getProgressFlushIntervalMs() {
+            return progressFlushIntervalMs;
+        }
+
+        public int getKillRequestCleanupInterval() {
+            return killRequestCleanupInterval;
+        }
+
+        /**
+         * @return seconds a canceled (or timed out) process has to stop before its slot is given to another process
+         */
+        public int getCancelGracePeriod() {
+            return cancelGracePeriod;
+        }
+
+        public int getClassCacheMaxJars() {
+            return classCacheMaxJars;
+        }
+
+        public int getClassCacheIdleTimeout() {
+            return classCacheIdleTimeout;
+        }
+
+        /**
+         * Column of table dtd identifying the submitter of the process, used for fair scheduling among submitters.
+         * Null if processes should not be scheduled by submitter.
+         */
+        public String getSubmitterColumn() {
+            return submitterColumn;
+        }
+
+        /**
+         * @return total cost of processes that may run concurrently on this executor, null if not limited
+         */
+        public Cost getResourceBudget() {
+            return resourceBudget;
+        }
+
+        /**
+         * @return fraction of the max heap above which no new processes are started, 0 if not checked
+         */
+        public double getHeapUsageWatermark() {
+            return heapUsageWatermark;
+        }
+
+        /**
+         * @return threads to run processes on, unless the process type sets its own execution_mode
+         */
+        public ExecutionMode getExecutionMode() {
+            return executionMode == null ? ExecutionMode.PLATFORM : executionMode;
+        }
+
+        /**
+         * Seconds for which a RUNNING process is leased to its executor. The executor renews the leases of its processes
+         * every third of this time, processes with an expired lease are reclaimed by any executor. 0 disables the leases.
+         */
+        public int getLeaseDuration() {
+            return leaseDuration;
+        }
+
+        /**
+         * @return number of pre-started child JVMs kept ready for each set of jvm_options of forked process types
+         */
+        public int getForkedWarmJvms() {
+            return forkedWarmJvms;
+        }
+
+        /**
+         * @return process types served by executors without their own served_types in nodes
+         */
+        public List<String> getServedTypes() {
+            return servedTypes == null ? Collections.emptyList() : Collections.unmodifiableList(servedTypes);
+        }
+
+        /**
+         * @return tags of process types served by executors without their own served_tags in nodes
+         */
+        public List<String> getServedTags() {
+            return servedTags == null ? Collections.emptyList() : Collections.unmodifiableList(servedTags);
+        }
+
+        /**
+         * @return max_concurrent of process types overridden for executors using this configuration
+         */
+        public Map<String, Integer> getMaxConcurrent() {
+            return maxConcurrent == null ? Collections.emptyMap() : Collections.unmodifiableMap(maxConcurrent);
+        }
+
+        /**
+         * @return overrides of the settings above by executor id (executor.id in config.properties)
+         */
+        public Map<String, NodeConfig> getNodes() {
+            return nodes == null ? Collections.emptyMap() : Collections.unmodifiableMap(nodes);
+        }
+
+        /**
+         * @return seconds between runs of the maintenance of job directories (see {@link JobDirMaintenance}), 0 if disabled
+         */
+        public int getJobDirMaintenanceInterval() {
+            return jobDirMaintenanceInterval;
+        }
+
+        /**
+         * @return hours after the process finished when its files are compressed, 0 if they are not compressed
+         */
+        public int getJobDirCompressAfterHours() {
+            return jobDirCompressAfterHours;
+        }
+
+        /**
+         * @return extensions (without the dot) of the files compressed with gzip
+         */
+        public List<String> getJobDirCompressedExtensions() {
+            return jobDirCompressedExtensions == null ? Collections.emptyList() : Collections.unmodifiableList(jobDirCompressedExtensions);
+        }
+
+        /**
+         * @return days after the process finished when its job directory is deleted, unless its type sets retention_days,
+         * 0 to keep the directories forever
+         */
+        public int getJobDirRetentionDays() {
+            return jobDirRetentionDays;
+        }
+
+        /**
+         * @return megabytes per second the maintenance may read and write, 0 if not limited
+         */
+        public int getJobDirIoRateMb() {
+            return jobDirIoRateMb;
+        }
+    }
+
+    /**
+     * Settings of one executor overriding those of executor_config, so that a single dynamic configuration can be shared
+     * by executors serving different workloads. Settings that are not set are taken from executor_config.
+     */
+    public static class NodeConfig {
+        @JsonProperty("served_types")
+        private List<String> servedTypes;
+        @JsonProperty("served_tags")
+        private List<String> servedTags;
+        @JsonProperty("max_concurrent_processes")
+        private Integer maxConcurrentProcesses;
+        @JsonProperty("max_concurrent")
+        private Map<String, Integer> maxConcurrent;
+    }
+
+    /**
+     * Settings of executor_config resolved for one executor: which process types it serves and how many of them
+     * may run concurrently. Without served_types and served_tags, the executor serves all types.
+     */
+    public static class Node {
+        private final DynamicConfig config;
+        private final Set<String> servedTypes; // null if all types are served
+        private final List<String> servedTags;
+        private final int maxConcurrentProcesses;
+        private final Map<String, Integer> maxConcurrent;
+
+        private Node(DynamicConfig config, NodeConfig node) {
+            ExecutorConfig executorConfig = config.getExecutorConfig();
+            List<String> types = node != null && node.servedTypes != null ? node.servedTypes : executorConfig.getServedTypes();
+            List<String> tags = node != null && node.servedTags != null ? node.servedTags : executorConfig.getServedTags();
+            this.config = config;
+            this.servedTags = Collections.unmodifiableList(tags);
+            if (types.isEmpty() && tags.isEmpty()) {
+                this.servedTypes = null;
+            } else {
+                Set<String> served = new HashSet<>(types);
+                for (Process process : config.getProcesses()) {
+                    if (!Collections.disjoint(process.getTags(), tags)) {
+                        served.add(process.getType());
+                    }
+                }
+                this.servedTypes = Collections.unmodifiableSet(served);
+            }
+            this.maxConcurrentProcesses = node != null && node.maxConcurrentProcesses != null
+                    ? node.maxConcurrentProcesses
+                    : executorConfig.getMaxConcurrentProcesses();
+            Map<String, Integer> limits = new HashMap<>(executorConfig.getMaxConcurrent());
+            if (node != null && node.maxConcurrent != null) {
+                limits.putAll(node.maxConcurrent);
+            }
+            this.maxConcurrent = Collections.unmodifiableMap(limits);
+        }
+
+        /**
+         * @return types of processes the executor claims, null if it claims all of them
+         */
+        public Set<String> getServedTypes() {
+            return servedTypes;
+        }
+
+        public List<String> getServedTags() {
+            return servedTags;
+        }
+
+        public boolean serves(String type) {
+            return servedTypes == null || servedTypes.contains(type);
+        }
+
+        public int getMaxConcurrentProcesses() {
+            return maxConcurrentProcesses;
+        }
+
+        /**
+         * @return maximal number of processes of the type running concurrently on the executor (overridden
+         * in executor_config or set by the process type), null if not limited
+         */
+        public Integer getMaxConcurrent(String type) {
+            Integer limit = maxConcurrent.get(type);
+            if (limit != null) {
+                return limit;
+            }
+            Process definition = config.findProcess(type);
+            return definition == null ? null : definition.getMaxConcurrent();
+        }
     }
 
     public static class Process {
@@ -74,6 +433,32 @@ public class DynamicConfig {
         private List<Map<String, Object>> inputs;
         @JsonProperty("outputs")
         private List<Map<String, Object>> outputs;
+        @JsonProperty("max_concurrent")
+        private Integer maxConcurrent;
+        @JsonProperty("weight")
+        private int weight = 1;
+        @JsonProperty("priority")
+        private int priority = 0;
+        @JsonProperty("cost")
+        private Cost cost = new Cost();
+        @JsonProperty("execution_mode")
+        private ExecutionMode executionMode;
+        @JsonProperty("on_lease_expired")
+        private LeaseExpiredPolicy onLeaseExpired = LeaseExpiredPolicy.FAIL;
+        @JsonProperty("isolation")
+        private Isolation isolation = Isolation.IN_PROCESS;
+        @JsonProperty("jvm_options")
+        private List<String> jvmOptions = Collections.emptyList();
+        @JsonProperty("tags")
+        private List<String> tags = Collections.emptyList();
+        @JsonProperty("retention_days")
+        private Integer retentionDays;
+        @JsonProperty("max_runtime")
+        private Integer maxRuntime;
+        @JsonProperty("retry")
+        private RetryPolicy retry;
+        @JsonProperty("result_cache_ttl")
+        private Integer resultCacheTtl;
 
         public String getType() {
             return type;
@@ -98,9 +483,218 @@ public class DynamicConfig {
         public List<Map<String, Object>> getOutputs() {
             return outputs;
         }
+
+        /**
+         * @return maximal number of processes of this type running concurrently on one executor, null if not limited
+         */
+        public Integer getMaxConcurrent() {
+            return maxConcurrent;
+        }
+
+        /**
+         * @return share of the executor slots relative to other types with the same priority
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return types with higher priority get free slots first
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return resources a running process of this type is expected to use
+         */
+        public Cost getCost() {
+            return cost == null ? new Cost() : cost;
+        }
+
+        /**
+         * @return threads to run processes of this type on, null to use execution_mode of the executor
+         */
+        public ExecutionMode getExecutionMode() {
+            return executionMode;
+        }
+
+        /**
+         * @return what happens to a process of this type whose executor stopped renewing its lease
+         */
+        public LeaseExpiredPolicy getOnLeaseExpired() {
+            return onLeaseExpired == null ? LeaseExpiredPolicy.FAIL : onLeaseExpired;
+        }
+
+        /**
+         * @return whether processes of this type run in the executor's JVM or in a child JVM
+         */
+        public Isolation getIsolation() {
+            return isolation == null ? Isolation.IN_PROCESS : isolation;
+        }
+
+        /**
+         * @return options of the child JVM (e.g. -Xmx2g), used with isolation forked
+         */
+        public List<String> getJvmOptions() {
+            return jvmOptions == null ? Collections.emptyList() : Collections.unmodifiableList(jvmOptions);
+        }
+
+        /**
+         * @return labels of the workload class (e.g. anakon, kramerius), matched against served_tags of the executors
+         */
+        public List<String> getTags() {
+            return tags == null ? Collections.emptyList() : Collections.unmodifiableList(tags);
+        }
+
+        /**
+         * @return days the job directories of this type are kept after the process finished (0 forever),
+         * null to use job_dir_retention_days of the executor
+         */
+        public Integer getRetentionDays() {
+            return retentionDays;
+        }
+
+        /**
+         * @return seconds after which a running process of this type is canceled and ends as FAILED, null if not limited
+         */
+        public Integer getMaxRuntime() {
+            return maxRuntime == null || maxRuntime <= 0 ? null : maxRuntime;
+        }
+
+        /**
+         * @return retries of failed processes of this type, null if they are not retried
+         */
+        public RetryPolicy getRetry() {
+            return retry == null || retry.getMaxAttempts() <= 1 ? null : retry;
+        }
+
+        /**
+         * @return seconds for which the result of a completed process is reused by processes with the same input,
+         * null if results of this type are not cached
+         */
+        public Integer getResultCacheTtl() {
+            return resultCacheTtl == null || resultCacheTtl <= 0 ? null : resultCacheTtl;
+        }
+    }
+
+    /**
+     * Retries of a failed process: it is requeued with not_before set to the backoff of the attempt, so that
+     * it waits in the queue (not in a thread of the executor), and it can be claimed by any executor.
+     * Only failures by {@link cz.trinera.anakon.dtd_executor.dtd_definitions.RetryableException} or by the exceptions
+     * listed in retryable_exceptions (including subclasses, anywhere among the causes) are retried.
+     */
+    public static class RetryPolicy {
+        @JsonProperty("max_attempts")
+        private int maxAttempts = 1;
+        @JsonProperty("initial_backoff")
+        private int initialBackoff = 30;
+        @JsonProperty("backoff_multiplier")
+        private double backoffMultiplier = 2.0;
+        @JsonProperty("max_backoff")
+        private int maxBackoff = 3600;
+        @JsonProperty("retryable_exceptions")
+        private List<String> retryableExceptions = Collections.emptyList();
+
+        /**
+         * @return maximal number of runs of a process, including the first one
+         */
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        /**
+         * @return retryable_exceptions, fully qualified class names
+         */
+        public List<String> getRetryableExceptions() {
+            return retryableExceptions == null ? Collections.emptyList() : Collections.unmodifiableList(retryableExceptions);
+        }
+
+        /**
+         * @param attempt attempt that failed, 1 for the first run
+         * @return seconds to wait before the next attempt: initial_backoff multiplied by backoff_multiplier
+         * for each further attempt, at most max_backoff
+         */
+        public long getBackoffSeconds(int attempt) {
+            double backoff = initialBackoff * Math.pow(Math.max(1.0, backoffMultiplier), Math.max(0, attempt - 1));
+            return (long) Math.max(0, Math.min(backoff, maxBackoff));
+        }
+
+        /**
+         * @param attempt          attempt that failed, 1 for the first run
+         * @param exceptionClasses classes (with their superclasses) of the failure and its causes
+         * @return true if the process should run again: attempts are left and the failure is retryable
+         */
+        public boolean shouldRetry(int attempt, Collection<String> exceptionClasses) {
+            return attempt < maxAttempts && isRetryable(exceptionClasses);
+        }
+
+        /**
+         * @param exceptionClasses classes (with their superclasses) of a failure and its causes
+         */
+        public boolean isRetryable(Collection<String> exceptionClasses) {
+            if (exceptionClasses.contains(RETRYABLE_EXCEPTION)) {
+                return true;
+            }
+            for (String retryable : getRetryableExceptions()) {
+                if (exceptionClasses.contains(retryable)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static final String RETRYABLE_EXCEPTION = "cz.trinera.anakon.dtd_executor.dtd_definitions.RetryableException";
+    }
+
+    /**
+     * Resources used by a process (or available to all processes of the executor).
+     * A limit set to 0 in resource_budget means the resource is not limited.
+     */
+    public static class Cost {
+        @JsonProperty("heap_mb")
+        private int heapMb = 0;
+        @JsonProperty("cpu")
+        private double cpu = 0.0;
+
+        public Cost() {
+        }
+
+        public Cost(int heapMb, double cpu) {
+            this.heapMb = heapMb;
+            this.cpu = cpu;
+        }
+
+        public int getHeapMb() {
+            return heapMb;
+        }
+
+        public double getCpu() {
+            return cpu;
+        }
+
+        @Override
+        public String toString() {
+            return "heap_mb=" + heapMb + ", cpu=" + cpu;
+        }
+    }
+
+    enum ExecutionMode {
+        PLATFORM, // bounded pool of platform threads
+        VIRTUAL // virtual threads (JDK 21+), falls back to platform threads on older runtimes
+    }
+
+    enum LeaseExpiredPolicy {
+        REQUEUE, // back to CREATED, to be run again by any executor
+        FAIL // FAILED, for processes that must not run twice
+    }
+
+    enum Isolation {
+        IN_PROCESS, // thread of the executor's JVM
+        FORKED // child JVM with its own heap and GC
     }
 
-    enum LogLevel {
+    public enum LogLevel {
         DEBUG,
         INFO,
         WARNING,
@@ -0,0 +1,91 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+/**
+ * Provides the current snapshot of the dynamic configuration shared by the executor and the process factory.
+ * <p>
+ * The YAML file is parsed only when it changes. The cheap check (modification time and size) runs on every access,
+ * the content checksum then avoids re-parsing a file that was only touched.
+ * If the changed file cannot be parsed, the last good snapshot is kept and the error is reported once.
+ */
+public class DynamicConfigProvider {
+
+    private static DynamicConfigProvider instance;
+
+    private final File file;
+    private DynamicConfig snapshot;
+    private long lastModified = -1;
+    private long size = -1;
+    private long checksum = -1;
+
+    public static synchronized DynamicConfigProvider instanceOf() throws IOException {
+        if (instance == null) {
+            instance = new DynamicConfigProvider(Config.Utils.getExistingReadableFile(Config.instanceOf().getDynamicConfigFile()));
+        }
+        return instance;
+    }
+
+    DynamicConfigProvider(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return current snapshot of the dynamic configuration
+     * @throws IOException if the file has never been loaded successfully
+     */
+    public synchronized DynamicConfig get() throws IOException {
+        long currentLastModified = file.lastModified();
+        long currentSize = file.length();
+        if (snapshot != null && currentLastModified == lastModified && currentSize == size) {
+            return snapshot;
+        }
+
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            //not remembered as seen, the next access reads the file again
+            return keepLastGood("Failed to read dynamic configuration " + file.getAbsolutePath(), e);
+        }
+        lastModified = currentLastModified;
+        size = currentSize;
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (snapshot != null && crc.getValue() == checksum) {
+            return snapshot;
+        }
+        checksum = crc.getValue();
+
+        ExecutorEvents.ConfigReload event = new ExecutorEvents.ConfigReload();
+        event.file = file.getAbsolutePath();
+        event.size = content.length;
+        event.begin();
+        try {
+            snapshot = DynamicConfig.parse(content);
+            event.success = true;
+            event.commit();
+            Logger.info("Loaded dynamic configuration from file: " + file.getAbsolutePath());
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            event.error = e.getMessage();
+            event.commit();
+            return keepLastGood("Invalid dynamic configuration " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private DynamicConfig keepLastGood(String message, Exception e) throws IOException {
+        if (snapshot == null) {
+            throw new IOException(message + ": " + e.getMessage(), e);
+        }
+        Logger.error(message + ", keeping the last valid configuration: " + e.getMessage());
+        return snapshot;
+    }
+}
@@ -0,0 +1,127 @@
+package cz.trinera.anakon.dtd_executor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the executor, to be correlated with GC, thread and socket events in JDK Mission Control.
+ * <p>
+ * The events are cheap when JFR is not recording (commit() of a disabled event returns immediately).
+ * See src/main/resources/jfr/anakon-dtd-executor.jfc for the recording profile.
+ */
+final class ExecutorEvents {
+
+    private static final String CATEGORY = "Anakon DTD Executor";
+
+    private ExecutorEvents() {
+    }
+
+    @Name("cz.trinera.anakon.PollCycle")
+    @Label("Poll Cycle")
+    @Description("One iteration of the executor's main loop, without waiting for the next poll")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class PollCycle extends Event {
+        @Label("Launched")
+        int launched;
+        @Label("Running")
+        int running;
+        @Label("Max Concurrent")
+        int maxConcurrent;
+    }
+
+    @Name("cz.trinera.anakon.Claim")
+    @Label("Claim")
+    @Description("Claiming CREATED processes selected by the scheduler")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Claim extends Event {
+        @Label("Selected")
+        int selected;
+        @Label("Claimed")
+        int claimed;
+    }
+
+    @Name("cz.trinera.anakon.ConfigReload")
+    @Label("Config Reload")
+    @Description("Parsing of the changed dynamic configuration")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ConfigReload extends Event {
+        @Label("File")
+        String file;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Success")
+        boolean success;
+        @Label("Error")
+        String error;
+    }
+
+    @Name("cz.trinera.anakon.ClassLoad")
+    @Label("Process Class Load")
+    @Description("Loading of a process class in ProcessFactory.load (served from the class cache after the first run)")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ClassLoad extends Event {
+        @Label("Type")
+        String type;
+        @Label("Jar")
+        String jar;
+        @Label("Class")
+        String className;
+        @Label("Isolation")
+        String isolation;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("cz.trinera.anakon.ProcessRun")
+    @Label("Process Run")
+    @Description("Run of a process, from its start to its final state")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ProcessRun extends Event {
+        @Label("Process Id")
+        String id;
+        @Label("Type")
+        String type;
+        @Label("Attempt")
+        int attempt;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("cz.trinera.anakon.Kill")
+    @Label("Kill")
+    @Description("Cancellation of running processes")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Kill extends Event {
+        @Label("Source")
+        @Description("kill_request (poll), notification, lease_lost or max_runtime")
+        String source;
+        @Label("Process Ids")
+        String processIds;
+        @Label("Count")
+        int count;
+    }
+
+    @Name("cz.trinera.anakon.FinalStateWrite")
+    @Label("Final State Write")
+    @Description("One attempt to write a batch of final states to the database")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class FinalStateWrite extends Event {
+        @Label("Batch Size")
+        int batchSize;
+        @Label("Success")
+        boolean success;
+    }
+}
@@ -0,0 +1,230 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists final states of processes (COMPLETED, FAILED, CANCELED) and requeues of processes to be retried asynchronously.
+ * <p>
+ * Worker threads only enqueue the state change. A single writer thread drains the queue and writes the changes
+ * in batches (JDBC batches in the database), flushing when the batch is full or when the oldest change waits for maxDelayMs.
+ * If the database is not available (a transient error), the batch is retried with exponential backoff until it succeeds,
+ * meanwhile the bounded queue blocks the workers instead of dropping their states. Any other error is retried only
+ * PERMANENT_FAILURE_ATTEMPTS times, then the batch is split in halves to isolate the bad states, which are logged and dropped,
+ * so that a single bad state cannot block all the others.
+ * Only processes still claimed by this executor are updated (see {@link JobQueue#finish(List)}), so the leases
+ * of the processes are renewed until their states are written (see {@link #getPendingIds()}).
+ */
+public class FinalStateWriter implements AutoCloseable {
+
+    private static final int QUEUE_CAPACITY = 1000;
+    private static final long RETRY_INITIAL_BACKOFF_MS = 1000;
+    private static final long RETRY_MAX_BACKOFF_MS = 60_000;
+    static final int PERMANENT_FAILURE_ATTEMPTS = 3;
+    private static final long CLOSE_TIMEOUT_MS = 30_000;
+
+    private final JobQueue jobQueue;
+    private final BlockingQueue<JobQueue.FinishedJob> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // processes whose states are queued or being written
+    private final Set<UUID> pendingIds = ConcurrentHashMap.newKeySet();
+    private final long retryInitialBackoffMs;
+    private final long retryMaxBackoffMs;
+    private final Thread writerThread;
+    private volatile int batchSize;
+    private volatile long maxDelayMs;
+    private volatile boolean closed = false;
+
+    public FinalStateWriter(JobQueue jobQueue, int batchSize, long maxDelayMs) {
+        this(jobQueue, batchSize, maxDelayMs, RETRY_INITIAL_BACKOFF_MS, RETRY_MAX_BACKOFF_MS);
+    }
+
+    FinalStateWriter(JobQueue jobQueue, int batchSize, long maxDelayMs, long retryInitialBackoffMs, long retryMaxBackoffMs) {
+        this.jobQueue = jobQueue;
+        this.retryInitialBackoffMs = retryInitialBackoffMs;
+        this.retryMaxBackoffMs = retryMaxBackoffMs;
+        configure(batchSize, maxDelayMs);
+        this.writerThread = new Thread(this::run, "dtd-final-state-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public void configure(int batchSize, long maxDelayMs) {
+        this.batchSize = Math.max(1, batchSize);
+        this.maxDelayMs = Math.max(0, maxDelayMs);
+    }
+
+    /**
+     * Enqueues the final state of the process. Blocks only if the queue is full (database unavailable for a long time).
+     */
+    public void submit(UUID id, ProcessState state) {
+        submit(id, state, null);
+    }
+
+    /**
+     * Enqueues the final state of the process together with its attempt for the history, see {@link JobQueue.FinishedJob}.
+     */
+    public void submit(UUID id, ProcessState state, JobQueue.Attempt attempt) {
+        JobQueue.FinishedJob finalState = new JobQueue.FinishedJob(id, state, Timestamp.from(Instant.now()), attempt);
+        pendingIds.add(id);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(finalState);
+                break;
+            } catch (InterruptedException e) {
+                //canceled workers are interrupted, but their final state must not be lost
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return processes whose states are not written yet, they are still claimed by this executor
+     */
+    public Set<UUID> getPendingIds() {
+        return Collections.unmodifiableSet(pendingIds);
+    }
+
+    private void run() {
+        List<JobQueue.FinishedJob> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                JobQueue.FinishedJob first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + maxDelayMs;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || closed) {
+                        break;
+                    }
+                    JobQueue.FinishedJob next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flushWithRetry(batch);
+                release(batch);
+            } catch (InterruptedException e) {
+                if (!batch.isEmpty()) {
+                    Logger.error("Final state writer interrupted, not persisted: " + batch);
+                }
+                return;
+            } catch (RuntimeException e) {
+                //the thread must survive, otherwise the full queue would block all workers forever
+                Logger.error("Final state writer failed, not persisted: " + batch, e);
+                release(batch);
+            }
+        }
+    }
+
+    private void release(List<JobQueue.FinishedJob> batch) {
+        for (JobQueue.FinishedJob job : batch) {
+            pendingIds.remove(job.getId());
+        }
+        batch.clear();
+    }
+
+    private void flushWithRetry(List<JobQueue.FinishedJob> batch) throws InterruptedException {
+        long backoffMs = retryInitialBackoffMs;
+        int permanentFailures = 0;
+        while (true) {
+            ExecutorEvents.FinalStateWrite event = new ExecutorEvents.FinalStateWrite();
+            event.batchSize = batch.size();
+            event.begin();
+            Exception failure;
+            try {
+                jobQueue.finish(batch);
+                event.success = true;
+                event.commit();
+                return;
+            } catch (SQLException e) {
+                event.commit();
+                failure = e;
+                if (!isTransient(e)) {
+                    permanentFailures++;
+                }
+            } catch (RuntimeException e) {
+                event.commit();
+                failure = e;
+                permanentFailures++;
+            }
+            if (permanentFailures >= PERMANENT_FAILURE_ATTEMPTS) {
+                if (batch.size() == 1) {
+                    Logger.error("Failed to persist final state " + batch.get(0) + ", dropping it", failure);
+                    return;
+                }
+                Logger.warning("Failed to persist final state of " + batch.size() + " process(es), writing them in smaller batches: " + failure);
+                int half = batch.size() / 2;
+                flushWithRetry(new ArrayList<>(batch.subList(0, half)));
+                flushWithRetry(new ArrayList<>(batch.subList(half, batch.size())));
+                return;
+            }
+            Logger.warning("Failed to persist final state of " + batch.size() + " process(es), retrying in " + backoffMs + " ms: " + failure);
+            Thread.sleep(backoffMs);
+            backoffMs = Math.min(backoffMs * 2, retryMaxBackoffMs);
+        }
+    }
+
+    /**
+     * @return true for errors that go away by themselves (connection lost, database restarting, serialization failure
+     * or deadlock), the batch is then retried until it succeeds
+     */
+    static boolean isTransient(SQLException e) {
+        for (SQLException next = e; next != null; next = next.getNextException()) {
+            if (next instanceof SQLTransientException || next instanceof SQLRecoverableException) {
+                return true;
+            }
+            String sqlState = next.getSQLState();
+            if (sqlState != null && (sqlState.startsWith("08") || sqlState.startsWith("40"))) {
+                return true;
+            }
+            if (next.getNextException() == next) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops waiting for new states and flushes the remaining ones (waiting up to CLOSE_TIMEOUT_MS).
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writerThread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            writerThread.interrupt();
+            Logger.error("Final state writer did not finish in time, not persisted: " + queue);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Pre-started child JVMs for processes with isolation forked.
+ * <p>
+ * Each child runs {@link ForkedProcessRunner} and serves a single process, then exits, so nothing leaks between runs.
+ * For every set of JVM options, warmJvms idle children are kept started in advance, so that the JVM startup
+ * is not paid by the process. A taken child is replaced in the background.
+ */
+class ForkedJvmPool {
+
+    private final Map<List<String>, Deque<ForkedJvm>> idle = new HashMap<>();
+    private final ExecutorService starter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "dtd-forked-jvm-starter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean shutdown = false;
+
+    /**
+     * @return started child JVM, taken from the idle ones if possible
+     */
+    ForkedJvm take(List<String> jvmOptions, int warmJvms) throws IOException {
+        ForkedJvm jvm = null;
+        boolean refill;
+        synchronized (this) {
+            refill = !shutdown;
+            Deque<ForkedJvm> deque = idle.get(jvmOptions);
+            while (deque != null && !deque.isEmpty() && jvm == null) {
+                ForkedJvm candidate = deque.pollFirst();
+                if (candidate.process.isAlive()) {
+                    jvm = candidate;
+                }
+            }
+        }
+        if (jvm == null) {
+            jvm = ForkedJvm.start(jvmOptions);
+        }
+        if (refill) {
+            try {
+                starter.submit(() -> refill(jvmOptions, warmJvms));
+            } catch (RejectedExecutionException e) {
+                //shut down meanwhile
+            }
+        }
+        return jvm;
+    }
+
+    private void refill(List<String> jvmOptions, int warmJvms) {
+        while (true) {
+            synchronized (this) {
+                Deque<ForkedJvm> deque = idle.computeIfAbsent(jvmOptions, o -> new ArrayDeque<>());
+                deque.removeIf(jvm -> !jvm.process.isAlive());
+                if (shutdown || deque.size() >= warmJvms) {
+                    return;
+                }
+            }
+            try {
+                ForkedJvm jvm = ForkedJvm.start(jvmOptions);
+                synchronized (this) {
+                    if (shutdown) {
+                        jvm.destroy();
+                        return;
+                    }
+                    idle.get(jvmOptions).addLast(jvm);
+                }
+            } catch (IOException e) {
+                Logger.warning("Failed to pre-start child JVM " + jvmOptions + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the idle children. Children running a process stop by themselves when the executor exits.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        for (Deque<ForkedJvm> deque : idle.values()) {
+            for (ForkedJvm jvm : deque) {
+                jvm.destroy();
+            }
+        }
+        idle.clear();
+        starter.shutdownNow();
+    }
+
+    /**
+     * Child JVM communicating with the executor by lines on its standard input and output.
+     * Its standard error goes to the executor's output until the child redirects it to the log file of the job
+     * (a pre-started child does not know it yet).
+     */
+    static final class ForkedJvm {
+        final java.lang.Process process;
+        final Writer stdin;
+        final BufferedReader stdout;
+
+        private ForkedJvm(java.lang.Process process) {
+            this.process = process;
+            this.stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            this.stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        static ForkedJvm start(List<String> jvmOptions) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(jvmOptions);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ForkedProcessRunner.class.getName());
+            java.lang.Process process = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            return new ForkedJvm(process);
+        }
+
+        synchronized void send(String line) throws IOException {
+            stdin.write(line);
+            stdin.write('\n');
+            stdin.flush();
+        }
+
+        void destroy() {
+            process.destroyForcibly();
+        }
+    }
+}
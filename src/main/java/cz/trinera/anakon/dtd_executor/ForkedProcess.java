@@ -0,0 +1,221 @@
+package cz.trinera.anakon.dtd_executor;
+
+import cz.trinera.anakon.dtd_executor.dtd_definitions.CancellationToken;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ContextProcess;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ProcessContext;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process running in a child JVM (isolation forked), see {@link ForkedProcessRunner} for the protocol.
+ * <p>
+ * For the executor it behaves as any other process: run(...) returns when the child completed the process,
+ * throws when it failed (including a crash of the child JVM, e.g. OutOfMemoryError) and reacts to cancellation
+ * by asking the child to cancel the process, killing the child if it does not end within the executor's
+ * cancel_grace_period (when the executor gives up on the process and frees its slot).
+ * Progress reported by the process in the child is passed to the context of this process.
+ */
+class ForkedProcess implements ContextProcess {
+
+    private static final long CANCEL_CHECK_INTERVAL_MS = 1000;
+    private static final long EXIT_TIMEOUT_SECONDS = 10;
+
+    private final ForkedJvmPool pool;
+    private final File jarFile;
+    private final String className;
+    private final List<String> jvmOptions;
+    private final int warmJvms;
+    private final long cancelGraceSeconds;
+
+    ForkedProcess(ForkedJvmPool pool, File jarFile, String className, List<String> jvmOptions, int warmJvms, long cancelGraceSeconds) {
+        this.pool = pool;
+        this.jarFile = jarFile;
+        this.className = className;
+        this.jvmOptions = jvmOptions;
+        this.warmJvms = warmJvms;
+        this.cancelGraceSeconds = cancelGraceSeconds;
+    }
+
+    @Override
+    public void run(ProcessContext context) throws Exception {
+        UUID id = context.getId();
+        File logFile = context.getLogFile();
+        CancellationToken cancellationToken = context.getCancellationToken();
+        ForkedJvmPool.ForkedJvm jvm = pool.take(jvmOptions, warmJvms);
+        try {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            AtomicReference<ForkedProcessException> error = new AtomicReference<>();
+            Thread reader = new Thread(() -> result.complete(readResult(jvm, context, error)), "dtd-forked-reader-" + id);
+            reader.setDaemon(true);
+            reader.start();
+
+            Map<String, Object> job = new LinkedHashMap<>();
+            job.put("id", id.toString());
+            job.put("type", context.getType());
+            job.put("input_data", context.getInputData());
+            job.put("log_file", path(logFile));
+            job.put("output_dir", path(context.getOutputDir()));
+            job.put("config_file", path(context.getConfigFile()));
+            job.put("jar_file", jarFile.getAbsolutePath());
+            job.put("class_name", className);
+            job.put("deadline", context.getDeadline() == null ? null : context.getDeadline().toEpochMilli());
+            jvm.send(ForkedProcessRunner.MAPPER.writeValueAsString(job));
+            Logger.info("Process " + id + " running in child JVM " + jvm.process.pid() + " " + jvmOptions);
+
+            String state = awaitResult(id, jvm, result, cancellationToken);
+            if (!jvm.process.waitFor(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                jvm.destroy();
+            }
+            if (ProcessState.COMPLETED.name().equals(state)) {
+                return;
+            }
+            if (ProcessState.CANCELED.name().equals(state) && cancellationToken.isCancelled()) {
+                throw new InterruptedException("Process canceled");
+            }
+            String message = "Child JVM of process " + id + " ended with " + (state == null ? "no result" : state)
+                    + ", exit code " + (jvm.process.isAlive() ? "unknown" : String.valueOf(jvm.process.exitValue()));
+            appendToLog(logFile, message);
+            if (error.get() != null) {
+                throw error.get();
+            }
+            throw new RuntimeException(message);
+        } finally {
+            if (jvm.process.isAlive()) {
+                jvm.destroy();
+            }
+        }
+    }
+
+    /**
+     * Waits for the result, passing a cancellation (flag or interrupt) to the child.
+     */
+    private String awaitResult(UUID id, ForkedJvmPool.ForkedJvm jvm, CompletableFuture<String> result, CancellationToken cancellationToken) throws Exception {
+        boolean cancelSent = false;
+        long killAt = Long.MAX_VALUE;
+        while (true) {
+            if (cancellationToken.isCancelled() && !cancelSent) {
+                try {
+                    String reason = cancellationToken.getReason();
+                    jvm.send(ForkedProcessRunner.CANCEL + (reason == null ? "" : " " + reason));
+                } catch (IOException e) {
+                    //the child has already ended
+                }
+                cancelSent = true;
+                killAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(cancelGraceSeconds);
+            }
+            long untilKill = killAt - System.currentTimeMillis();
+            if (untilKill <= 0) {
+                jvm.destroy();
+            }
+            try {
+                return result.get(Math.max(1, Math.min(CANCEL_CHECK_INTERVAL_MS, untilKill)), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                //check the cancellation again
+            } catch (InterruptedException e) {
+                //executor's worker thread interrupted by Future.cancel(true), the child must end the process
+                try {
+                    cancellationToken.cancel("interrupted");
+                } catch (CancellationToken.CallbackException callbackFailure) {
+                    Logger.error("Process " + id + ": " + callbackFailure.getMessage(), callbackFailure);
+                }
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to read result of the child JVM", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Passes the progress printed by the child to the context until the child prints the final state.
+     *
+     * @param error set to the failure printed by the child
+     * @return final state printed by the child, null if the child ended without it
+     */
+    private static String readResult(ForkedJvmPool.ForkedJvm jvm, ProcessContext context, AtomicReference<ForkedProcessException> error) {
+        try {
+            String line;
+            while ((line = jvm.stdout.readLine()) != null) {
+                if (line.startsWith(ForkedProcessRunner.RESULT_PREFIX)) {
+                    return line.substring(ForkedProcessRunner.RESULT_PREFIX.length()).trim();
+                }
+                if (line.startsWith(ForkedProcessRunner.PROGRESS_PREFIX)) {
+                    applyProgress(line.substring(ForkedProcessRunner.PROGRESS_PREFIX.length()), context);
+                }
+                if (line.startsWith(ForkedProcessRunner.ERROR_PREFIX)) {
+                    error.set(parseError(line.substring(ForkedProcessRunner.ERROR_PREFIX.length()), context));
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        return null;
+    }
+
+    private static void applyProgress(String json, ProcessContext context) {
+        try {
+            Map<?, ?> progress = ForkedProcessRunner.MAPPER.readValue(json, Map.class);
+            if (progress.get("done") instanceof Number && progress.get("total") instanceof Number) {
+                context.setProgress(((Number) progress.get("done")).longValue(), ((Number) progress.get("total")).longValue());
+            }
+            if (progress.get("percent") instanceof Number) {
+                context.setPercentDone(((Number) progress.get("percent")).doubleValue());
+            }
+            if (progress.get("counters") instanceof Map) {
+                for (Map.Entry<?, ?> counter : ((Map<?, ?>) progress.get("counters")).entrySet()) {
+                    if (counter.getValue() instanceof Number) {
+                        context.setCounter(String.valueOf(counter.getKey()), ((Number) counter.getValue()).longValue());
+                    }
+                }
+            }
+            if (progress.get("message") != null) {
+                context.setStatusMessage(String.valueOf(progress.get("message")));
+            }
+        } catch (IOException e) {
+            Logger.warning("Ignoring malformed progress of process " + context.getId() + ": " + json);
+        }
+    }
+
+    private static ForkedProcessException parseError(String json, ProcessContext context) {
+        try {
+            Map<?, ?> failure = ForkedProcessRunner.MAPPER.readValue(json, Map.class);
+            Set<String> classes = new LinkedHashSet<>();
+            if (failure.get("classes") instanceof List) {
+                for (Object c : (List<?>) failure.get("classes")) {
+                    classes.add(String.valueOf(c));
+                }
+            }
+            return new ForkedProcessException("Process failed in child JVM: " + failure.get("message"), classes);
+        } catch (IOException e) {
+            Logger.warning("Ignoring malformed error of process " + context.getId() + ": " + json);
+            return null;
+        }
+    }
+
+    private static void appendToLog(File logFile, String message) {
+        if (logFile == null) {
+            return;
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter(logFile, StandardCharsets.UTF_8, true))) {
+            writer.println(message);
+        } catch (IOException e) {
+            Logger.warning("Failed to write to " + logFile + ": " + e.getMessage());
+        }
+    }
+
+    private static String path(File file) {
+        return file == null ? null : file.getAbsolutePath();
+    }
+}
@@ -0,0 +1,48 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Failure of a process in a child JVM (isolation forked). The exception itself stays in the child, this one carries
+ * its message and the names of its classes, so that the retry policy of the type can match them as if the process
+ * ran in the executor.
+ */
+class ForkedProcessException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Set<String> exceptionClasses;
+
+    ForkedProcessException(String message, Set<String> exceptionClasses) {
+        super(message);
+        this.exceptionClasses = exceptionClasses;
+    }
+
+    /**
+     * @return classes of the exception in the child (with their superclasses), of its causes too
+     */
+    Set<String> getExceptionClasses() {
+        return Collections.unmodifiableSet(exceptionClasses);
+    }
+
+    /**
+     * @return names of the classes (with their superclasses) of the exception and of its causes, including those
+     * of failures in a child JVM
+     */
+    static Set<String> classNames(Throwable e) {
+        Set<String> names = new LinkedHashSet<>();
+        Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Throwable t = e; t != null && visited.add(t); t = t.getCause()) {
+            for (Class<?> c = t.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+                names.add(c.getName());
+            }
+            if (t instanceof ForkedProcessException) {
+                names.addAll(((ForkedProcessException) t).exceptionClasses);
+            }
+        }
+        return names;
+    }
+}
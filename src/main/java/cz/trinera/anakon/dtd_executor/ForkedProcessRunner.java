@@ -0,0 +1,169 @@
+package cz.trinera.anakon.dtd_executor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.CancellationToken;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.Process;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.SimpleProcessContext;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Main class of a child JVM running a single process with isolation forked.
+ * <p>
+ * Protocol (one line per message): the child prints {@value #READY} on its standard output when started,
+ * then reads the job (JSON object) from its standard input. While the process runs, the line {@value #CANCEL}
+ * optionally followed by the reason (or the end of the input, when the executor exited) cancels it, and the child prints {@value #PROGRESS_PREFIX}
+ * with the progress (JSON object) whenever it changed, at most every PROGRESS_INTERVAL_MS. At the end the child prints
+ * {@value #RESULT_PREFIX} with the final state and exits with the matching exit code. A failed process is preceded by
+ * {@value #ERROR_PREFIX} with its exception (JSON object with message and classes, see {@link ForkedProcessException}).
+ * Everything else the process prints goes to the log file of the job (to the standard error before the job is read,
+ * or when the job has no log file), so it cannot break the protocol.
+ */
+public class ForkedProcessRunner {
+
+    static final String READY = "READY";
+    static final String CANCEL = "CANCEL";
+    static final String RESULT_PREFIX = "RESULT ";
+    static final String PROGRESS_PREFIX = "PROGRESS ";
+    static final String ERROR_PREFIX = "ERROR ";
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    static final int EXIT_COMPLETED = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_CANCELED = 2;
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static void main(String[] args) throws IOException {
+        PrintStream protocol = new PrintStream(System.out, true, "UTF-8");
+        System.setOut(System.err);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        protocol.println(READY);
+
+        String line = in.readLine();
+        if (line == null) {
+            return; //not used, the executor exited
+        }
+        Map<?, ?> job = MAPPER.readValue(line, Map.class);
+        File logFile = toFile(job.get("log_file"));
+        if (logFile != null) {
+            try {
+                PrintStream log = new PrintStream(new FileOutputStream(logFile, true), true, "UTF-8");
+                System.setOut(log);
+                System.setErr(log);
+            } catch (IOException e) {
+                System.err.println("Failed to open log file " + logFile + ": " + e.getMessage());
+            }
+        }
+
+        CancellationToken cancellationToken = new CancellationToken();
+        Thread worker = Thread.currentThread();
+        Thread canceller = new Thread(() -> {
+            String reason = "executor_exited";
+            try {
+                String command;
+                while ((command = in.readLine()) != null) {
+                    if (command.equals(CANCEL) || command.startsWith(CANCEL + " ")) {
+                        reason = command.length() > CANCEL.length() ? command.substring(CANCEL.length() + 1) : null;
+                        break;
+                    }
+                    //ignore unknown commands
+                }
+            } catch (IOException ignored) {
+            }
+            try {
+                cancellationToken.cancel(reason);
+            } catch (CancellationToken.CallbackException e) {
+                e.printStackTrace(); //into the log file of the job
+            }
+            worker.interrupt();
+        }, "dtd-forked-canceller");
+        canceller.setDaemon(true);
+        canceller.start();
+
+        SimpleProcessContext context = new SimpleProcessContext(
+                UUID.fromString((String) job.get("id")),
+                (String) job.get("type"),
+                (String) job.get("input_data"),
+                logFile,
+                toFile(job.get("output_dir")),
+                toFile(job.get("config_file")),
+                cancellationToken,
+                job.get("deadline") instanceof Number ? Instant.ofEpochMilli(((Number) job.get("deadline")).longValue()) : null
+        );
+        Thread reporter = new Thread(() -> reportProgress(context, protocol), "dtd-forked-progress");
+        reporter.setDaemon(true);
+        reporter.start();
+
+        ProcessState state;
+        Throwable error = null;
+        try {
+            Process process = ProcessFactory.load(new File((String) job.get("jar_file")), (String) job.get("class_name"), 1, Long.MAX_VALUE);
+            process.run(context);
+            state = cancellationToken.isCancelled() || Thread.currentThread().isInterrupted() ? ProcessState.CANCELED : ProcessState.COMPLETED;
+        } catch (InterruptedException e) {
+            state = ProcessState.CANCELED;
+        } catch (Throwable e) {
+            state = cancellationToken.isCancelled() ? ProcessState.CANCELED : ProcessState.FAILED;
+            error = e;
+        }
+        reporter.interrupt();
+        try {
+            reporter.join();
+        } catch (InterruptedException ignored) {
+            //canceled at the very end, the result is printed anyway
+        }
+        synchronized (protocol) {
+            if (state == ProcessState.FAILED && error != null) {
+                Map<String, Object> failure = new LinkedHashMap<>();
+                failure.put("message", String.valueOf(error));
+                failure.put("classes", ForkedProcessException.classNames(error));
+                protocol.println(ERROR_PREFIX + MAPPER.writeValueAsString(failure));
+            }
+            protocol.println(RESULT_PREFIX + state.name());
+        }
+        System.exit(state == ProcessState.COMPLETED ? EXIT_COMPLETED : state == ProcessState.CANCELED ? EXIT_CANCELED : EXIT_FAILED);
+    }
+
+    /**
+     * Prints the progress whenever it changed, the last change also after being interrupted at the end of the process.
+     */
+    private static void reportProgress(SimpleProcessContext context, PrintStream protocol) {
+        long printedVersion = 0;
+        boolean interrupted = false;
+        while (!interrupted) {
+            try {
+                Thread.sleep(PROGRESS_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            long version = context.getProgressVersion();
+            if (version == printedVersion) {
+                continue;
+            }
+            try {
+                String progress = MAPPER.writeValueAsString(context.getProgress());
+                synchronized (protocol) {
+                    protocol.println(PROGRESS_PREFIX + progress);
+                }
+                printedVersion = version;
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static File toFile(Object path) {
+        return path == null ? null : new File((String) path);
+    }
+}
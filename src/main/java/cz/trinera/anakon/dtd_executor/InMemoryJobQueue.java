@@ -0,0 +1,458 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Queue kept in memory, with the same semantics as {@link PostgresJobQueue}, for measuring and testing the dispatch
+ * loop without a database. Besides the {@link JobQueue} operations, it allows to enqueue processes and kill requests
+ * and to inspect the processes afterwards (timestamps are taken from System.nanoTime(), so that they are precise).
+ */
+public class InMemoryJobQueue implements JobQueue {
+
+    private final String executorId;
+    private final Map<UUID, Job> jobs = new HashMap<>();
+    // waiting jobs of each type and submitter, oldest first
+    private final Map<String, Deque<Job>> waiting = new LinkedHashMap<>();
+    private final Set<UUID> killRequests = new HashSet<>();
+    private final List<AttemptRecord> attempts = new ArrayList<>();
+    private final Map<ProcessState, Integer> countsByState = new EnumMap<>(ProcessState.class);
+    private ExecutorRegistration registration;
+    private long claimSequence = 0;
+    private long claimCalls = 0;
+    private long claimNanos = 0;
+
+    public InMemoryJobQueue(String executorId) {
+        this.executorId = executorId;
+    }
+
+    /**
+     * Adds a waiting (CREATED) process.
+     */
+    public synchronized UUID enqueue(String type, String submitter, String inputData) {
+        Job job = new Job(UUID.randomUUID(), type, submitter, inputData);
+        jobs.put(job.id, job);
+        waiting.computeIfAbsent(queueKey(type, submitter), key -> new ArrayDeque<>()).addLast(job);
+        countsByState.merge(ProcessState.CREATED, 1, Integer::sum);
+        return job.id;
+    }
+
+    public synchronized void requestKill(UUID processId) {
+        killRequests.add(processId);
+    }
+
+    public synchronized int count(ProcessState state) {
+        return countsByState.getOrDefault(state, 0);
+    }
+
+    /**
+     * @return number of calls of claim(...)
+     */
+    public synchronized long getClaimCalls() {
+        return claimCalls;
+    }
+
+    /**
+     * @return total time spent in claim(...)
+     */
+    public synchronized long getClaimNanos() {
+        return claimNanos;
+    }
+
+    /**
+     * @return the last registration of the executor, null if not registered
+     */
+    public synchronized ExecutorRegistration getRegistration() {
+        return registration;
+    }
+
+    /**
+     * @return history of the attempts of all processes (of types with a retry policy), in the order they ended
+     */
+    public synchronized List<AttemptRecord> getAttempts() {
+        return new ArrayList<>(attempts);
+    }
+
+    /**
+     * @return copies of all processes, in the order they were enqueued
+     */
+    public synchronized List<Job> snapshot() {
+        List<Job> copies = new ArrayList<>(jobs.size());
+        for (Job job : jobs.values()) {
+            copies.add(job.copy());
+        }
+        copies.sort(Comparator.comparingLong(job -> job.createdNanos));
+        return copies;
+    }
+
+    @Override
+    public synchronized List<ProcessScheduler.Candidate> fetchCandidates(int limit, String submitterColumn, Collection<String> types, boolean retries) {
+        Instant now = Instant.now();
+        List<Job> selected = new ArrayList<>();
+        for (Deque<Job> queue : waiting.values()) {
+            if (queue.isEmpty() || (types != null && !types.contains(queue.peekFirst().type))) {
+                continue;
+            }
+            Iterator<Job> it = queue.iterator();
+            int fetched = 0;
+            while (fetched < limit && it.hasNext()) {
+                Job job = it.next();
+                if (retries && job.notBefore != null && job.notBefore.isAfter(now)) {
+                    continue; //waiting for its next attempt
+                }
+                selected.add(job);
+                fetched++;
+            }
+        }
+        selected.sort(Comparator.comparingLong(job -> job.createdNanos));
+        List<ProcessScheduler.Candidate> candidates = new ArrayList<>(selected.size());
+        for (Job job : selected) {
+            candidates.add(new ProcessScheduler.Candidate(job.id, job.type, job.submitter, job.created));
+        }
+        return candidates;
+    }
+
+    @Override
+    public synchronized List<ClaimedJob> claim(List<ProcessScheduler.Candidate> selected, Instant leaseExpires, boolean retries) {
+        long start = System.nanoTime();
+        List<ClaimedJob> claimed = new ArrayList<>();
+        for (ProcessScheduler.Candidate candidate : selected) {
+            Job job = jobs.get(candidate.getId());
+            if (job == null || job.state != ProcessState.CREATED) {
+                continue;
+            }
+            waiting.get(queueKey(job.type, job.submitter)).remove(job);
+            setState(job, ProcessState.RUNNING);
+            job.executorId = executorId;
+            job.leaseExpires = leaseExpires;
+            job.claimedNanos = System.nanoTime();
+            job.claimOrder = ++claimSequence;
+            claimed.add(new ClaimedJob(job.id, job.type, job.submitter, job.inputData, job.created, retries ? job.attempt : 1));
+        }
+        claimCalls++;
+        claimNanos += System.nanoTime() - start;
+        return claimed;
+    }
+
+    @Override
+    public synchronized void finish(List<FinishedJob> finished) {
+        for (FinishedJob finishedJob : finished) {
+            Job job = jobs.get(finishedJob.getId());
+            if (job == null || job.state != ProcessState.RUNNING || !executorId.equals(job.executorId)) {
+                Logger.warning("Final state " + finishedJob + " not persisted, the process is not claimed by this executor anymore (lease expired or deleted)");
+                continue;
+            }
+            if (finishedJob.isRetry()) {
+                job.attempt = finishedJob.getAttempt().getNumber() + 1;
+                job.notBefore = finishedJob.getAttempt().getNotBefore().toInstant();
+                requeue(job);
+            } else {
+                setState(job, finishedJob.getState());
+                job.finishedNanos = System.nanoTime();
+                job.finished = finishedJob.getFinished().toInstant();
+                job.leaseExpires = null;
+            }
+            if (finishedJob.getAttempt() != null) {
+                attempts.add(new AttemptRecord(job.id, finishedJob.getAttempt(), finishedJob.getFinished()));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void setResultKey(UUID id, String resultKey) {
+        Job job = jobs.get(id);
+        if (job != null && executorId.equals(job.executorId)) {
+            job.resultKey = resultKey;
+        }
+    }
+
+    @Override
+    public synchronized UUID findCompletedResult(String type, String resultKey, Instant finishedAfter) {
+        Job latest = null;
+        for (Job job : jobs.values()) {
+            if (job.state == ProcessState.COMPLETED && job.type.equals(type) && resultKey.equals(job.resultKey)
+                    && job.finished.isAfter(finishedAfter) && (latest == null || job.finished.isAfter(latest.finished))) {
+                latest = job;
+            }
+        }
+        return latest == null ? null : latest.id;
+    }
+
+    @Override
+    public synchronized void updateProgress(List<ProgressUpdate> updates) {
+        for (ProgressUpdate update : updates) {
+            Job job = jobs.get(update.getId());
+            if (job != null && executorId.equals(job.executorId)) {
+                job.progress = update.getProgress();
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<UUID> findKillRequests(Collection<UUID> processIds) {
+        List<UUID> killed = new ArrayList<>();
+        for (UUID processId : processIds) {
+            if (killRequests.contains(processId)) {
+                killed.add(processId);
+            }
+        }
+        return killed;
+    }
+
+    @Override
+    public synchronized void deleteKillRequests(Collection<UUID> processIds) {
+        killRequests.removeAll(processIds);
+    }
+
+    @Override
+    public synchronized int deleteStaleKillRequests() {
+        int deleted = 0;
+        Iterator<UUID> it = killRequests.iterator();
+        while (it.hasNext()) {
+            Job job = jobs.get(it.next());
+            if (job == null || (job.state != ProcessState.CREATED && job.state != ProcessState.RUNNING)) {
+                it.remove();
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public synchronized Set<UUID> renewLeases(Collection<UUID> processIds, Instant leaseExpires) {
+        Set<UUID> renewed = new HashSet<>();
+        for (UUID processId : processIds) {
+            Job job = jobs.get(processId);
+            if (job != null && job.state == ProcessState.RUNNING && executorId.equals(job.executorId)) {
+                job.leaseExpires = leaseExpires;
+                renewed.add(processId);
+            }
+        }
+        return renewed;
+    }
+
+    @Override
+    public synchronized int reclaimExpiredLeases(Collection<String> requeuedTypes, Instant now) {
+        int reclaimed = 0;
+        for (Job job : jobs.values()) {
+            if (job.state != ProcessState.RUNNING || job.leaseExpires == null || !job.leaseExpires.isBefore(now)) {
+                continue;
+            }
+            job.leaseExpires = null;
+            if (requeuedTypes.contains(job.type)) {
+                requeue(job);
+            } else {
+                setState(job, ProcessState.FAILED);
+                job.finishedNanos = System.nanoTime();
+            }
+            reclaimed++;
+        }
+        return reclaimed;
+    }
+
+    @Override
+    public synchronized long countWaiting() {
+        return count(ProcessState.CREATED);
+    }
+
+    @Override
+    public synchronized void register(ExecutorRegistration registration) {
+        this.registration = registration;
+    }
+
+    @Override
+    public synchronized void deregister() {
+        registration = null;
+    }
+
+    @Override
+    public int deleteStaleRegistrations(Instant heartbeatBefore) {
+        return 0; //only this executor is registered
+    }
+
+    /**
+     * Puts a claimed job back to the waiting ones, to its position by the creation time.
+     */
+    private void requeue(Job job) {
+        setState(job, ProcessState.CREATED);
+        job.executorId = null;
+        Deque<Job> queue = waiting.computeIfAbsent(queueKey(job.type, job.submitter), key -> new ArrayDeque<>());
+        List<Job> reordered = new ArrayList<>(queue);
+        reordered.add(job);
+        reordered.sort(Comparator.comparingLong(waitingJob -> waitingJob.createdNanos));
+        queue.clear();
+        queue.addAll(reordered);
+    }
+
+    private void setState(Job job, ProcessState state) {
+        countsByState.merge(job.state, -1, Integer::sum);
+        countsByState.merge(state, 1, Integer::sum);
+        job.state = state;
+    }
+
+    private static String queueKey(String type, String submitter) {
+        return submitter == null ? type : type + '\u0000' + submitter;
+    }
+
+    /**
+     * Process in the queue. Copies returned by snapshot() are not updated anymore.
+     */
+    public static final class Job {
+        final UUID id;
+        final String type;
+        final String submitter;
+        final String inputData;
+        final Timestamp created;
+        final long createdNanos;
+        ProcessState state = ProcessState.CREATED;
+        String executorId;
+        Instant leaseExpires;
+        long claimedNanos;
+        long claimOrder;
+        long finishedNanos;
+        String progress;
+        int attempt = 1;
+        Instant notBefore;
+        Instant finished;
+        String resultKey;
+
+        private Job(UUID id, String type, String submitter, String inputData) {
+            this(id, type, submitter, inputData, Timestamp.from(Instant.now()), System.nanoTime());
+        }
+
+        private Job(UUID id, String type, String submitter, String inputData, Timestamp created, long createdNanos) {
+            this.id = id;
+            this.type = type;
+            this.submitter = submitter;
+            this.inputData = inputData;
+            this.created = created;
+            this.createdNanos = createdNanos;
+        }
+
+        private Job copy() {
+            Job copy = new Job(id, type, submitter, inputData, created, createdNanos);
+            copy.state = state;
+            copy.executorId = executorId;
+            copy.leaseExpires = leaseExpires;
+            copy.claimedNanos = claimedNanos;
+            copy.claimOrder = claimOrder;
+            copy.finishedNanos = finishedNanos;
+            copy.progress = progress;
+            copy.attempt = attempt;
+            copy.notBefore = notBefore;
+            copy.finished = finished;
+            copy.resultKey = resultKey;
+            return copy;
+        }
+
+        public UUID getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getSubmitter() {
+            return submitter;
+        }
+
+        public ProcessState getState() {
+            return state;
+        }
+
+        public long getCreatedNanos() {
+            return createdNanos;
+        }
+
+        /**
+         * @return System.nanoTime() of the (last) claim, 0 if never claimed
+         */
+        public long getClaimedNanos() {
+            return claimedNanos;
+        }
+
+        /**
+         * @return 1 for the first claimed process, 2 for the second one etc., 0 if never claimed
+         */
+        public long getClaimOrder() {
+            return claimOrder;
+        }
+
+        /**
+         * @return System.nanoTime() of the final state, 0 if not finished
+         */
+        public long getFinishedNanos() {
+            return finishedNanos;
+        }
+
+        /**
+         * @return the last progress written by the executor (JSON), null if none
+         */
+        public String getProgress() {
+            return progress;
+        }
+
+        /**
+         * @return the current (or last) attempt, 1 until the process is retried
+         */
+        public int getAttempt() {
+            return attempt;
+        }
+
+        /**
+         * @return result key of a process of a type with result_cache_ttl, null if not set
+         */
+        public String getResultKey() {
+            return resultKey;
+        }
+
+        /**
+         * @return when the next attempt of a retried process may start, null if never retried
+         */
+        public Instant getNotBefore() {
+            return notBefore;
+        }
+    }
+
+    /**
+     * Ended attempt of a process, as in table dtd_attempt.
+     */
+    public static final class AttemptRecord {
+        private final UUID processId;
+        private final Attempt attempt;
+        private final Timestamp finished;
+
+        private AttemptRecord(UUID processId, Attempt attempt, Timestamp finished) {
+            this.processId = processId;
+            this.attempt = attempt;
+            this.finished = finished;
+        }
+
+        public UUID getProcessId() {
+            return processId;
+        }
+
+        public Attempt getAttempt() {
+            return attempt;
+        }
+
+        public Timestamp getFinished() {
+            return finished;
+        }
+    }
+}
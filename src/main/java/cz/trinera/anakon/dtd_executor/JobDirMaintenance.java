@@ -0,0 +1,371 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Background maintenance of the job directories (process.execution.dir/&lt;dtd id&gt;) of finished processes.
+ * <p>
+ * Every job_dir_maintenance_interval seconds, a low-priority thread goes through the job directories and
+ * <ul>
+ *     <li>deletes directories of processes finished more than retention_days (of the type) or job_dir_retention_days ago,</li>
+ *     <li>compresses files with job_dir_compressed_extensions (output.log, export.csv, ...) with gzip (file.csv -> file.csv.gz)
+ *     once the process finished more than job_dir_compress_after_hours ago,</li>
+ *     <li>records the size of each directory in dtd.output_bytes (see sql/dtd_job_dir.sql).</li>
+ * </ul>
+ * All reading and writing is throttled to job_dir_io_rate_mb, so that the maintenance does not compete with the running
+ * processes for the disk. Executors sharing the directory take turns by a PostgreSQL advisory lock on the directory path.
+ * Directories of CREATED and RUNNING processes are never touched.
+ */
+public class JobDirMaintenance implements AutoCloseable {
+
+    private static final int LOCK_CLASS = 0x44544431; // first key of the advisory lock, the second one is the directory
+    private static final long FIRST_RUN_DELAY_MS = 60_000;
+    private static final int BATCH_SIZE = 500;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long ENTRY_COST_BYTES = 4096; // I/O charged for listing or deleting a file
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String PARTIAL_SUFFIX = ".gz.partial";
+
+    private final Path executionDir;
+    private final ConnectionPool connectionPool;
+    private final Thread thread;
+    private final Object wakeUpLock = new Object();
+    private volatile DynamicConfig config;
+    private volatile boolean closed = false;
+
+    public JobDirMaintenance(Path executionDir, ConnectionPool connectionPool, DynamicConfig config) {
+        this.executionDir = executionDir.toAbsolutePath().normalize();
+        this.connectionPool = connectionPool;
+        this.config = config;
+        this.thread = new Thread(this::loop, "dtd-job-dir-maintenance");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+        this.thread.start();
+    }
+
+    /**
+     * Applies a new dynamic configuration, a changed interval is used after the current wait.
+     */
+    public void configure(DynamicConfig config) {
+        this.config = config;
+    }
+
+    private void loop() {
+        long nextRun = System.currentTimeMillis() + FIRST_RUN_DELAY_MS;
+        while (!closed) {
+            try {
+                synchronized (wakeUpLock) {
+                    long remaining = nextRun - System.currentTimeMillis();
+                    if (remaining > 0) {
+                        wakeUpLock.wait(remaining);
+                        continue;
+                    }
+                }
+                int intervalSeconds = config.getExecutorConfig().getJobDirMaintenanceInterval();
+                if (intervalSeconds <= 0) {
+                    nextRun = System.currentTimeMillis() + FIRST_RUN_DELAY_MS; //disabled, check the configuration again later
+                    continue;
+                }
+                runOnce();
+                nextRun = System.currentTimeMillis() + intervalSeconds * 1000L;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Logger.warning("Maintenance of job directories failed: " + e.getMessage());
+                nextRun = System.currentTimeMillis() + Math.max(1, config.getExecutorConfig().getJobDirMaintenanceInterval()) * 1000L;
+            }
+        }
+    }
+
+    /**
+     * One pass over all job directories, skipped if another executor is maintaining the same directory.
+     */
+    void runOnce() throws SQLException, IOException, InterruptedException {
+        DynamicConfig snapshot = config;
+        DynamicConfig.ExecutorConfig executorConfig = snapshot.getExecutorConfig();
+        Throttle throttle = new Throttle(executorConfig.getJobDirIoRateMb() * 1024L * 1024L);
+        long start = System.currentTimeMillis();
+        Stats stats = new Stats();
+        //dedicated connection, the session-level lock must not end up in the pool
+        try (Connection conn = connectionPool.openDedicatedConnection()) {
+            if (!tryLock(conn)) {
+                Logger.debug(() -> "Job directories in " + executionDir + " are being maintained by another executor, skipping");
+                return;
+            }
+            List<Path> batch = new ArrayList<>(BATCH_SIZE);
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(executionDir, JobDirMaintenance::isJobDir)) {
+                for (Path dir : dirs) {
+                    throttle.acquire(ENTRY_COST_BYTES);
+                    batch.add(dir);
+                    if (batch.size() == BATCH_SIZE) {
+                        maintainBatch(conn, batch, snapshot, throttle, stats);
+                        batch.clear();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                maintainBatch(conn, batch, snapshot, throttle, stats);
+            }
+        }
+        Logger.info("Maintained job directories in " + (System.currentTimeMillis() - start) + " ms: " + stats);
+    }
+
+    private boolean tryLock(Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT pg_try_advisory_lock(?, ?)")) {
+            ps.setInt(1, LOCK_CLASS);
+            ps.setInt(2, executionDir.toString().hashCode());
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    private static boolean isJobDir(Path path) {
+        try {
+            UUID.fromString(path.getFileName().toString());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return Files.isDirectory(path);
+    }
+
+    private void maintainBatch(Connection conn, List<Path> dirs, DynamicConfig config, Throttle throttle, Stats stats)
+            throws SQLException, IOException, InterruptedException {
+        Map<UUID, JobRow> rows = fetchRows(conn, dirs);
+        DynamicConfig.ExecutorConfig executorConfig = config.getExecutorConfig();
+        Instant now = Instant.now();
+        Instant compressBefore = now.minus(Duration.ofHours(executorConfig.getJobDirCompressAfterHours()));
+        List<String> extensions = executorConfig.getJobDirCompressedExtensions().stream()
+                .map(extension -> "." + extension.toLowerCase(Locale.ROOT))
+                .collect(Collectors.toList());
+        try (PreparedStatement sized = conn.prepareStatement("UPDATE dtd SET output_bytes = ?, output_maintained = ? WHERE id = ?");
+             PreparedStatement deleted = conn.prepareStatement("UPDATE dtd SET output_bytes = 0, job_dir_deleted = ? WHERE id = ?")) {
+            for (Path dir : dirs) {
+                UUID id = UUID.fromString(dir.getFileName().toString());
+                JobRow row = rows.get(id);
+                if (row != null && !row.isFinished()) {
+                    continue;
+                }
+                //directories without their dtd row are kept for job_dir_retention_days since their last change
+                Instant finished = row != null ? row.finished : Files.getLastModifiedTime(dir).toInstant();
+                int retentionDays = retentionDays(config, row);
+                if (retentionDays > 0 && finished.plus(Duration.ofDays(retentionDays)).isBefore(now)) {
+                    deleteRecursively(dir, throttle);
+                    stats.deletedDirs++;
+                    Metrics.JOB_DIR_MAINTENANCE.inc("deleted_dir");
+                    if (row != null) {
+                        deleted.setTimestamp(1, Timestamp.from(now));
+                        deleted.setObject(2, id);
+                        deleted.addBatch();
+                    }
+                    continue;
+                }
+                if (row == null || row.maintained) {
+                    continue; //compressed and sized already, only waiting for the retention
+                }
+                boolean compress = executorConfig.getJobDirCompressAfterHours() > 0 && finished.isBefore(compressBefore);
+                long bytes = maintainFiles(dir, compress ? extensions : null, throttle, stats);
+                if (compress || row.outputBytes == null || row.outputBytes != bytes) {
+                    sized.setLong(1, bytes);
+                    sized.setTimestamp(2, compress ? Timestamp.from(now) : null);
+                    sized.setObject(3, id);
+                    sized.addBatch();
+                    stats.sizedDirs++;
+                }
+            }
+            sized.executeBatch();
+            deleted.executeBatch();
+        }
+    }
+
+    private Map<UUID, JobRow> fetchRows(Connection conn, List<Path> dirs) throws SQLException {
+        Object[] ids = dirs.stream().map(dir -> UUID.fromString(dir.getFileName().toString())).toArray();
+        String sql = "SELECT id, type, state, coalesce(finished, last_modified) AS finished, output_bytes, output_maintained " +
+                "FROM dtd WHERE id = ANY(?)";
+        long start = System.nanoTime();
+        Map<UUID, JobRow> rows = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setArray(1, conn.createArrayOf("uuid", ids));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Timestamp finished = rs.getTimestamp("finished");
+                    long outputBytes = rs.getLong("output_bytes");
+                    rows.put(UUID.fromString(rs.getString("id")), new JobRow(
+                            rs.getString("type"),
+                            ProcessState.valueOf(rs.getString("state")),
+                            finished == null ? Instant.EPOCH : finished.toInstant(),
+                            rs.wasNull() ? null : outputBytes,
+                            rs.getTimestamp("output_maintained") != null
+                    ));
+                }
+            }
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "job_dirs");
+        return rows;
+    }
+
+    private static int retentionDays(DynamicConfig config, JobRow row) {
+        DynamicConfig.Process definition = row == null ? null : config.findProcess(row.type);
+        if (definition != null && definition.getRetentionDays() != null) {
+            return definition.getRetentionDays();
+        }
+        return config.getExecutorConfig().getJobDirRetentionDays();
+    }
+
+    /**
+     * Compresses the files with the given extensions (none if null) and sums the size of all files in the directory.
+     *
+     * @return size of the directory in bytes, after the compression
+     */
+    private long maintainFiles(Path dir, List<String> extensions, Throttle throttle, Stats stats) throws IOException, InterruptedException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        long bytes = 0;
+        for (Path file : files) {
+            throttle.acquire(ENTRY_COST_BYTES);
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(PARTIAL_SUFFIX)) {
+                Files.deleteIfExists(file); //left over by an interrupted compression
+                continue;
+            }
+            if (extensions != null && extensions.stream().anyMatch(name::endsWith)) {
+                long originalSize = Files.size(file);
+                file = compress(file, throttle);
+                stats.compressedFiles++;
+                stats.savedBytes += originalSize - Files.size(file);
+                Metrics.JOB_DIR_MAINTENANCE.inc("compressed_file");
+            }
+            bytes += Files.size(file);
+        }
+        return bytes;
+    }
+
+    /**
+     * Replaces the file with file.gz, keeping its modification time.
+     *
+     * @return the compressed file
+     */
+    private static Path compress(Path file, Throttle throttle) throws IOException, InterruptedException {
+        Path partial = file.resolveSibling(file.getFileName() + PARTIAL_SUFFIX);
+        Path compressed = file.resolveSibling(file.getFileName() + GZIP_SUFFIX);
+        FileTime lastModified = Files.getLastModifiedTime(file);
+        try (InputStream in = Files.newInputStream(file);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(partial), BUFFER_SIZE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                throttle.acquire(read);
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.setLastModifiedTime(partial, lastModified);
+        Files.move(partial, compressed, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(file);
+        return compressed;
+    }
+
+    private static void deleteRecursively(Path dir, Throttle throttle) throws IOException, InterruptedException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            paths = walk.sorted((a, b) -> b.getNameCount() - a.getNameCount()).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            throttle.acquire(ENTRY_COST_BYTES);
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Stops the maintenance, an interrupted compression leaves the original file in place.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    private static final class JobRow {
+        final String type;
+        final ProcessState state;
+        final Instant finished;
+        final Long outputBytes;
+        final boolean maintained;
+
+        JobRow(String type, ProcessState state, Instant finished, Long outputBytes, boolean maintained) {
+            this.type = type;
+            this.state = state;
+            this.finished = finished;
+            this.outputBytes = outputBytes;
+            this.maintained = maintained;
+        }
+
+        boolean isFinished() {
+            return state == ProcessState.COMPLETED || state == ProcessState.FAILED || state == ProcessState.CANCELED;
+        }
+    }
+
+    private static final class Stats {
+        int compressedFiles;
+        long savedBytes;
+        int sizedDirs;
+        int deletedDirs;
+
+        @Override
+        public String toString() {
+            return compressedFiles + " file(s) compressed (" + savedBytes / 1024 + " KiB saved), "
+                    + sizedDirs + " size(s) recorded, " + deletedDirs + " directory(ies) deleted";
+        }
+    }
+
+    /**
+     * Limits reading and writing to a number of bytes per second, by sleeping whenever the maintenance is ahead of it.
+     */
+    private static final class Throttle {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long spent = 0;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(long bytes) throws InterruptedException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            spent += bytes;
+            long aheadNanos = (long) (spent * 1e9 / bytesPerSecond) - (System.nanoTime() - start);
+            if (aheadNanos > 1_000_000) {
+                Thread.sleep(aheadNanos / 1_000_000);
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Queue of DTDs shared by the executors: waiting (CREATED) processes, claiming them by an executor, their progress
+ * and final states, retries, cached results, kill requests, leases of the running processes and the registry of the executors.
+ * <p>
+ * {@link PostgresJobQueue} works with tables dtd, dtd_kill_request and dtd_executor of the Anakon database. {@link InMemoryJobQueue}
+ * keeps everything in memory, so that the dispatch loop can be measured and tested without a database
+ * (see {@link LoadGenerator}). Operations of one queue are used by a single executor (whose id the queue knows).
+ */
+public interface JobQueue {
+
+    /**
+     * @param limit           maximal number of candidates of each type (and submitter)
+     * @param submitterColumn column of table dtd identifying the submitter, null if submitters are not known
+     * @param types           types of processes served by this executor, null for all types
+     * @param retries         true if retries are configured, processes requeued for a later attempt are then skipped until their not_before
+     * @return oldest waiting processes of each type (and submitter), ordered by creation time
+     */
+    List<ProcessScheduler.Candidate> fetchCandidates(int limit, String submitterColumn, Collection<String> types, boolean retries) throws SQLException;
+
+    /**
+     * Atomically moves the selected waiting processes to RUNNING, claimed by this executor.
+     * Processes claimed by another executor in the meantime are skipped, so a process can never be claimed twice.
+     *
+     * @param leaseExpires expiration of the lease of the claimed processes, null if leases are not used
+     * @param retries      true if retries are configured, the attempt of the claimed processes is then read
+     * @return claimed processes, in any order
+     */
+    List<ClaimedJob> claim(List<ProcessScheduler.Candidate> selected, Instant leaseExpires, boolean retries) throws SQLException;
+
+    /**
+     * Writes the final states of the processes, only of those still claimed by this executor
+     * (a process reclaimed after its lease expired is left alone). Processes to be retried (state CREATED) are
+     * requeued for their next attempt instead. Attempts given with the processes are added to their history,
+     * failing to do so does not fail the final states.
+     */
+    void finish(List<FinishedJob> jobs) throws SQLException;
+
+    /**
+     * Stores the result key (see {@link ResultCache}) of a process claimed by this executor, so that processes with
+     * the same key can reuse its result once it completed.
+     */
+    void setResultKey(UUID id, String resultKey) throws SQLException;
+
+    /**
+     * @return the latest COMPLETED process of the type with the result key, finished after finishedAfter, null if none
+     */
+    UUID findCompletedResult(String type, String resultKey, Instant finishedAfter) throws SQLException;
+
+    /**
+     * Writes the latest progress of the processes claimed by this executor.
+     */
+    void updateProgress(List<ProgressUpdate> updates) throws SQLException;
+
+    /**
+     * @return ids of the given processes having a kill request
+     */
+    List<UUID> findKillRequests(Collection<UUID> processIds) throws SQLException;
+
+    void deleteKillRequests(Collection<UUID> processIds) throws SQLException;
+
+    /**
+     * Deletes kill requests of processes that are already finished (or do not exist anymore).
+     *
+     * @return number of deleted kill requests
+     */
+    int deleteStaleKillRequests() throws SQLException;
+
+    /**
+     * Extends the lease of the given processes, if they are still RUNNING and claimed by this executor.
+     *
+     * @return ids of the processes whose lease was renewed
+     */
+    Set<UUID> renewLeases(Collection<UUID> processIds, Instant leaseExpires) throws SQLException;
+
+    /**
+     * Requeues (processes of requeuedTypes) or fails (the other ones) RUNNING processes whose lease expired before now.
+     *
+     * @return number of reclaimed processes
+     */
+    int reclaimExpiredLeases(Collection<String> requeuedTypes, Instant now) throws SQLException;
+
+    /**
+     * @return number of waiting (CREATED) processes
+     */
+    long countWaiting() throws SQLException;
+
+    /**
+     * Registers this executor, or updates its registration (heartbeat, capacity, load and served types).
+     */
+    void register(ExecutorRegistration registration) throws SQLException;
+
+    /**
+     * Removes the registration of this executor, when it stops.
+     */
+    void deregister() throws SQLException;
+
+    /**
+     * Removes registrations of executors whose last heartbeat is older than heartbeatBefore (executors that died).
+     *
+     * @return number of removed registrations
+     */
+    int deleteStaleRegistrations(Instant heartbeatBefore) throws SQLException;
+
+    /**
+     * Process claimed by this executor.
+     */
+    final class ClaimedJob {
+        private final UUID id;
+        private final String type;
+        private final String submitter;
+        private final String inputData;
+        private final Timestamp created;
+        private final int attempt;
+
+        public ClaimedJob(UUID id, String type, String submitter, String inputData, Timestamp created) {
+            this(id, type, submitter, inputData, created, 1);
+        }
+
+        public ClaimedJob(UUID id, String type, String submitter, String inputData, Timestamp created, int attempt) {
+            this.id = id;
+            this.type = type;
+            this.submitter = submitter;
+            this.inputData = inputData;
+            this.created = created;
+            this.attempt = attempt;
+        }
+
+        public UUID getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getSubmitter() {
+            return submitter;
+        }
+
+        public String getInputData() {
+            return inputData;
+        }
+
+        public Timestamp getCreated() {
+            return created;
+        }
+
+        /**
+         * @return 1 for the first run of the process, 2 for its first retry etc. (always 1 if retries are not configured)
+         */
+        public int getAttempt() {
+            return attempt;
+        }
+    }
+
+    /**
+     * Final state of a process finished by this executor, or CREATED for a failed process requeued for its next attempt.
+     */
+    final class FinishedJob {
+        private final UUID id;
+        private final ProcessState state;
+        private final Timestamp finished;
+        private final Attempt attempt;
+
+        public FinishedJob(UUID id, ProcessState state, Timestamp finished) {
+            this(id, state, finished, null);
+        }
+
+        /**
+         * @param attempt the attempt that ended, to be added to the history of the process, null if not recorded
+         */
+        public FinishedJob(UUID id, ProcessState state, Timestamp finished, Attempt attempt) {
+            this.id = id;
+            this.state = state;
+            this.finished = finished;
+            this.attempt = attempt;
+        }
+
+        public UUID getId() {
+            return id;
+        }
+
+        public ProcessState getState() {
+            return state;
+        }
+
+        public Timestamp getFinished() {
+            return finished;
+        }
+
+        public Attempt getAttempt() {
+            return attempt;
+        }
+
+        /**
+         * @return true if the process is to be requeued for its next attempt (at attempt.getNotBefore()) instead of finished
+         */
+        public boolean isRetry() {
+            return state == ProcessState.CREATED && attempt != null && attempt.getNotBefore() != null;
+        }
+
+        @Override
+        public String toString() {
+            return id + "=" + state;
+        }
+    }
+
+    /**
+     * One run of a process of a type with a retry policy, as recorded in its history (table dtd_attempt).
+     */
+    final class Attempt {
+        private final int number;
+        private final Timestamp started;
+        private final String outcome;
+        private final String error;
+        private final Timestamp notBefore;
+
+        /**
+         * @param outcome   final state of the run, RETRIED if the process was requeued
+         * @param error     exception the run failed with, null if it did not fail
+         * @param notBefore when the next attempt may start, null if the process was not requeued
+         */
+        public Attempt(int number, Timestamp started, String outcome, String error, Timestamp notBefore) {
+            this.number = number;
+            this.started = started;
+            this.outcome = outcome;
+            this.error = error;
+            this.notBefore = notBefore;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return when the run started, null if it was canceled before getting a thread
+         */
+        public Timestamp getStarted() {
+            return started;
+        }
+
+        public String getOutcome() {
+            return outcome;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public Timestamp getNotBefore() {
+            return notBefore;
+        }
+    }
+
+    /**
+     * Latest progress of a process, as JSON (see {@link ProgressWriter}).
+     */
+    final class ProgressUpdate {
+        private final UUID id;
+        private final String progress;
+        private final Timestamp updated;
+
+        public ProgressUpdate(UUID id, String progress, Timestamp updated) {
+            this.id = id;
+            this.progress = progress;
+            this.updated = updated;
+        }
+
+        public UUID getId() {
+            return id;
+        }
+
+        public String getProgress() {
+            return progress;
+        }
+
+        public Timestamp getUpdated() {
+            return updated;
+        }
+    }
+
+    /**
+     * Capacity and load of this executor, so that the executors serving each process type and their free slots are known.
+     */
+    final class ExecutorRegistration {
+        private final int version;
+        private final Collection<String> servedTypes;
+        private final Collection<String> servedTags;
+        private final int maxConcurrentProcesses;
+        private final int runningProcesses;
+        private final Instant started;
+
+        /**
+         * @param servedTypes types the executor claims, null for all types
+         */
+        public ExecutorRegistration(int version, Collection<String> servedTypes, Collection<String> servedTags,
+                                    int maxConcurrentProcesses, int runningProcesses, Instant started) {
+            this.version = version;
+            this.servedTypes = servedTypes;
+            this.servedTags = servedTags;
+            this.maxConcurrentProcesses = maxConcurrentProcesses;
+            this.runningProcesses = runningProcesses;
+            this.started = started;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return types the executor claims, null for all types
+         */
+        public Collection<String> getServedTypes() {
+            return servedTypes;
+        }
+
+        public Collection<String> getServedTags() {
+            return servedTags;
+        }
+
+        public int getMaxConcurrentProcesses() {
+            return maxConcurrentProcesses;
+        }
+
+        public int getRunningProcesses() {
+            return runningProcesses;
+        }
+
+        public Instant getStarted() {
+            return started;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package cz.trinera.anakon.dtd_executor;
+
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * Pushes no-op DTDs through the real dispatch loop of {@link ProcessExecutor}, with an {@link InMemoryJobQueue}
+ * instead of the database, and reports the throughput, the claim latency and the fairness of the scheduler.
+ * <p>
+ * All DTDs are enqueued before the executor starts, spread evenly over the process types (one per weight)
+ * and submitters. Fairness is measured over the claims made while all types still had waiting DTDs:
+ * the share of each type should match its share of the weights.
+ * <pre>
+ * java -cp anakon-dtd-executor-VERSION.jar cz.trinera.anakon.dtd_executor.LoadGenerator --jobs 100000 --weights 1,2,3
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final String EXECUTOR_ID = "load-generator";
+    private static final String TYPE_PREFIX = "loadgen_";
+    private static final String JAR_NAME = "loadgen-noop.jar";
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(new Option("n", "jobs", true, "Number of DTDs (default 100000)"));
+        options.addOption(new Option("w", "weights", true, "Weights of the process types, one type per weight (default 1,1,1)"));
+        options.addOption(new Option("s", "submitters", true, "Number of submitters (default 1)"));
+        options.addOption(new Option("c", "max_concurrent", true, "max_concurrent_processes of the executor (default 64)"));
+        options.addOption(new Option("m", "execution_mode", true, "platform or virtual (default platform)"));
+        options.addOption(new Option("d", "duration_ms", true, "Duration of one DTD in milliseconds (default 0)"));
+        options.addOption(new Option("t", "timeout", true, "Maximal duration of the test in seconds (default 600)"));
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            new HelpFormatter().printHelp("java -cp anakon-dtd-executor-VERSION.jar " + LoadGenerator.class.getName(), options);
+            System.exit(1);
+            return;
+        }
+        int jobs = Integer.parseInt(cmd.getOptionValue("jobs", "100000"));
+        int[] weights = Arrays.stream(cmd.getOptionValue("weights", "1,1,1").split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+        int submitters = Integer.parseInt(cmd.getOptionValue("submitters", "1"));
+        int maxConcurrent = Integer.parseInt(cmd.getOptionValue("max_concurrent", "64"));
+        String executionMode = cmd.getOptionValue("execution_mode", "platform");
+        NoopProcess.durationMs = Long.parseLong(cmd.getOptionValue("duration_ms", "0"));
+        long timeoutSeconds = Long.parseLong(cmd.getOptionValue("timeout", "600"));
+
+        Path workDir = Files.createTempDirectory("dtd-load-generator");
+        try {
+            run(workDir, jobs, weights, submitters, maxConcurrent, executionMode, timeoutSeconds);
+        } finally {
+            deleteRecursively(workDir);
+        }
+        System.exit(0); //idle process threads would keep the JVM running for a while
+    }
+
+    private static void run(Path workDir, int jobs, int[] weights, int submitters, int maxConcurrent,
+                            String executionMode, long timeoutSeconds) throws Exception {
+        initConfiguration(workDir, weights, maxConcurrent, executionMode);
+
+        InMemoryJobQueue queue = new InMemoryJobQueue(EXECUTOR_ID);
+        for (int i = 0; i < jobs; i++) {
+            String type = TYPE_PREFIX + (i % weights.length + 1);
+            String submitter = submitters <= 1 ? null : "submitter_" + ((i / weights.length) % submitters + 1);
+            queue.enqueue(type, submitter, "{}");
+        }
+        System.out.println("Enqueued " + jobs + " DTDs of " + weights.length + " type(s) with weights " + Arrays.toString(weights)
+                + ", " + Math.max(1, submitters) + " submitter(s), max_concurrent_processes " + maxConcurrent
+                + ", " + executionMode + " threads, DTD duration " + NoopProcess.durationMs + " ms");
+
+        ProcessExecutor executor = new ProcessExecutor(queue);
+        Thread executorThread = new Thread(() -> {
+            try {
+                executor.start();
+            } catch (Exception e) {
+                Logger.critical("Executor failed", e);
+            }
+        }, "dtd-load-generator-executor");
+        long start = System.nanoTime();
+        executorThread.start();
+
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (queue.count(ProcessState.CREATED) + queue.count(ProcessState.RUNNING) > 0
+                && executorThread.isAlive() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        executor.stop();
+        executorThread.join(TimeUnit.SECONDS.toMillis(30));
+        Logger.flush();
+        report(queue, weights, start);
+    }
+
+    private static void report(InMemoryJobQueue queue, int[] weights, long start) {
+        List<InMemoryJobQueue.Job> snapshot = queue.snapshot();
+        long lastFinished = start;
+        List<Long> waitNanos = new ArrayList<>();
+        Map<ProcessState, Integer> states = new LinkedHashMap<>();
+        for (InMemoryJobQueue.Job job : snapshot) {
+            states.merge(job.getState(), 1, Integer::sum);
+            lastFinished = Math.max(lastFinished, job.getFinishedNanos());
+            if (job.getClaimedNanos() > 0) {
+                waitNanos.add(job.getClaimedNanos() - Math.max(start, job.getCreatedNanos()));
+            }
+        }
+        int finished = states.getOrDefault(ProcessState.COMPLETED, 0) + states.getOrDefault(ProcessState.FAILED, 0)
+                + states.getOrDefault(ProcessState.CANCELED, 0);
+        double seconds = (lastFinished - start) / 1e9;
+        System.out.println();
+        System.out.println(String.format("Finished %d DTDs in %.2f s: %.0f DTDs/s %s", finished, seconds, seconds > 0 ? finished / seconds : 0.0, states));
+
+        waitNanos.sort(Comparator.naturalOrder());
+        long claimCalls = queue.getClaimCalls();
+        System.out.println(String.format("Claim latency (executor start -> claimed): p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                percentile(waitNanos, 0.5) / 1e6, percentile(waitNanos, 0.99) / 1e6, percentile(waitNanos, 1.0) / 1e6));
+        System.out.println(String.format("Claims: %d call(s), %.1f DTDs per claim, %.1f us per claim",
+                claimCalls, claimCalls == 0 ? 0.0 : (double) waitNanos.size() / claimCalls,
+                claimCalls == 0 ? 0.0 : queue.getClaimNanos() / 1e3 / claimCalls));
+
+        reportFairness(snapshot, weights);
+    }
+
+    /**
+     * Shares of the types in the claims made before the first type ran out of waiting DTDs, compared with their weights.
+     */
+    private static void reportFairness(List<InMemoryJobQueue.Job> snapshot, int[] weights) {
+        List<InMemoryJobQueue.Job> claimed = new ArrayList<>();
+        Map<String, Integer> totalByType = new LinkedHashMap<>();
+        for (InMemoryJobQueue.Job job : snapshot) {
+            totalByType.merge(job.getType(), 1, Integer::sum);
+            if (job.getClaimOrder() > 0) {
+                claimed.add(job);
+            }
+        }
+        claimed.sort(Comparator.comparingLong(InMemoryJobQueue.Job::getClaimOrder));
+        Map<String, Integer> claimedByType = new LinkedHashMap<>();
+        int window = 0;
+        for (InMemoryJobQueue.Job job : claimed) {
+            int count = claimedByType.merge(job.getType(), 1, Integer::sum);
+            window++;
+            if (count == totalByType.get(job.getType())) {
+                break; //the type has no waiting DTDs anymore
+            }
+        }
+        if (window == 0 || weights.length < 2) {
+            return;
+        }
+        int weightSum = Arrays.stream(weights).sum();
+        System.out.println("Fairness over the first " + window + " claims (all types waiting):");
+        System.out.println(String.format("  %-12s %6s %10s %10s", "type", "weight", "expected", "actual"));
+        double sum = 0;
+        double sumOfSquares = 0;
+        for (int i = 0; i < weights.length; i++) {
+            String type = TYPE_PREFIX + (i + 1);
+            double expected = (double) weights[i] / weightSum;
+            double actual = (double) claimedByType.getOrDefault(type, 0) / window;
+            System.out.println(String.format("  %-12s %6d %9.1f%% %9.1f%%", type, weights[i], expected * 100, actual * 100));
+            double ratio = actual / expected;
+            sum += ratio;
+            sumOfSquares += ratio * ratio;
+        }
+        //Jain's fairness index of the shares normalized by the weights, 1.0 = exactly by the weights
+        System.out.println(String.format("  Jain's fairness index: %.4f", sum * sum / (weights.length * sumOfSquares)));
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    /**
+     * Writes config.properties (the database is not used), the dynamic configuration with one process type per weight
+     * and the process definition jar into workDir.
+     */
+    private static void initConfiguration(Path workDir, int[] weights, int maxConcurrent, String executionMode) throws IOException {
+        Path definitionsDir = Files.createDirectories(workDir.resolve("definitions"));
+        Path executionDir = Files.createDirectories(workDir.resolve("jobs"));
+        Path dynamicConfigFile = workDir.resolve("dynamic-config.yaml");
+        Path configFile = workDir.resolve("config.properties");
+
+        //NoopProcess is loaded from the executor's own class path, the class loader of the jar delegates to it (empty jar)
+        new JarOutputStream(Files.newOutputStream(definitionsDir.resolve(JAR_NAME)), new Manifest()).close();
+
+        StringBuilder yaml = new StringBuilder()
+                .append("executor_config:\n")
+                .append("  min_supported_executor_version: 0\n")
+                .append("  max_concurrent_processes: ").append(maxConcurrent).append('\n')
+                .append("  polling_interval: 1\n")
+                .append("  log_level: warning\n")
+                .append("  listen_notify: false\n")
+                .append("  execution_mode: ").append(executionMode).append('\n')
+                .append("processes:\n");
+        for (int i = 0; i < weights.length; i++) {
+            yaml.append("  - type: ").append(TYPE_PREFIX).append(i + 1).append('\n')
+                    .append("    jar_name: ").append(JAR_NAME).append('\n')
+                    .append("    class_name: ").append(NoopProcess.class.getName()).append('\n')
+                    .append("    weight: ").append(weights[i]).append('\n');
+        }
+        Files.write(dynamicConfigFile, yaml.toString().getBytes(StandardCharsets.UTF_8));
+
+        String properties = "process.execution.dir=" + executionDir.toAbsolutePath() + "\n" +
+                "processes.definition.dir=" + definitionsDir.toAbsolutePath() + "\n" +
+                "dynamic.config.file=" + dynamicConfigFile.toAbsolutePath() + "\n" +
+                "executor.id=" + EXECUTOR_ID + "\n" +
+                "db.host=unused\ndb.port=0\ndb.database=unused\ndb.user=unused\ndb.password=unused\n";
+        Files.write(configFile, properties.getBytes(StandardCharsets.UTF_8));
+        Config.init(configFile.toFile());
+        Logger.configure(Config.instanceOf());
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Process doing nothing (or sleeping for durationMs).
+     */
+    public static class NoopProcess implements cz.trinera.anakon.dtd_executor.dtd_definitions.Process {
+
+        static volatile long durationMs = 0;
+
+        @Override
+        public void run(UUID id, String type, String inputData, File logFile, File outputDir, File configFile, AtomicBoolean cancelRequested) throws Exception {
+            if (durationMs > 0) {
+                Thread.sleep(durationMs);
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package cz.trinera.anakon.dtd_executor;
+
+import cz.trinera.anakon.dtd_executor.DynamicConfig.LogLevel;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Levelled logging of the executor.
+ * <p>
+ * Messages below the current level (log_level of the dynamic configuration) are discarded by a single integer
+ * comparison. Messages that are expensive to build are passed to {@link #debug(Supplier)} or guarded by
+ * {@link #isEnabled(LogLevel)}, so that they are not even built when discarded. Enabled messages are put into a bounded
+ * queue and written by a background thread, so that slow console or disk never stalls the callers. When the queue
+ * is full, messages are dropped (and the number of dropped messages reported later) or the caller waits,
+ * by log.queue.full.policy. ERROR and CRITICAL messages are never dropped.
+ * <p>
+ * Output goes to the standard output, or to log.file, which is rotated when it exceeds log.file.max.size.mb
+ * (file.log -> file.log.1 -> ... -> file.log.N, keeping log.file.max.backups old files).
+ */
+public final class Logger {
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private static volatile int threshold = LogLevel.INFO.ordinal();
+    private static volatile BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(DEFAULT_QUEUE_CAPACITY);
+    private static volatile boolean blockWhenFull = false;
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // guarded by the Output.class lock
+    private static Output output = new Output(null, 0, 0);
+    private static volatile Thread writerThread;
+
+    private Logger() {
+    }
+
+    /**
+     * Sets the output and the queue from config.properties. Messages logged before are written to the standard output.
+     */
+    public static synchronized void configure(Config config) throws IOException {
+        blockWhenFull = config.isLogQueueBlockWhenFull();
+        if (config.getLogQueueCapacity() != queue.remainingCapacity() + queue.size()) {
+            BlockingQueue<Entry> oldQueue = queue;
+            queue = new ArrayBlockingQueue<>(Math.max(1, config.getLogQueueCapacity()));
+            moveToCurrentQueue(oldQueue);
+        }
+        String file = config.getLogFile();
+        Output newOutput = new Output(file == null ? null : new File(file),
+                config.getLogFileMaxSizeMb() * 1024L * 1024L, config.getLogFileMaxBackups());
+        synchronized (Output.class) {
+            output.close();
+            output = newOutput;
+        }
+    }
+
+    public static void setLevel(LogLevel level) {
+        threshold = (level == null ? LogLevel.INFO : level).ordinal();
+    }
+
+    public static boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= threshold;
+    }
+
+    public static void debug(String message) {
+        log(LogLevel.DEBUG, message, null);
+    }
+
+    /**
+     * Logs a message built only when DEBUG is enabled, for messages that concatenate or compute values on hot paths.
+     */
+    public static void debug(Supplier<String> message) {
+        if (LogLevel.DEBUG.ordinal() < threshold) {
+            return;
+        }
+        log(LogLevel.DEBUG, message.get(), null);
+    }
+
+    public static void info(String message) {
+        log(LogLevel.INFO, message, null);
+    }
+
+    public static void warning(String message) {
+        log(LogLevel.WARNING, message, null);
+    }
+
+    public static void error(String message) {
+        log(LogLevel.ERROR, message, null);
+    }
+
+    public static void error(String message, Throwable throwable) {
+        log(LogLevel.ERROR, message, throwable);
+    }
+
+    public static void critical(String message, Throwable throwable) {
+        log(LogLevel.CRITICAL, message, throwable);
+    }
+
+    public static void log(LogLevel level, String message, Throwable throwable) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+        Entry entry = new Entry(level, System.currentTimeMillis(), Thread.currentThread().getName(), message, throwable);
+        ensureWriterStarted();
+        enqueue(entry);
+    }
+
+    private static void enqueue(Entry entry) {
+        BlockingQueue<Entry> current = queue;
+        if (!current.offer(entry)) {
+            if (!blockWhenFull && entry.level.ordinal() < LogLevel.ERROR.ordinal()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    current.put(entry);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (current != queue) {
+            //replaced by configure(...) meanwhile, possibly after it moved the entries of the old queue
+            moveToCurrentQueue(current);
+        }
+    }
+
+    /**
+     * Moves the entries of a replaced queue to the current one, those that do not fit are dropped (and counted)
+     * as any other message.
+     */
+    private static void moveToCurrentQueue(BlockingQueue<Entry> replaced) {
+        List<Entry> entries = new ArrayList<>();
+        replaced.drainTo(entries);
+        for (Entry entry : entries) {
+            enqueue(entry);
+        }
+    }
+
+    /**
+     * Waits (up to CLOSE_TIMEOUT_MS) until the queued messages are written.
+     */
+    public static void flush() {
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+        while (!queue.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        synchronized (Output.class) {
+            output.flush();
+        }
+    }
+
+    private static void ensureWriterStarted() {
+        if (writerThread != null) {
+            return;
+        }
+        synchronized (Logger.class) {
+            if (writerThread == null) {
+                Thread thread = new Thread(Logger::run, "dtd-logger");
+                thread.setDaemon(true);
+                thread.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush, "dtd-logger-shutdown"));
+                writerThread = thread;
+            }
+        }
+    }
+
+    private static void run() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Entry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                synchronized (Output.class) {
+                    long droppedCount = dropped.getAndSet(0);
+                    if (droppedCount > 0) {
+                        output.write(format(new Entry(LogLevel.WARNING, System.currentTimeMillis(), "dtd-logger",
+                                droppedCount + " log message(s) dropped, the log queue was full", null)));
+                    }
+                    for (Entry entry : batch) {
+                        output.write(format(entry));
+                    }
+                    output.flush();
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                batch.clear();
+                System.err.println("Logging failed: " + e);
+            }
+        }
+    }
+
+    private static String format(Entry entry) {
+        StringBuilder sb = new StringBuilder(64 + (entry.message == null ? 4 : entry.message.length()));
+        TIMESTAMP.formatTo(Instant.ofEpochMilli(entry.time), sb);
+        sb.append(' ').append(entry.level).append(" [").append(entry.thread).append("] ").append(entry.message).append('\n');
+        if (entry.throwable != null) {
+            StringWriter stackTrace = new StringWriter();
+            entry.throwable.printStackTrace(new PrintWriter(stackTrace));
+            sb.append(stackTrace);
+        }
+        return sb.toString();
+    }
+
+    private static final class Entry {
+        final LogLevel level;
+        final long time;
+        final String thread;
+        final String message;
+        final Throwable throwable;
+
+        Entry(LogLevel level, long time, String thread, String message, Throwable throwable) {
+            this.level = level;
+            this.time = time;
+            this.thread = thread;
+            this.message = message;
+            this.throwable = throwable;
+        }
+    }
+
+    /**
+     * Standard output or a file rotated by size.
+     */
+    private static final class Output {
+        private final File file;
+        private final long maxBytes;
+        private final int maxBackups;
+        private Writer writer;
+        private long written; //in characters, close enough to bytes for the size limit
+
+        Output(File file, long maxBytes, int maxBackups) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.maxBackups = maxBackups;
+        }
+
+        void write(String text) {
+            try {
+                if (writer == null) {
+                    open();
+                }
+                if (file != null && maxBytes > 0 && written > 0 && written + text.length() > maxBytes) {
+                    rotate();
+                }
+                writer.write(text);
+                written += text.length();
+            } catch (IOException e) {
+                System.err.println("Failed to write log to " + file + ": " + e.getMessage());
+                System.err.print(text);
+                writer = null;
+            }
+        }
+
+        void flush() {
+            if (writer != null) {
+                try {
+                    writer.flush();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        void close() {
+            if (writer != null && file != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            } else {
+                flush();
+            }
+            writer = null;
+        }
+
+        private void open() throws IOException {
+            if (file == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                return;
+            }
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            written = file.length();
+        }
+
+        private void rotate() throws IOException {
+            writer.close();
+            if (maxBackups <= 0) {
+                file.delete();
+            } else {
+                new File(file.getPath() + "." + maxBackups).delete();
+                for (int i = maxBackups - 1; i >= 1; i--) {
+                    File backup = new File(file.getPath() + "." + i);
+                    if (backup.exists()) {
+                        backup.renameTo(new File(file.getPath() + "." + (i + 1)));
+                    }
+                }
+                file.renameTo(new File(file.getPath() + ".1"));
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, false), StandardCharsets.UTF_8));
+            written = 0;
+        }
+    }
+}
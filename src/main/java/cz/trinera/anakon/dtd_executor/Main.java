@@ -32,8 +32,9 @@ public class Main {
         }
 
         String configFilePath = cmd.getOptionValue(OPT_CONFIG_FILE);
-        System.out.println("Initializing configuration...");
+        Logger.info("Initializing configuration...");
         Config.init(new File(configFilePath));
+        Logger.configure(Config.instanceOf());
 
         run();
     }
@@ -0,0 +1,231 @@
+package cz.trinera.anakon.dtd_executor;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics of the executor in the Prometheus text format, served on http://host:metrics.port/metrics.
+ * <p>
+ * All metrics are declared here. Updating a metric is cheap (no locks for counters), so they are updated
+ * even when the HTTP endpoint is disabled.
+ */
+public class Metrics {
+
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 900, 3600, 14400};
+
+    private static final List<Family> FAMILIES = new ArrayList<>();
+    private static HttpServer server;
+
+    public static final Gauge QUEUE_DEPTH = register(new Gauge("dtd_queue_depth", "Number of CREATED processes waiting to be claimed"));
+    public static final Gauge RUNNING_PROCESSES = register(new Gauge("dtd_running_processes", "Number of processes running on this executor"));
+    public static final Gauge MAX_CONCURRENT_PROCESSES = register(new Gauge("dtd_max_concurrent_processes", "Configured max_concurrent_processes"));
+    public static final Histogram CLAIM_TO_START_SECONDS = register(new Histogram("dtd_claim_to_start_seconds", "Time from claiming a process to starting its run", "type"));
+    public static final Histogram END_TO_END_SECONDS = register(new Histogram("dtd_end_to_end_seconds", "Time from creating a process to its final state", "type"));
+    public static final Histogram DB_QUERY_SECONDS = register(new Histogram("dtd_db_query_seconds", "Duration of database round trips", "query"));
+    public static final Histogram CLASS_LOAD_SECONDS = register(new Histogram("dtd_class_load_seconds", "Duration of loading the process class in ProcessFactory.load", "type"));
+    public static final Counter PROCESSES_FINISHED = register(new Counter("dtd_processes_finished_total", "Processes finished by this executor", "type", "state"));
+    public static final Counter PROCESSES_RETRIED = register(new Counter("dtd_processes_retried_total", "Failed processes requeued for another attempt", "type"));
+    public static final Counter RESULT_CACHE = register(new Counter("dtd_result_cache_total", "Processes of types with result_cache_ttl run (miss) or completed with the result of an earlier (hit) or a concurrent identical process (coalesced)", "type", "result"));
+    public static final Gauge DB_POOL_ACTIVE = register(new Gauge("dtd_db_pool_active_connections", "Connections borrowed from the pool"));
+    public static final Gauge DB_POOL_IDLE = register(new Gauge("dtd_db_pool_idle_connections", "Idle connections in the pool"));
+    public static final Counter JOB_DIR_MAINTENANCE = register(new Counter("dtd_job_dir_maintenance_total", "Files compressed and job directories deleted by the maintenance", "action"));
+
+    private Metrics() {
+    }
+
+    private static synchronized <T extends Family> T register(T family) {
+        FAMILIES.add(family);
+        return family;
+    }
+
+    /**
+     * Starts the HTTP endpoint, unless already started or port is 0.
+     */
+    public static synchronized void startServer(int port) throws IOException {
+        if (server != null || port <= 0) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start(); //default executor: requests are handled by the server's own thread
+        Logger.info("Metrics available on http://localhost:" + port + "/metrics");
+    }
+
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        List<Family> families;
+        synchronized (Metrics.class) {
+            families = new ArrayList<>(FAMILIES);
+        }
+        for (Family family : families) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type()).append('\n');
+            family.write(sb);
+        }
+        return sb.toString();
+    }
+
+    private abstract static class Family {
+        final String name;
+        final String help;
+        final String[] labelNames;
+
+        Family(String name, String help, String... labelNames) {
+            this.name = name;
+            this.help = help;
+            this.labelNames = labelNames;
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder sb);
+
+        /**
+         * @return labels in the text format, e.g. {type="test",state="COMPLETED"}, empty for no labels
+         */
+        String labels(String[] values) {
+            if (values.length != labelNames.length) {
+                throw new IllegalArgumentException(name + ": expected labels " + Arrays.toString(labelNames));
+            }
+            if (values.length == 0) {
+                return "";
+            }
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                String value = values[i] == null ? "" : values[i];
+                sb.append(labelNames[i]).append("=\"")
+                        .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                        .append('"');
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    public static final class Counter extends Family {
+        private final Map<String, DoubleAdder> values = new ConcurrentSkipListMap<>();
+
+        Counter(String name, String help, String... labelNames) {
+            super(name, help, labelNames);
+        }
+
+        public void inc(String... labelValues) {
+            values.computeIfAbsent(labels(labelValues), l -> new DoubleAdder()).add(1);
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            values.forEach((labels, value) -> sb.append(name).append(labels).append(' ').append(value.sum()).append('\n'));
+        }
+    }
+
+    public static final class Gauge extends Family {
+        private volatile DoubleSupplier supplier = () -> 0;
+
+        Gauge(String name, String help) {
+            super(name, help);
+        }
+
+        public void set(double value) {
+            supplier = () -> value;
+        }
+
+        /**
+         * The value is read from the supplier on every scrape.
+         */
+        public void set(DoubleSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            sb.append(name).append(' ').append(supplier.getAsDouble()).append('\n');
+        }
+    }
+
+    public static final class Histogram extends Family {
+        private final Map<String, Buckets> values = new ConcurrentHashMap<>();
+
+        Histogram(String name, String help, String... labelNames) {
+            super(name, help, labelNames);
+        }
+
+        public void observe(double seconds, String... labelValues) {
+            values.computeIfAbsent(labels(labelValues), l -> new Buckets()).observe(seconds);
+        }
+
+        /**
+         * Observes the time elapsed since startNanos (from System.nanoTime()).
+         */
+        public void observeSince(long startNanos, String... labelValues) {
+            observe((System.nanoTime() - startNanos) / 1e9, labelValues);
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            new ConcurrentSkipListMap<>(values).forEach((labels, buckets) -> buckets.write(sb, name, labels));
+        }
+    }
+
+    private static final class Buckets {
+        private final long[] counts = new long[LATENCY_BUCKETS.length];
+        private long count;
+        private double sum;
+
+        synchronized void observe(double value) {
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (value <= LATENCY_BUCKETS[i]) {
+                    counts[i]++;
+                }
+            }
+            count++;
+            sum += value;
+        }
+
+        synchronized void write(StringBuilder sb, String name, String labels) {
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                sb.append(name).append("_bucket").append(prefix).append("le=\"").append(LATENCY_BUCKETS[i]).append("\"} ").append(counts[i]).append('\n');
+            }
+            sb.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+            sb.append(name).append("_sum").append(labels).append(' ').append(sum).append('\n');
+            sb.append(name).append("_count").append(labels).append(' ').append(count).append('\n');
+        }
+    }
+}
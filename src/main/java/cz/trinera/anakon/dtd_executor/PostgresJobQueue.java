@@ -0,0 +1,465 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Queue in tables dtd, dtd_kill_request, dtd_executor and dtd_attempt of the Anakon database. Each operation borrows a connection from the pool.
+ */
+public class PostgresJobQueue implements JobQueue {
+
+    private final ConnectionPool connectionPool;
+    private final String executorId;
+    private boolean attemptHistoryFailing = false; // accessed by the final state writer only
+
+    public PostgresJobQueue(ConnectionPool connectionPool, String executorId) {
+        this.connectionPool = connectionPool;
+        this.executorId = executorId;
+    }
+
+    /**
+     * Reads at most limit rows of each queue (type, or type and submitter) by the index on (type[, submitter], created)
+     * of the CREATED ones, so the cost does not grow with the number of waiting DTDs. The queues are found
+     * by a loose index scan (one index lookup per distinct type, or type and submitter), unless the types are given.
+     */
+    @Override
+    public List<ProcessScheduler.Candidate> fetchCandidates(int limit, String submitterColumn, Collection<String> types, boolean retries) throws SQLException {
+        if (types != null && types.isEmpty()) {
+            return new ArrayList<>();
+        }
+        long start = System.nanoTime();
+        List<ProcessScheduler.Candidate> candidates = new ArrayList<>();
+        try (Connection conn = connectionPool.getConnection()) {
+            List<Object> params = new ArrayList<>();
+            StringBuilder sql = new StringBuilder("WITH RECURSIVE served(type) AS (");
+            if (types != null) {
+                sql.append("SELECT DISTINCT unnest(?)");
+                params.add(conn.createArrayOf("varchar", types.toArray()));
+            } else {
+                sql.append("(SELECT type FROM dtd WHERE state = 'CREATED' ORDER BY type LIMIT 1) UNION ALL ")
+                        .append("SELECT (SELECT d.type FROM dtd d WHERE d.state = 'CREATED' AND d.type > s.type ORDER BY d.type LIMIT 1) ")
+                        .append("FROM served s WHERE s.type IS NOT NULL");
+            }
+            sql.append(")");
+            if (submitterColumn == null) {
+                sql.append(" SELECT c.* FROM served s CROSS JOIN LATERAL (")
+                        .append(oldestCreated("NULL", "d.type >= s.type AND d.type <= s.type", "d.type", retries, limit, params))
+                        .append(") c");
+            } else {
+                String column = "d." + submitterColumn;
+                sql.append(", queues(type, submitter) AS (")
+                        .append("SELECT s.type, f.submitter FROM served s CROSS JOIN LATERAL (SELECT ").append(column).append(" AS submitter ")
+                        .append("FROM dtd d WHERE d.state = 'CREATED' AND d.type = s.type AND ").append(column).append(" IS NOT NULL ")
+                        .append("ORDER BY ").append(column).append(" LIMIT 1) f UNION ALL ")
+                        .append("SELECT q.type, (SELECT ").append(column).append(" FROM dtd d WHERE d.state = 'CREATED' AND d.type = q.type AND ")
+                        .append(column).append(" > q.submitter ORDER BY ").append(column).append(" LIMIT 1) ")
+                        .append("FROM queues q WHERE q.submitter IS NOT NULL)")
+                        .append(" SELECT c.* FROM queues q CROSS JOIN LATERAL (")
+                        .append(oldestCreated("CAST(" + column + " AS TEXT)", "d.type >= q.type AND d.type <= q.type AND "
+                                + column + " >= q.submitter AND " + column + " <= q.submitter", "d.type, " + column, retries, limit, params))
+                        .append(") c UNION ALL SELECT c.* FROM served s CROSS JOIN LATERAL (")
+                        .append(oldestCreated("NULL", "d.type >= s.type AND d.type <= s.type AND " + column + " IS NULL",
+                                "d.type, " + column, retries, limit, params))
+                        .append(") c");
+            }
+            sql.append(" ORDER BY created ASC");
+            try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                for (int i = 0; i < params.size(); i++) {
+                    ps.setObject(i + 1, params.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        candidates.add(new ProcessScheduler.Candidate(
+                                UUID.fromString(rs.getString("id")),
+                                rs.getString("type"),
+                                rs.getString("submitter"),
+                                rs.getTimestamp("created")
+                        ));
+                    }
+                }
+            }
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "candidates");
+        return candidates;
+    }
+
+    /**
+     * The queue is selected by ranges instead of equalities and ordered by the columns of the index too. With an equality
+     * the planner may walk the index on created alone and filter the type, reading the whole queue for a type
+     * with fewer waiting DTDs than the limit.
+     *
+     * @param queue      condition selecting the queue, a range [x, x] on each indexed column
+     * @param queueOrder indexed columns of the queue, preceding created in the index
+     * @return query for the oldest CREATED DTDs of one queue, its parameters are added to params
+     */
+    private static String oldestCreated(String submitter, String queue, String queueOrder, boolean retries, int limit, List<Object> params) {
+        String sql = "SELECT d.id, d.type, " + submitter + " AS submitter, d.created FROM dtd d WHERE d.state = 'CREATED' AND " + queue +
+                (retries ? " AND (d.not_before IS NULL OR d.not_before <= ?)" : "") +
+                " ORDER BY " + queueOrder + ", d.created ASC LIMIT ?";
+        if (retries) {
+            params.add(Timestamp.from(Instant.now()));
+        }
+        params.add(limit);
+        return sql;
+    }
+
+    @Override
+    public List<ClaimedJob> claim(List<ProcessScheduler.Candidate> selected, Instant leaseExpires, boolean retries) throws SQLException {
+        String sql = "UPDATE dtd SET state = ?, started = ?, last_modified = ?, executor_id = ?" +
+                (leaseExpires != null ? ", lease_expires = ? " : " ") +
+                "WHERE state = 'CREATED' AND id IN (" +
+                "SELECT id FROM dtd WHERE id = ANY(?) AND state = 'CREATED' FOR UPDATE SKIP LOCKED" +
+                ") RETURNING id, type, input_data, created" + (retries ? ", attempt" : "");
+        Map<UUID, String> submitters = new HashMap<>();
+        for (ProcessScheduler.Candidate candidate : selected) {
+            submitters.put(candidate.getId(), candidate.getSubmitter());
+        }
+        long start = System.nanoTime();
+        Timestamp now = Timestamp.from(Instant.now());
+        List<ClaimedJob> claimed = new ArrayList<>();
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, ProcessState.RUNNING.name());
+            ps.setTimestamp(2, now);
+            ps.setTimestamp(3, now);
+            ps.setString(4, executorId);
+            int index = 5;
+            if (leaseExpires != null) {
+                ps.setTimestamp(index++, Timestamp.from(leaseExpires));
+            }
+            ps.setArray(index, conn.createArrayOf("uuid", submitters.keySet().toArray()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    UUID id = UUID.fromString(rs.getString("id"));
+                    claimed.add(new ClaimedJob(
+                            id,
+                            rs.getString("type"),
+                            submitters.get(id),
+                            rs.getString("input_data"),
+                            rs.getTimestamp("created"),
+                            retries ? rs.getInt("attempt") : 1
+                    ));
+                }
+            }
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "claim");
+        return claimed;
+    }
+
+    @Override
+    public void finish(List<FinishedJob> jobs) throws SQLException {
+        List<FinishedJob> finalStates = new ArrayList<>();
+        List<FinishedJob> retries = new ArrayList<>();
+        for (FinishedJob job : jobs) {
+            (job.isRetry() ? retries : finalStates).add(job);
+        }
+        long start = System.nanoTime();
+        try (Connection conn = connectionPool.getConnection()) {
+            conn.setAutoCommit(false);
+            //jobs still claimed by this executor, only their attempts belong to the history
+            List<FinishedJob> updated = new ArrayList<>();
+            if (!finalStates.isEmpty()) {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "UPDATE dtd SET state = ?, finished = ?, last_modified = ? WHERE id = ? AND state = 'RUNNING' AND executor_id = ?")) {
+                    for (FinishedJob job : finalStates) {
+                        ps.setString(1, job.getState().name());
+                        ps.setTimestamp(2, job.getFinished());
+                        ps.setTimestamp(3, job.getFinished());
+                        ps.setObject(4, job.getId());
+                        ps.setString(5, executorId);
+                        ps.addBatch();
+                    }
+                    addUpdated(ps.executeBatch(), finalStates, updated);
+                }
+            }
+            if (!retries.isEmpty()) {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "UPDATE dtd SET state = 'CREATED', started = NULL, executor_id = NULL, last_modified = ?, attempt = ?, not_before = ? " +
+                                "WHERE id = ? AND state = 'RUNNING' AND executor_id = ?")) {
+                    for (FinishedJob job : retries) {
+                        ps.setTimestamp(1, job.getFinished());
+                        ps.setInt(2, job.getAttempt().getNumber() + 1);
+                        ps.setTimestamp(3, job.getAttempt().getNotBefore());
+                        ps.setObject(4, job.getId());
+                        ps.setString(5, executorId);
+                        ps.addBatch();
+                    }
+                    addUpdated(ps.executeBatch(), retries, updated);
+                }
+            }
+            insertAttempts(conn, updated);
+            conn.commit();
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "final_state");
+    }
+
+    private static void addUpdated(int[] counts, List<FinishedJob> jobs, List<FinishedJob> updated) {
+        for (int i = 0; i < jobs.size(); i++) {
+            if (i >= counts.length || counts[i] != 0) {
+                updated.add(jobs.get(i));
+            } else {
+                Logger.warning("Final state " + jobs.get(i) + " not persisted, the process is not claimed by this executor anymore (lease expired or deleted)");
+            }
+        }
+    }
+
+    /**
+     * Adds the attempts of the jobs to table dtd_attempt. The history is informative: if it cannot be written
+     * (e.g. sql/dtd_retry.sql not applied), only the insert is rolled back and the final states are written anyway.
+     */
+    private void insertAttempts(Connection conn, List<FinishedJob> jobs) throws SQLException {
+        List<FinishedJob> attempts = new ArrayList<>();
+        for (FinishedJob job : jobs) {
+            if (job.getAttempt() != null) {
+                attempts.add(job);
+            }
+        }
+        if (attempts.isEmpty()) {
+            return;
+        }
+        Savepoint savepoint = conn.setSavepoint();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO dtd_attempt (dtd_id, attempt, executor_id, started, finished, outcome, error, not_before) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT (dtd_id, attempt) DO NOTHING")) {
+            for (FinishedJob job : attempts) {
+                Attempt attempt = job.getAttempt();
+                ps.setObject(1, job.getId());
+                ps.setInt(2, attempt.getNumber());
+                ps.setString(3, executorId);
+                ps.setTimestamp(4, attempt.getStarted());
+                ps.setTimestamp(5, job.getFinished());
+                ps.setString(6, attempt.getOutcome());
+                ps.setString(7, attempt.getError());
+                ps.setTimestamp(8, attempt.getNotBefore());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            conn.releaseSavepoint(savepoint);
+            attemptHistoryFailing = false;
+        } catch (SQLException e) {
+            conn.rollback(savepoint);
+            if (!attemptHistoryFailing) {
+                Logger.warning("Failed to record " + attempts.size() + " attempt(s) in dtd_attempt: " + e.getMessage());
+            }
+            attemptHistoryFailing = true;
+        }
+    }
+
+    @Override
+    public void setResultKey(UUID id, String resultKey) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement("UPDATE dtd SET result_key = ? WHERE id = ? AND executor_id = ?")) {
+            ps.setString(1, resultKey);
+            ps.setObject(2, id);
+            ps.setString(3, executorId);
+            ps.executeUpdate();
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "result_key");
+    }
+
+    @Override
+    public UUID findCompletedResult(String type, String resultKey, Instant finishedAfter) throws SQLException {
+        String sql = "SELECT id FROM dtd WHERE type = ? AND result_key = ? AND state = 'COMPLETED' AND finished > ? " +
+                "ORDER BY finished DESC LIMIT 1";
+        long start = System.nanoTime();
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, type);
+            ps.setString(2, resultKey);
+            ps.setTimestamp(3, Timestamp.from(finishedAfter));
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? UUID.fromString(rs.getString("id")) : null;
+            }
+        } finally {
+            Metrics.DB_QUERY_SECONDS.observeSince(start, "result_lookup");
+        }
+    }
+
+    @Override
+    public void updateProgress(List<ProgressUpdate> updates) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "UPDATE dtd SET progress = CAST(? AS JSONB), progress_updated = ? WHERE id = ? AND executor_id = ?")) {
+            for (ProgressUpdate update : updates) {
+                ps.setString(1, update.getProgress());
+                ps.setTimestamp(2, update.getUpdated());
+                ps.setObject(3, update.getId());
+                ps.setString(4, executorId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "progress");
+    }
+
+    @Override
+    public List<UUID> findKillRequests(Collection<UUID> processIds) throws SQLException {
+        List<UUID> killed = new ArrayList<>();
+        long start = System.nanoTime();
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT dtd_id FROM dtd_kill_request WHERE dtd_id = ANY(?)")) {
+            ps.setArray(1, conn.createArrayOf("uuid", processIds.toArray()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    killed.add(UUID.fromString(rs.getString("dtd_id")));
+                }
+            }
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "kill");
+        return killed;
+    }
+
+    @Override
+    public void deleteKillRequests(Collection<UUID> processIds) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement("DELETE FROM dtd_kill_request WHERE dtd_id = ANY(?)")) {
+            ps.setArray(1, conn.createArrayOf("uuid", processIds.toArray()));
+            ps.executeUpdate();
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "kill_delete");
+    }
+
+    @Override
+    public int deleteStaleKillRequests() throws SQLException {
+        String sql = "DELETE FROM dtd_kill_request k WHERE NOT EXISTS (" +
+                "SELECT 1 FROM dtd d WHERE d.id = k.dtd_id AND d.state IN ('CREATED', 'RUNNING'))";
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            return ps.executeUpdate();
+        }
+    }
+
+    @Override
+    public Set<UUID> renewLeases(Collection<UUID> processIds, Instant leaseExpires) throws SQLException {
+        String sql = "UPDATE dtd SET lease_expires = ?, last_modified = ? " +
+                "WHERE id = ANY(?) AND state = 'RUNNING' AND executor_id = ? RETURNING id";
+        long start = System.nanoTime();
+        Set<UUID> renewed = new HashSet<>();
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setTimestamp(1, Timestamp.from(leaseExpires));
+            ps.setTimestamp(2, Timestamp.from(Instant.now()));
+            ps.setArray(3, conn.createArrayOf("uuid", processIds.toArray()));
+            ps.setString(4, executorId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    renewed.add(UUID.fromString(rs.getString("id")));
+                }
+            }
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "lease_renewal");
+        return renewed;
+    }
+
+    /**
+     * Rows locked by another executor doing the same are skipped.
+     */
+    @Override
+    public int reclaimExpiredLeases(Collection<String> requeuedTypes, Instant now) throws SQLException {
+        String sql = "UPDATE dtd SET " +
+                "state = CASE WHEN type = ANY(?) THEN 'CREATED' ELSE 'FAILED' END, " +
+                "started = CASE WHEN type = ANY(?) THEN NULL ELSE started END, " +
+                "finished = CASE WHEN type = ANY(?) THEN finished ELSE ? END, " +
+                "executor_id = CASE WHEN type = ANY(?) THEN NULL ELSE executor_id END, " +
+                "lease_expires = NULL, last_modified = ? " +
+                "WHERE state = 'RUNNING' AND lease_expires < ? AND id IN (" +
+                "SELECT id FROM dtd WHERE state = 'RUNNING' AND lease_expires < ? FOR UPDATE SKIP LOCKED" +
+                ") RETURNING id, type, state";
+        long start = System.nanoTime();
+        Timestamp nowTs = Timestamp.from(now);
+        int reclaimed = 0;
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            Array types = conn.createArrayOf("varchar", requeuedTypes.toArray());
+            ps.setArray(1, types);
+            ps.setArray(2, types);
+            ps.setArray(3, types);
+            ps.setTimestamp(4, nowTs);
+            ps.setArray(5, types);
+            ps.setTimestamp(6, nowTs);
+            ps.setTimestamp(7, nowTs);
+            ps.setTimestamp(8, nowTs);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Logger.info("Lease of process " + rs.getString("id") + " (type: " + rs.getString("type") + ") expired, changed to " + rs.getString("state"));
+                    reclaimed++;
+                }
+            }
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "lease_reclaim");
+        return reclaimed;
+    }
+
+    @Override
+    public long countWaiting() throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT count(*) FROM dtd WHERE state = 'CREATED'");
+             ResultSet rs = ps.executeQuery()) {
+            rs.next();
+            return rs.getLong(1);
+        } finally {
+            Metrics.DB_QUERY_SECONDS.observeSince(start, "queue_depth");
+        }
+    }
+
+    @Override
+    public void register(ExecutorRegistration registration) throws SQLException {
+        String sql = "INSERT INTO dtd_executor (id, version, served_types, served_tags, max_concurrent_processes, " +
+                "running_processes, started, last_heartbeat) VALUES (?, ?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (id) DO UPDATE SET version = EXCLUDED.version, served_types = EXCLUDED.served_types, " +
+                "served_tags = EXCLUDED.served_tags, max_concurrent_processes = EXCLUDED.max_concurrent_processes, " +
+                "running_processes = EXCLUDED.running_processes, started = EXCLUDED.started, last_heartbeat = EXCLUDED.last_heartbeat";
+        long start = System.nanoTime();
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, executorId);
+            ps.setInt(2, registration.getVersion());
+            Collection<String> servedTypes = registration.getServedTypes();
+            ps.setArray(3, servedTypes == null ? null : conn.createArrayOf("varchar", servedTypes.toArray()));
+            ps.setArray(4, conn.createArrayOf("varchar", registration.getServedTags().toArray()));
+            ps.setInt(5, registration.getMaxConcurrentProcesses());
+            ps.setInt(6, registration.getRunningProcesses());
+            ps.setTimestamp(7, Timestamp.from(registration.getStarted()));
+            ps.setTimestamp(8, Timestamp.from(Instant.now()));
+            ps.executeUpdate();
+        }
+        Metrics.DB_QUERY_SECONDS.observeSince(start, "registration");
+    }
+
+    @Override
+    public void deregister() throws SQLException {
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement("DELETE FROM dtd_executor WHERE id = ?")) {
+            ps.setString(1, executorId);
+            ps.executeUpdate();
+        }
+    }
+
+    @Override
+    public int deleteStaleRegistrations(Instant heartbeatBefore) throws SQLException {
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement ps = conn.prepareStatement("DELETE FROM dtd_executor WHERE last_heartbeat < ? AND id <> ?")) {
+            ps.setTimestamp(1, Timestamp.from(heartbeatBefore));
+            ps.setString(2, executorId);
+            return ps.executeUpdate();
+        }
+    }
+}
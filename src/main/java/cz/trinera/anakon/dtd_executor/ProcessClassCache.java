@@ -0,0 +1,165 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of class loaders of process definition jars and of the process classes loaded by them.
+ * <p>
+ * A jar is identified by its path, modification time and size. When the jar is replaced, its entry becomes stale:
+ * it is not used for new runs anymore and its class loader is closed once the last in-flight run releases it.
+ * Unused entries are evicted in LRU order when there are more than maxEntries of them, or after being idle for maxIdleMs.
+ */
+class ProcessClassCache {
+
+    // access-order map, iteration starts with the least recently used entry
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Returns the class from the cached class loader of the jar, loading (and initializing) it on the first use.
+     * The returned lease must be released when the run of the process ends.
+     */
+    Lease acquire(File jarFile, String className, int maxEntries, long maxIdleMs) throws ClassNotFoundException, MalformedURLException {
+        Entry entry;
+        synchronized (this) {
+            String path = jarFile.getAbsolutePath();
+            entry = entries.get(path);
+            if (entry != null && !entry.matches(jarFile)) {
+                Logger.info("Process definition jar changed, reloading: " + path);
+                entries.remove(path);
+                entry.stale = true;
+                entry.closeIfUnused();
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(jarFile);
+                entries.put(path, entry);
+            }
+            entry.refCount++;
+            entry.lastUsed = System.currentTimeMillis();
+            evict(maxEntries, maxIdleMs);
+        }
+        try {
+            return new Lease(entry, entry.loadClass(className));
+        } catch (ClassNotFoundException | RuntimeException | Error e) {
+            release(entry);
+            throw e;
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.refCount--;
+        entry.lastUsed = System.currentTimeMillis();
+        entry.closeIfUnused();
+    }
+
+    /**
+     * Evicts unused entries over the size limit (least recently used first) and unused entries idle for too long.
+     */
+    synchronized void evict(int maxEntries, long maxIdleMs) {
+        long now = System.currentTimeMillis();
+        int surplus = entries.size() - maxEntries;
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refCount > 0) {
+                continue;
+            }
+            if (surplus > 0 || now - entry.lastUsed > maxIdleMs) {
+                it.remove();
+                evicted.add(entry);
+                surplus--;
+            }
+        }
+        for (Entry entry : evicted) {
+            entry.stale = true;
+            entry.closeIfUnused();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    final class Lease {
+        private final Entry entry;
+        private final Class<?> cls;
+        private boolean released = false;
+
+        private Lease(Entry entry, Class<?> cls) {
+            this.entry = entry;
+            this.cls = cls;
+        }
+
+        Class<?> getProcessClass() {
+            return cls;
+        }
+
+        ClassLoader getClassLoader() {
+            return entry.loader;
+        }
+
+        void release() {
+            synchronized (ProcessClassCache.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            ProcessClassCache.this.release(entry);
+        }
+    }
+
+    private static final class Entry {
+        final File jarFile;
+        final long lastModified;
+        final long size;
+        final URLClassLoader loader;
+        final Map<String, Class<?>> classes = new ConcurrentHashMap<>();
+        int refCount = 0;
+        long lastUsed;
+        boolean stale = false;
+        boolean closed = false;
+
+        Entry(File jarFile) throws MalformedURLException {
+            this.jarFile = jarFile;
+            this.lastModified = jarFile.lastModified();
+            this.size = jarFile.length();
+            this.loader = new URLClassLoader(new URL[]{jarFile.toURI().toURL()},
+                    cz.trinera.anakon.dtd_executor.dtd_definitions.Process.class.getClassLoader());
+        }
+
+        boolean matches(File file) {
+            return file.lastModified() == lastModified && file.length() == size;
+        }
+
+        Class<?> loadClass(String className) throws ClassNotFoundException {
+            Class<?> cls = classes.get(className);
+            if (cls == null) {
+                cls = Class.forName(className, true, loader);
+                classes.putIfAbsent(className, cls);
+            }
+            return cls;
+        }
+
+        void closeIfUnused() {
+            if (stale && refCount == 0 && !closed) {
+                closed = true;
+                try {
+                    loader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
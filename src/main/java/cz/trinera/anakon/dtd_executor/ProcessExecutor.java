@@ -1,59 +1,275 @@
 package cz.trinera.anakon.dtd_executor;
 
 
+import cz.trinera.anakon.dtd_executor.dtd_definitions.CancellationToken;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.Checkpoint;
 import cz.trinera.anakon.dtd_executor.dtd_definitions.Process;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.SimpleProcessContext;
 import cz.trinera.anakon.dtd_executor.dtd_definitions.UndefinedProcess;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.nio.file.*;
 import java.sql.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-import static cz.trinera.anakon.dtd_executor.DynamicConfig.LogLevel.*;
 
 public class ProcessExecutor {
 
+    // registrations without a heartbeat for this many (longest) polling intervals belong to dead executors
+    private static final int STALE_REGISTRATION_POLLS = 10;
+    // outcome of an attempt after which the process was requeued
+    private static final String RETRIED = "RETRIED";
+
     private int minSupportedExecutorVersion;
     private int maxConcurrentProcesses;
     private int pollIntervalSeconds;
     private DynamicConfig.LogLevel logLevel; // Set to (WARNING, ERROR, CRITICAL) to suppress console output
+    private boolean listenNotify;
+    private String notificationChannel;
+    private int maxPollIntervalSeconds;
+    private int currentPollIntervalSeconds;
+    private int finalStateBatchSize;
+    private int finalStateMaxDelayMs;
+    private int progressFlushIntervalMs;
+    private int killRequestCleanupIntervalSeconds;
+    private long lastKillRequestCleanup = 0;
+    private volatile int cancelGracePeriodSeconds;
+    private int leaseDurationSeconds;
+    private long lastLeaseRenewal = 0;
+    private Instant startedAt;
+    private long lastRegistration = 0;
+    private long lastRegistrationCleanup = 0;
+    private boolean registrationFailed = false;
 
-    private ExecutorService executor;
+    private DtdNotificationListener notificationListener;
+    private ConnectionPool connectionPool;
+    private JobQueue jobQueue;
+    private FinalStateWriter finalStateWriter;
+    private ProgressWriter progressWriter;
+    private JobDirMaintenance jobDirMaintenance;
+    private ResultCache resultCache;
+    private volatile boolean resultCacheFailing = false;
+    // processes whose identical process did not complete, to be run again when admitted by the loop (see awaitIdentical)
+    private final Queue<PendingRun> pendingRuns = new ConcurrentLinkedQueue<>();
+    private volatile boolean stopped = false;
+    // more processes were waiting than could be started, a finished process then wakes the loop up to start the next one
+    private volatile boolean backlog = false;
+    private final Object wakeUpLock = new Object();
+    private boolean wakeUpRequested = false; // guarded by wakeUpLock
+
+    private DynamicConfig dynamicConfig;
+    private DynamicConfig.Node node; // executor_config with the overrides for this executor
+    private ProcessThreads processThreads;
     private final Map<UUID, ProcessWrapper> runningProcesses = new ConcurrentHashMap<>();
+    // deadlines (max_runtime) and cancel_grace_period of the running processes
+    private final ScheduledThreadPoolExecutor watchdog = createWatchdog();
 
     public static void main(String[] args) throws Exception {
         new ProcessExecutor().start();
     }
 
+    /**
+     * Executor working with the dtd tables of the database from config.properties.
+     */
+    public ProcessExecutor() {
+    }
+
+    /**
+     * Executor working with the given queue (e.g. {@link InMemoryJobQueue}), listen_notify is then not available.
+     */
+    public ProcessExecutor(JobQueue jobQueue) {
+        this.jobQueue = jobQueue;
+    }
+
     public void start() throws Exception {
-        log("Starting Anakon DTD Executor...");
-        while (true) {
+        Logger.info("Starting Anakon DTD Executor " + Config.instanceOf().getExecutorId() + " (version " + Config.EXECUTOR_VERSION + ")...");
+        if (jobQueue == null) {
+            connectionPool = new ConnectionPool(Config.instanceOf());
+            jobQueue = new PostgresJobQueue(connectionPool, Config.instanceOf().getExecutorId());
+            Metrics.DB_POOL_ACTIVE.set(() -> connectionPool.getStats().active);
+            Metrics.DB_POOL_IDLE.set(() -> connectionPool.getStats().idle);
+        }
+        startedAt = Instant.now();
+        resultCache = new ResultCache(Paths.get(Config.instanceOf().getProcessExecutionDir()));
+        Runtime.getRuntime().addShutdownHook(new Thread(ProcessFactory::shutdownForkedJvms, "dtd-forked-jvms-shutdown"));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::deregister, "dtd-executor-deregistration"));
+        Metrics.RUNNING_PROCESSES.set(runningProcesses::size);
+        Metrics.startServer(Config.instanceOf().getMetricsPort());
+        while (!stopped) {
+            ExecutorEvents.PollCycle pollCycleEvent = new ExecutorEvents.PollCycle();
+            pollCycleEvent.begin();
             loadDynamicConfiguration();
-            try (Connection conn = getConnection()) {
-                if (!runningOutdatedVersion()) {
-                    checkForNewProcesses(conn);
-                }
-                checkForKillRequests(conn);
+            if (finalStateWriter == null) {
+                finalStateWriter = new FinalStateWriter(jobQueue, finalStateBatchSize, finalStateMaxDelayMs);
+                Runtime.getRuntime().addShutdownHook(new Thread(finalStateWriter::close, "dtd-final-state-writer-shutdown"));
+            } else {
+                finalStateWriter.configure(finalStateBatchSize, finalStateMaxDelayMs);
+            }
+            if (progressWriter == null) {
+                progressWriter = new ProgressWriter(jobQueue, progressFlushIntervalMs);
+            } else {
+                progressWriter.configure(progressFlushIntervalMs);
             }
+            updateJobDirMaintenance();
+            int launched = 0;
+            if (!runningOutdatedVersion()) {
+                launched = checkForNewProcesses();
+            }
+            checkForKillRequests();
+            cleanupStaleKillRequests();
+            renewLeases();
+            updateQueueDepth();
+            updateRegistration();
+            ProcessFactory.evictIdleClassLoaders();
+            if (connectionPool != null) {
+                Logger.debug(() -> "Connection pool: " + connectionPool.getStats());
+            }
+            Logger.debug(() -> "Final states waiting to be persisted: " + finalStateWriter.getQueueSize());
+            pollCycleEvent.launched = launched;
+            pollCycleEvent.running = runningProcesses.size();
+            pollCycleEvent.maxConcurrent = maxConcurrentProcesses;
+            pollCycleEvent.commit();
             //check if executor is not outdated
             boolean runningOutdatedVersion = Config.EXECUTOR_VERSION < minSupportedExecutorVersion;
             if (runningOutdatedVersion) {
-                log("Executor is running an outdated version (" + Config.EXECUTOR_VERSION + "), which is lower than the minimum supported version (" + minSupportedExecutorVersion + ").");
-                //log("Minimum supported executor version is: " + minSupportedExecutorVersion);
+                Logger.warning("Executor is running an outdated version (" + Config.EXECUTOR_VERSION + "), which is lower than the minimum supported version (" + minSupportedExecutorVersion + ").");
+                //Logger.info("Minimum supported executor version is: " + minSupportedExecutorVersion);
                 if (runningProcesses.isEmpty()) {
-                    log("No processes are currently running. Exiting this outdated executor.");
+                    Logger.info("No processes are currently running. Exiting this outdated executor.");
+                    shutdown();
                     return;
                 } else {
-                    log("There are still some running processes. Continuing to run this outdated executor.");
+                    Logger.info("There are still some running processes. Continuing to run this outdated executor.");
+                }
+            }
+            //wait for the next poll interval or for a notification
+            //leases of finished processes are renewed until their final states are written
+            waitForNextPoll(launched > 0 || !runningProcesses.isEmpty() || !finalStateWriter.getPendingIds().isEmpty());
+        }
+        Logger.info("Executor stopped, " + runningProcesses.size() + " process(es) still running");
+        shutdown();
+    }
+
+    private void shutdown() {
+        progressWriter.close();
+        finalStateWriter.close();
+        if (jobDirMaintenance != null) {
+            jobDirMaintenance.close();
+        }
+        deregister();
+        //the pool last, the writers and deregistration above still use it
+        if (notificationListener != null) {
+            notificationListener.close();
+            notificationListener = null;
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+    }
+
+    /**
+     * Stops the main loop after the current iteration, running processes are not waited for.
+     */
+    public void stop() {
+        stopped = true;
+        wakeUp();
+    }
+
+    /**
+     * Ends the current wait for the next poll (or the next wait, if the loop is not waiting now).
+     */
+    private void wakeUp() {
+        synchronized (wakeUpLock) {
+            wakeUpRequested = true;
+            wakeUpLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the next poll. With LISTEN/NOTIFY enabled, the wait ends as soon as a notification arrives.
+     * While the executor is idle, the interval is doubled after each empty poll up to maxPollIntervalSeconds,
+     * polling is then only a fallback for missed notifications.
+     * The wait also ends when a process finished while other processes were waiting for a free slot
+     * (with LISTEN/NOTIFY only when it finished before the wait started).
+     */
+    private void waitForNextPoll(boolean busy) throws InterruptedException {
+        if (busy || currentPollIntervalSeconds < pollIntervalSeconds) {
+            currentPollIntervalSeconds = pollIntervalSeconds;
+        } else {
+            currentPollIntervalSeconds = Math.min(currentPollIntervalSeconds * 2, maxPollIntervalSeconds);
+        }
+        long timeoutMs = currentPollIntervalSeconds * 1000L;
+        synchronized (wakeUpLock) {
+            if (!wakeUpRequested && notificationListener == null) {
+                wakeUpLock.wait(Math.max(1, timeoutMs)); //0 would mean "wait forever"
+            }
+            if (wakeUpRequested || notificationListener == null) {
+                wakeUpRequested = false;
+                return;
+            }
+        }
+        List<String> payloads = notificationListener.await(timeoutMs);
+        if (!payloads.isEmpty()) {
+            Logger.debug(() -> "Woken up by notification(s): " + payloads);
+            currentPollIntervalSeconds = pollIntervalSeconds;
+            handleKillNotifications(payloads);
+        }
+    }
+
+    /**
+     * Cancels running processes right away when their kill request is announced by a notification.
+     */
+    private void handleKillNotifications(List<String> payloads) {
+        List<UUID> processIds = new ArrayList<>();
+        for (String payload : payloads) {
+            if (payload != null && payload.startsWith(DtdNotificationListener.PAYLOAD_KILL_PREFIX)) {
+                try {
+                    UUID processId = UUID.fromString(payload.substring(DtdNotificationListener.PAYLOAD_KILL_PREFIX.length()));
+                    if (runningProcesses.containsKey(processId)) {
+                        processIds.add(processId);
+                    }
+                } catch (IllegalArgumentException e) {
+                    Logger.warning("Ignoring malformed notification: " + payload);
                 }
             }
-            //wait for the next poll interval
-            Thread.sleep(pollIntervalSeconds * 1000L);
-            log("");
+        }
+        if (processIds.isEmpty()) {
+            return;
+        }
+        try {
+            cancelProcesses(processIds, "notification");
+        } catch (SQLException e) {
+            Logger.warning("Failed to handle kill request(s) " + processIds + ": " + e.getMessage());
+        }
+    }
+
+    private void updateNotificationListener() {
+        boolean channelChanged = notificationListener != null && !notificationListener.getChannel().equals(notificationChannel);
+        if (notificationListener != null && (!listenNotify || channelChanged)) {
+            notificationListener.close();
+            notificationListener = null;
+        }
+        if (listenNotify && connectionPool == null) {
+            Logger.warning("listen_notify is available only with the database queue, polling instead");
+            return;
+        }
+        if (listenNotify && notificationListener == null) {
+            notificationListener = new DtdNotificationListener(notificationChannel, connectionPool::openDedicatedConnection);
+        }
+    }
+
+    /**
+     * Starts the maintenance of job directories once it is enabled, it needs the database (advisory lock, output sizes).
+     */
+    private void updateJobDirMaintenance() {
+        if (jobDirMaintenance != null) {
+            jobDirMaintenance.configure(dynamicConfig);
+        } else if (connectionPool != null && dynamicConfig.getExecutorConfig().getJobDirMaintenanceInterval() > 0) {
+            jobDirMaintenance = new JobDirMaintenance(Paths.get(Config.instanceOf().getProcessExecutionDir()), connectionPool, dynamicConfig);
         }
     }
 
@@ -62,166 +278,827 @@ public class ProcessExecutor {
     }
 
     private void loadDynamicConfiguration() throws IOException {
-        File dynamicConfigFile = Config.Utils.getExistingReadableFile(Config.instanceOf().getDynamicConfigFile());
-        DynamicConfig dynamicConfig = DynamicConfig.create(dynamicConfigFile);
+        DynamicConfig snapshot = DynamicConfigProvider.instanceOf().get();
+        if (snapshot == dynamicConfig) {
+            return; //not changed since the last loop
+        }
+        dynamicConfig = snapshot;
         DynamicConfig.ExecutorConfig executorConfig = dynamicConfig.getExecutorConfig();
 
+        node = dynamicConfig.forExecutor(Config.instanceOf().getExecutorId());
         minSupportedExecutorVersion = executorConfig.getMinSupportedExecutorVersion();
-        maxConcurrentProcesses = executorConfig.getMaxConcurrentProcesses();
+        maxConcurrentProcesses = node.getMaxConcurrentProcesses();
+        Metrics.MAX_CONCURRENT_PROCESSES.set(maxConcurrentProcesses);
         pollIntervalSeconds = executorConfig.getPollingInterval();
         logLevel = executorConfig.getLogLevel();
+        Logger.setLevel(logLevel);
+        listenNotify = executorConfig.isListenNotify();
+        notificationChannel = executorConfig.getNotificationChannel();
+        maxPollIntervalSeconds = executorConfig.getMaxPollingInterval();
+        finalStateBatchSize = executorConfig.getFinalStateBatchSize();
+        finalStateMaxDelayMs = executorConfig.getFinalStateMaxDelayMs();
+        progressFlushIntervalMs = executorConfig.getProgressFlushIntervalMs();
+        killRequestCleanupIntervalSeconds = executorConfig.getKillRequestCleanupInterval();
+        cancelGracePeriodSeconds = Math.max(1, executorConfig.getCancelGracePeriod());
+        leaseDurationSeconds = executorConfig.getLeaseDuration();
+        lastRegistration = 0; //announce the new capacity and served types right away
+        updateNotificationListener();
 
-        if (executor == null) {
-            executor = Executors.newCachedThreadPool();
+        if (processThreads == null) {
+            processThreads = new ProcessThreads(maxConcurrentProcesses);
+        } else {
+            processThreads.setPlatformPoolSize(maxConcurrentProcesses);
+        }
+        DynamicConfig.ExecutionMode executionMode = executorConfig.getExecutionMode();
+        if (ProcessThreads.resolve(executionMode) != executionMode) {
+            Logger.warning("Virtual threads are not supported by this runtime (Java " + Runtime.version().feature() + "), using platform threads.");
         }
 
-        log("Loading dynamic configuration from file: " + dynamicConfigFile.getAbsolutePath());
-        log("Loaded minSupportedExecutorVersion: " + minSupportedExecutorVersion);
-        log("Loaded maxConcurrentProcesses: " + maxConcurrentProcesses);
-        log("Loaded pollIntervalSeconds: " + pollIntervalSeconds);
-        log("Loaded logLevel: " + logLevel);
+        Logger.info("Loaded minSupportedExecutorVersion: " + minSupportedExecutorVersion);
+        Logger.info("Loaded maxConcurrentProcesses: " + maxConcurrentProcesses);
+        Logger.info("Loaded pollIntervalSeconds: " + pollIntervalSeconds);
+        Logger.info("Loaded logLevel: " + logLevel);
+        Logger.info("Loaded listenNotify: " + listenNotify + (listenNotify ? " (channel " + notificationChannel + ")" : ""));
+        Logger.info("Loaded maxPollIntervalSeconds: " + maxPollIntervalSeconds);
+        Logger.info("Loaded executionMode: " + executionMode);
+        Logger.info("Loaded leaseDurationSeconds: " + leaseDurationSeconds);
+        Logger.info("Loaded servedTypes: " + (node.getServedTypes() == null ? "all" : new TreeSet<>(node.getServedTypes())));
+        if (node.getServedTypes() != null && node.getServedTypes().isEmpty()) {
+            Logger.warning("No process type matches served_types and served_tags of this executor, no processes will be claimed.");
+        }
+        DynamicConfig.Cost resourceBudget = executorConfig.getResourceBudget();
+        if (resourceBudget != null) {
+            for (DynamicConfig.Process process : dynamicConfig.getProcesses()) {
+                if ((node.getServedTypes() == null || node.getServedTypes().contains(process.getType()))
+                        && ProcessScheduler.Budget.exceeds(process.getCost(), resourceBudget)) {
+                    Logger.warning("Cost of process type " + process.getType() + " (" + process.getCost() + ") exceeds resource_budget ("
+                            + resourceBudget + "), its processes will only run alone on this executor.");
+                }
+            }
+        }
 
     }
 
-    private void log(String message) {
-        //TODO: improve logging, different levels for different messages
-        if (logLevel == null || !List.of(WARNING, ERROR, CRITICAL).contains(logLevel)) {
-            System.out.println(message);
+    private int checkForNewProcesses() throws Exception {
+        Logger.debug("Checking for new processes...");
+        int runningCount = 0;
+        Map<String, Integer> runningByType = new HashMap<>();
+        Map<String, Integer> runningBySubmitter = new HashMap<>();
+        int usedHeapMb = 0;
+        double usedCpu = 0.0;
+        for (ProcessWrapper pw : runningProcesses.values()) {
+            if (pw.waiting) {
+                continue; //processes waiting for an identical one do not take a slot
+            }
+            runningCount++;
+            runningByType.merge(pw.type, 1, Integer::sum);
+            if (pw.submitter != null) {
+                runningBySubmitter.merge(pw.submitter, 1, Integer::sum);
+            }
+            usedHeapMb += pw.cost.getHeapMb();
+            usedCpu += pw.cost.getCpu();
         }
-    }
-
-    private void checkForNewProcesses(Connection conn) throws Exception {
-        log("Checking for new processes...");
-        int runningCount = runningProcesses.size();
         int slotsAvailable = maxConcurrentProcesses - runningCount;
-        log("Currently running: " + runningCount + " / " + maxConcurrentProcesses);
+        if (Logger.isEnabled(DynamicConfig.LogLevel.DEBUG)) {
+            Logger.debug("Currently running: " + runningCount + " / " + maxConcurrentProcesses);
+        }
         if (slotsAvailable <= 0) {
-            log("Max running processes reached. Skipping.");
-            return;
+            Logger.debug("Max running processes reached. Skipping.");
+            backlog = true; //not known, the next finished process checks it
+            return 0;
         }
 
-        String sql = "SELECT id, type, input_data FROM dtd WHERE state = 'CREATED' ORDER BY created ASC FOR UPDATE SKIP LOCKED LIMIT ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, slotsAvailable);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    UUID id = UUID.fromString(rs.getString("id"));
-                    String type = rs.getString("type");
-                    String params = rs.getString("input_data");
+        if (heapUsageAboveWatermark()) {
+            return 0;
+        }
 
-                    updateProcessState(conn, id, ProcessState.RUNNING, Timestamp.from(Instant.now()));
-                    launchProcess(id, type, params);
+        DynamicConfig.Cost resourceBudget = dynamicConfig.getExecutorConfig().getResourceBudget();
+        ProcessScheduler.Budget budget = null;
+        if (resourceBudget != null) {
+            budget = new ProcessScheduler.Budget(resourceBudget, new DynamicConfig.Cost(usedHeapMb, usedCpu), runningCount);
+            if (Logger.isEnabled(DynamicConfig.LogLevel.DEBUG)) {
+                Logger.debug("Resources used: heap_mb=" + usedHeapMb + "/" + resourceBudget.getHeapMb() + ", cpu=" + usedCpu + "/" + resourceBudget.getCpu());
+            }
+        }
+        //processes claimed before any of the waiting ones go first
+        int started = startPendingRuns(slotsAvailable, runningByType, runningBySubmitter, budget);
+        slotsAvailable -= started;
+        boolean pendingRunsLeft = !pendingRuns.isEmpty();
+        if (slotsAvailable <= 0) {
+            backlog = true;
+            return started;
+        }
+
+        //the oldest waiting processes of each type (and submitter), enough to fill the free slots with any of them
+        List<ProcessScheduler.Candidate> candidates = jobQueue.fetchCandidates(slotsAvailable,
+                dynamicConfig.getExecutorConfig().getSubmitterColumn(), node.getServedTypes(), dynamicConfig.hasRetries());
+        if (candidates.isEmpty()) {
+            backlog = pendingRunsLeft;
+            return started;
+        }
+        List<ProcessScheduler.Candidate> selected = ProcessScheduler.select(candidates, slotsAvailable,
+                runningByType, runningBySubmitter, dynamicConfig::findProcess, node::getMaxConcurrent, budget);
+        if (selected.isEmpty()) {
+            Logger.debug("Waiting processes are limited by max_concurrent of their types or by the resource budget. Skipping.");
+            backlog = true;
+            return started;
+        }
+
+        ExecutorEvents.Claim claimEvent = new ExecutorEvents.Claim();
+        claimEvent.begin();
+        List<JobQueue.ClaimedJob> claimedProcesses = claimProcesses(selected);
+        claimEvent.selected = selected.size();
+        claimEvent.claimed = claimedProcesses.size();
+        claimEvent.commit();
+        //with as many candidates as slots, a type (or submitter) may have more waiting processes than were fetched
+        backlog = candidates.size() > claimedProcesses.size() || candidates.size() >= slotsAvailable || pendingRunsLeft;
+        long claimedNanos = System.nanoTime();
+        for (JobQueue.ClaimedJob claimed : claimedProcesses) {
+            launchProcess(claimed.getId(), claimed.getType(), claimed.getSubmitter(), claimed.getInputData(), claimed.getCreated(),
+                    claimed.getAttempt(), claimedNanos);
+        }
+        return started + claimedProcesses.size();
+    }
+
+    /**
+     * Starts the processes to be run again after waiting for an identical process (see {@link #awaitIdentical}),
+     * in the order they were claimed, as long as they fit into the free slots, max_concurrent of their types
+     * and the resource budget. The budget is reserved for the first one that does not fit, see {@link ProcessScheduler}.
+     *
+     * @return number of started processes
+     */
+    private int startPendingRuns(int slots, Map<String, Integer> runningByType, Map<String, Integer> runningBySubmitter,
+                                 ProcessScheduler.Budget budget) {
+        int started = 0;
+        boolean reserved = false;
+        Iterator<PendingRun> it = pendingRuns.iterator();
+        while (it.hasNext() && started < slots) {
+            PendingRun pending = it.next();
+            ProcessWrapper pw = pending.pw;
+            if (pw.cancellationToken.isCancelled()) {
+                it.remove(); //finished by its registration
+                pending.registration.close();
+                continue;
+            }
+            Integer maxConcurrent = node.getMaxConcurrent(pw.type);
+            if (maxConcurrent != null && runningByType.getOrDefault(pw.type, 0) >= maxConcurrent) {
+                continue;
+            }
+            if (budget != null && !budget.fits(pw.cost)) {
+                if (reserved) {
+                    continue;
+                }
+                budget.reserve(pw.cost);
+                reserved = true;
+                if (!budget.fitsReservation()) {
+                    continue;
                 }
+                budget.reserve(null); //alone on the idle executor
             }
+            it.remove();
+            pending.registration.close();
+            runningByType.merge(pw.type, 1, Integer::sum);
+            if (pw.submitter != null) {
+                runningBySubmitter.merge(pw.submitter, 1, Integer::sum);
+            }
+            if (budget != null) {
+                budget.take(pw.cost);
+            }
+            pw.waiting = false;
+            pw.future = processThreads.submit(pending.run, pw.executionMode);
+            started++;
+        }
+        return started;
+    }
+
+    /**
+     * Checks the current heap usage against heap_usage_watermark, so that a new process is not started
+     * when the running ones already use most of the heap.
+     */
+    private boolean heapUsageAboveWatermark() {
+        double watermark = dynamicConfig.getExecutorConfig().getHeapUsageWatermark();
+        if (watermark <= 0) {
+            return false;
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        if (heap.getMax() <= 0) {
+            return false; //max heap not defined
         }
+        double usage = (double) heap.getUsed() / heap.getMax();
+        if (usage > watermark) {
+            Logger.warning(String.format("Heap usage %.0f %% is above the watermark %.0f %%. Skipping.", usage * 100, watermark * 100));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Claims the selected processes (see {@link JobQueue#claim(List, Instant, boolean)}) and returns them in the order
+     * decided by the scheduler.
+     */
+    private List<JobQueue.ClaimedJob> claimProcesses(List<ProcessScheduler.Candidate> selected) throws SQLException {
+        Map<UUID, Integer> order = new HashMap<>();
+        for (ProcessScheduler.Candidate candidate : selected) {
+            order.put(candidate.getId(), order.size());
+        }
+        Instant leaseExpires = leaseDurationSeconds > 0 ? Instant.now().plusSeconds(leaseDurationSeconds) : null;
+        List<JobQueue.ClaimedJob> claimed = new ArrayList<>(jobQueue.claim(selected, leaseExpires, dynamicConfig.hasRetries()));
+        claimed.sort(Comparator.comparing(c -> order.get(c.getId()))); //start in the order decided by the scheduler
+        if (!claimed.isEmpty()) {
+            Logger.debug(() -> "Claimed " + claimed.size() + " process(es)");
+        }
+        return claimed;
     }
 
-    private void launchProcess(UUID id, String type, String params) throws Exception {
-        AtomicBoolean cancelRequested = new AtomicBoolean(false);
+    private void launchProcess(UUID id, String type, String submitter, String params, Timestamp created, int attempt, long claimedNanos) throws Exception {
+        DynamicConfig.Process definition = dynamicConfig.findProcess(type);
+        DynamicConfig.Cost cost = definition == null ? new DynamicConfig.Cost() : definition.getCost();
+        DynamicConfig.ExecutionMode executionMode = definition == null || definition.getExecutionMode() == null
+                ? dynamicConfig.getExecutorConfig().getExecutionMode() : definition.getExecutionMode();
+        Integer maxRuntime = definition == null ? null : definition.getMaxRuntime();
+        DynamicConfig.RetryPolicy retryPolicy = definition == null ? null : definition.getRetry();
+        ProcessWrapper pw = new ProcessWrapper(type, submitter, created, cost, ProcessThreads.resolve(executionMode), attempt, retryPolicy);
         Runnable task = () -> {
+            if (!pw.markStarted()) {
+                return; //canceled and given up on while waiting for a thread
+            }
+            ExecutorEvents.ProcessRun runEvent = new ExecutorEvents.ProcessRun();
+            runEvent.id = id.toString();
+            runEvent.type = type;
+            runEvent.attempt = attempt;
+            ProcessState finalState = ProcessState.FAILED;
+            Throwable error = null;
+            boolean retried = false;
+            ScheduledFuture<?> deadlineTimer = null;
             try {
-                log("Launching process: " + id + ", type: " + type);
+                Logger.info("Launching process: " + id + ", type: " + type + (attempt > 1 ? ", attempt: " + attempt : ""));
                 Path jobDir = Paths.get(Config.instanceOf().getProcessExecutionDir(), id.toString());
                 jobDir.toFile().mkdirs(); // Ensure the job directory exists
                 File processLogFile = jobDir.resolve("output.log").toFile();
                 File processDefinitionDir = Config.Utils.getExistingReadableDir(Config.instanceOf().getProcessesDefinitionDir());
-                File configFile = new File(processDefinitionDir, type + ".config");
-                if (!configFile.exists()) {
-                    configFile = null; //no config file provided
-                } else {
-                    log("Using config file: " + configFile.getAbsolutePath());
+                File typeConfigFile = new File(processDefinitionDir, type + ".config");
+                File configFile = typeConfigFile.exists() ? typeConfigFile : null; //null if no config file provided
+                if (configFile != null) {
+                    Logger.debug(() -> "Using config file: " + typeConfigFile.getAbsolutePath());
+                }
+                restoreCheckpoint(id, jobDir.toFile());
+                Instant deadline = null;
+                if (maxRuntime != null) {
+                    deadline = Instant.now().plusSeconds(maxRuntime);
+                    deadlineTimer = scheduleWatchdog(() -> exceededMaxRuntime(id, pw, maxRuntime), maxRuntime);
                 }
+                SimpleProcessContext context = new SimpleProcessContext(id, type, params, processLogFile, jobDir.toFile(), configFile,
+                        pw.cancellationToken, deadline);
+                progressWriter.track(context);
+                //loaded right before running, the class cache lease of the process is released only by its run(...)
                 Process process;
                 try {
-                    process = ProcessFactory.load(type);
+                    process = ProcessFactory.load(type, cancelGracePeriodSeconds);
                 } catch (Exception e) {
                     process = new UndefinedProcess(e.getMessage());
                 }
-                process.run(id, type, params, processLogFile, jobDir.toFile(), configFile, cancelRequested);
-                if (cancelRequested.get() || Thread.currentThread().isInterrupted()) {
-                    updateFinalProcessState(id, ProcessState.CANCELED);
+                Metrics.CLAIM_TO_START_SECONDS.observeSince(claimedNanos, type);
+                runEvent.begin();
+                process.run(context);
+                if (pw.cancellationToken.isCancelled() || Thread.currentThread().isInterrupted()) {
+                    finalState = pw.getCanceledState();
                 } else {
-                    updateFinalProcessState(id, ProcessState.COMPLETED);
+                    finalState = ProcessState.COMPLETED;
+                    deleteCheckpoint(id, jobDir.toFile());
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
-                updateFinalProcessState(id, ProcessState.CANCELED);
+                finalState = pw.getCanceledState();
             } catch (Throwable e) {
-                e.printStackTrace();
-                updateFinalProcessState(id, ProcessState.FAILED);
+                if (pw.cancellationToken.isCancelled()) {
+                    //e.g. an aborted request, the process did not fail on its own
+                    Logger.info("Process " + id + " (type: " + type + ") ended by cancellation: " + e);
+                    finalState = pw.getCanceledState();
+                } else {
+                    Logger.error("Process " + id + " (type: " + type + ") failed", e);
+                    finalState = ProcessState.FAILED;
+                    error = e;
+                }
             } finally {
-                runningProcesses.remove(id);
+                if (deadlineTimer != null) {
+                    deadlineTimer.cancel(false);
+                }
+                if (pw.finish()) {
+                    progressWriter.untrack(id);
+                    retried = retry(id, pw, error);
+                    if (!retried) {
+                        updateFinalProcessState(id, pw, finalState, error);
+                    }
+                    pw.completed = finalState == ProcessState.COMPLETED;
+                    runningProcesses.remove(id);
+                } else {
+                    //given up on after cancel_grace_period, the final state was already written
+                    Logger.info("Process " + id + " (type: " + type + ") stopped after its slot was freed");
+                    if (pw.executionMode == DynamicConfig.ExecutionMode.PLATFORM) {
+                        processThreads.abandonedEnded();
+                    }
+                }
+                runEvent.outcome = retried ? RETRIED : finalState.name();
+                runEvent.commit();
+                if (backlog) {
+                    wakeUp();
+                }
             }
         };
 
-        Future<?> future = executor.submit(task);
-        runningProcesses.put(id, new ProcessWrapper(future, cancelRequested));
+        Integer resultCacheTtl = definition == null ? null : definition.getResultCacheTtl();
+        Runnable run = resultCacheTtl == null ? task : () -> runCached(id, pw, params, definition, resultCacheTtl, task);
+
+        //register before submitting, a quick process could otherwise finish (and unregister) before being registered
+        runningProcesses.put(id, pw);
+        pw.future = processThreads.submit(run, executionMode);
     }
 
-    private void checkForKillRequests(Connection conn) throws SQLException {
-        log("Checking for kill requests...");
-        String sql = "SELECT dtd_id FROM dtd_kill_request";
-        try (PreparedStatement ps = conn.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) {
-                UUID processId = UUID.fromString(rs.getString("dtd_id"));
-                ProcessWrapper pw = runningProcesses.get(processId);
-                if (pw != null) {
-                    log("Cancelling process: " + processId);
-                    pw.cancelRequested.set(true);
-                    pw.future.cancel(true);
-                    deleteKillRequest(conn, processId);
+    /**
+     * Runs a process of a type with result_cache_ttl, unless a process with the same result key completed within
+     * the ttl (its outputs are reused) or is running on this executor (the process waits for it), see {@link ResultCache}.
+     */
+    private void runCached(UUID id, ProcessWrapper pw, String params, DynamicConfig.Process definition, int ttl, Runnable task) {
+        if (!pw.markStarted()) {
+            return; //canceled and given up on while waiting for a thread
+        }
+        String key;
+        try {
+            key = resultCache.key(pw.type, params, ProcessFactory.findJar(definition));
+        } catch (IOException | RuntimeException e) {
+            Logger.warning("Result of process " + id + " (type: " + pw.type + ") is not cached: " + e.getMessage());
+            task.run();
+            return;
+        }
+        try {
+            UUID completedId = jobQueue.findCompletedResult(pw.type, key, Instant.now().minusSeconds(ttl));
+            if (completedId != null && completeWithResult(id, pw, completedId, "hit")) {
+                return;
+            }
+            jobQueue.setResultKey(id, key);
+            resultCacheFailing = false;
+        } catch (SQLException e) {
+            //the process runs anyway (e.g. before sql/dtd_result_cache.sql is applied)
+            if (!resultCacheFailing) {
+                Logger.warning("Failed to look up or store the result key of process " + id + ": " + e.getMessage());
+            }
+            resultCacheFailing = true;
+        }
+        CompletableFuture<UUID> run = new CompletableFuture<>();
+        CompletableFuture<UUID> running = resultCache.join(key, run);
+        if (running != null) {
+            awaitIdentical(id, pw, running, () -> runCached(id, pw, params, definition, ttl, task));
+            return;
+        }
+        //a canceled process may not stop at all, the waiting ones must not wait for it
+        CancellationToken.Registration registration = pw.cancellationToken.onCancel(() -> resultCache.leave(key, run, null));
+        UUID completedId = null;
+        try {
+            Metrics.RESULT_CACHE.inc(pw.type, "miss");
+            task.run();
+            completedId = pw.completed ? id : null;
+        } finally {
+            registration.close();
+            resultCache.leave(key, run, completedId);
+        }
+    }
+
+    /**
+     * Releases the thread (and the slot) of a process until the identical process it joined ends. The process is then
+     * completed with the result of that one, or, if that one did not complete, run again through the cache once
+     * the loop admits it like a newly claimed process (see {@link #startPendingRuns}).
+     */
+    private void awaitIdentical(UUID id, ProcessWrapper pw, CompletableFuture<UUID> running, Runnable runAgain) {
+        Logger.info("Process " + id + " (type: " + pw.type + ") waits for an identical process running on this executor");
+        pw.waiting = true;
+        wakeUp(); //its slot is free meanwhile
+        CancellationToken.Registration registration = pw.cancellationToken.onCancel(() -> {
+            if (pw.finish()) {
+                updateFinalProcessState(id, pw, pw.getCanceledState(), null);
+                runningProcesses.remove(id);
+            }
+        });
+        running.whenComplete((completedId, e) -> {
+            if (pw.cancellationToken.isCancelled()) {
+                registration.close();
+                return;
+            }
+            if (completedId == null) {
+                pendingRuns.add(new PendingRun(pw, registration, runAgain));
+                wakeUp();
+                return;
+            }
+            //copying the outputs takes a thread for a moment, but no slot
+            pw.future = processThreads.submit(() -> {
+                if (completeWithResult(id, pw, completedId, "coalesced")) {
+                    registration.close();
+                } else {
+                    pendingRuns.add(new PendingRun(pw, registration, runAgain));
+                    wakeUp();
                 }
+            }, pw.executionMode);
+        });
+    }
+
+    /**
+     * Completes the process with the outputs of a completed process with the same result key.
+     *
+     * @return false if the outputs could not be reused (e.g. the job directory was deleted), the process must run then
+     */
+    private boolean completeWithResult(UUID id, ProcessWrapper pw, UUID completedId, String result) {
+        try {
+            resultCache.copyOutputs(completedId, id);
+        } catch (IOException e) {
+            Logger.warning("Cannot reuse result of process " + completedId + " for process " + id + ": " + e.getMessage());
+            return false;
+        }
+        if (pw.finish()) {
+            Logger.info("Process " + id + " (type: " + pw.type + ") completed with the result of process " + completedId);
+            Metrics.RESULT_CACHE.inc(pw.type, result);
+            updateFinalProcessState(id, pw, ProcessState.COMPLETED, null);
+            runningProcesses.remove(id);
+            if (backlog) {
+                wakeUp();
             }
         }
+        return true;
+    }
+
+    /**
+     * Truncates the outputs of a DTD run again (requeued or retried) to its last checkpoint, if the process saved one,
+     * so that the process continues from it. See {@link Checkpoint}.
+     */
+    private static void restoreCheckpoint(UUID id, File jobDir) {
+        try {
+            Checkpoint checkpoint = Checkpoint.restore(jobDir);
+            if (checkpoint != null) {
+                Logger.info("Resuming process " + id + " from its checkpoint of " + checkpoint.getCreated() + " (outputs " + checkpoint.getOutputs() + ")");
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.warning("Ignoring unusable checkpoint of process " + id + ", starting from the beginning: " + e.getMessage());
+            deleteCheckpoint(id, jobDir);
+        }
+    }
+
+    /**
+     * Deletes the checkpoint of a completed process, so that it is not mistaken for an unfinished one.
+     */
+    private static void deleteCheckpoint(UUID id, File jobDir) {
+        try {
+            Checkpoint.delete(jobDir);
+        } catch (IOException e) {
+            Logger.warning("Failed to delete checkpoint of process " + id + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cancels a running process (flag, callbacks registered on its token and interrupt) and frees its slot
+     * after cancel_grace_period, even if the process ignores the cancellation.
+     */
+    private void cancelProcess(UUID id, ProcessWrapper pw, String reason) {
+        try {
+            if (!pw.cancellationToken.cancel(reason)) {
+                return; //already canceled
+            }
+        } catch (CancellationToken.CallbackException e) {
+            Logger.error("Process " + id + " (type: " + pw.type + "): " + e.getMessage(), e);
+        }
+        Future<?> f = pw.future;
+        if (f != null) {
+            f.cancel(true);
+        }
+        int gracePeriodSeconds = cancelGracePeriodSeconds;
+        scheduleWatchdog(() -> abandon(id, pw, gracePeriodSeconds), gracePeriodSeconds);
+    }
+
+    private void exceededMaxRuntime(UUID id, ProcessWrapper pw, int maxRuntime) {
+        Logger.warning("Process " + id + " (type: " + pw.type + ") exceeded max_runtime of " + maxRuntime + " s, cancelling it");
+        ExecutorEvents.Kill killEvent = new ExecutorEvents.Kill();
+        killEvent.source = "max_runtime";
+        killEvent.processIds = id.toString();
+        killEvent.count = 1;
+        killEvent.begin();
+        cancelProcess(id, pw, "max_runtime");
+        killEvent.commit();
+    }
+
+    /**
+     * Frees the slot of a canceled process that did not stop within the grace period. The final state is written
+     * right away, the thread of the process (which cannot be stopped) gets a replacement in the pool.
+     */
+    private void abandon(UUID id, ProcessWrapper pw, int gracePeriodSeconds) {
+        if (!pw.abandon()) {
+            return; //stopped in time
+        }
+        if (pw.isThreadAbandoned()) {
+            Logger.warning("Process " + id + " (type: " + pw.type + ") did not stop within " + gracePeriodSeconds
+                    + " s after being canceled (" + pw.cancellationToken.getReason() + "), freeing its slot");
+            if (pw.executionMode == DynamicConfig.ExecutionMode.PLATFORM) {
+                processThreads.abandoned();
+            }
+        }
+        progressWriter.untrack(id);
+        updateFinalProcessState(id, pw, pw.getCanceledState(), null);
+        runningProcesses.remove(id);
+        wakeUp();
+    }
+
+    private ScheduledFuture<?> scheduleWatchdog(Runnable task, long delaySeconds) {
+        return watchdog.schedule(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Logger.error("Watchdog task failed", e);
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private static ScheduledThreadPoolExecutor createWatchdog() {
+        ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "dtd-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.setRemoveOnCancelPolicy(true);
+        return watchdog;
+    }
+
+    /**
+     * Looks up kill requests only for the processes running on this executor.
+     */
+    private void checkForKillRequests() throws SQLException {
+        if (runningProcesses.isEmpty()) {
+            return;
+        }
+        Logger.debug("Checking for kill requests...");
+        List<UUID> processIds = jobQueue.findKillRequests(runningProcesses.keySet());
+        if (!processIds.isEmpty()) {
+            cancelProcesses(processIds, "kill_request");
+        }
     }
 
-    private void deleteKillRequest(Connection conn, UUID processId) throws SQLException {
-        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM dtd_kill_request WHERE dtd_id = ?")) {
-            ps.setObject(1, processId);
-            ps.executeUpdate();
+    /**
+     * Every third of the lease duration renews the leases of all processes running on this executor (in one UPDATE)
+     * and reclaims processes of other executors whose lease expired.
+     */
+    private void renewLeases() throws SQLException {
+        if (leaseDurationSeconds <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastLeaseRenewal < leaseDurationSeconds * 1000L / 3) {
+            return;
         }
+        lastLeaseRenewal = now;
+
+        Set<UUID> leasedIds = new HashSet<>(runningProcesses.keySet());
+        //a finished process is still claimed until its final state is written, another executor would reclaim it otherwise
+        leasedIds.addAll(finalStateWriter.getPendingIds());
+        if (!leasedIds.isEmpty()) {
+            Set<UUID> renewed = jobQueue.renewLeases(leasedIds, Instant.ofEpochMilli(now + leaseDurationSeconds * 1000L));
+            Logger.debug(() -> "Renewed lease of " + renewed.size() + " running or finishing process(es)");
+            for (UUID processId : leasedIds) {
+                ProcessWrapper pw = runningProcesses.get(processId);
+                if (!renewed.contains(processId) && pw != null && pw.future != null && !pw.future.isDone()) {
+                    //the lease expired (e.g. the database was not reachable) and the process was reclaimed, its new state is kept
+                    Logger.warning("Lease of process " + processId + " lost, cancelling it");
+                    ExecutorEvents.Kill killEvent = new ExecutorEvents.Kill();
+                    killEvent.source = "lease_lost";
+                    killEvent.processIds = processId.toString();
+                    killEvent.count = 1;
+                    killEvent.begin();
+                    cancelProcess(processId, pw, "lease_lost");
+                    killEvent.commit();
+                }
+            }
+        }
+        //processes of other executors that stopped renewing their lease, requeued or failed by on_lease_expired of the type
+        List<String> requeuedTypes = new ArrayList<>();
+        for (DynamicConfig.Process process : dynamicConfig.getProcesses()) {
+            if (process.getOnLeaseExpired() == DynamicConfig.LeaseExpiredPolicy.REQUEUE) {
+                requeuedTypes.add(process.getType());
+            }
+        }
+        jobQueue.reclaimExpiredLeases(requeuedTypes, Instant.ofEpochMilli(now));
     }
 
-    private void updateProcessState(Connection conn, UUID id, ProcessState state, Timestamp startedAt) throws SQLException {
-        try (PreparedStatement ps = conn.prepareStatement("UPDATE dtd SET state = ?, started = ?, last_modified = ? WHERE id = ?")) {
-            ps.setString(1, state.name());
-            ps.setTimestamp(2, startedAt);
-            ps.setTimestamp(3, startedAt);
-            ps.setObject(4, id);
-            ps.executeUpdate();
+    /**
+     * Counts the CREATED processes for the metrics, only when the metrics endpoint is enabled.
+     */
+    private void updateQueueDepth() throws SQLException {
+        if (Config.instanceOf().getMetricsPort() <= 0) {
+            return;
         }
+        Metrics.QUEUE_DEPTH.set(jobQueue.countWaiting());
     }
 
-    private void updateFinalProcessState(UUID id, ProcessState state) {
-        Timestamp now = Timestamp.from(Instant.now());
-        try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement("UPDATE dtd SET state = ?, finished = ?, last_modified = ? WHERE id = ?")) {
-            ps.setString(1, state.name());
-            ps.setTimestamp(2, now);
-            ps.setTimestamp(3, now);
-            ps.setObject(4, id);
-            ps.executeUpdate();
+    /**
+     * Registers this executor with its capacity, load and served types in table dtd_executor, at most once per
+     * polling interval, and removes registrations of executors that stopped sending heartbeats.
+     */
+    private void updateRegistration() {
+        long now = System.currentTimeMillis();
+        if (now - lastRegistration < pollIntervalSeconds * 1000L) {
+            return;
+        }
+        lastRegistration = now;
+        try {
+            jobQueue.register(new JobQueue.ExecutorRegistration(Config.EXECUTOR_VERSION, node.getServedTypes(),
+                    node.getServedTags(), maxConcurrentProcesses, runningProcesses.size(), startedAt));
+            if (now - lastRegistrationCleanup >= killRequestCleanupIntervalSeconds * 1000L) {
+                lastRegistrationCleanup = now;
+                //an executor is registered again with its next heartbeat, so a generous timeout only keeps dead ones longer
+                long staleAfterMs = STALE_REGISTRATION_POLLS * maxPollIntervalSeconds * 1000L;
+                int deleted = jobQueue.deleteStaleRegistrations(Instant.ofEpochMilli(now - staleAfterMs));
+                if (deleted > 0) {
+                    Logger.info("Deleted " + deleted + " registration(s) of executors without a heartbeat");
+                }
+            }
+            registrationFailed = false;
         } catch (SQLException e) {
-            e.printStackTrace();
+            //registration is informative, the executor keeps working without it (e.g. before sql/dtd_executor_registry.sql is applied)
+            if (!registrationFailed) {
+                Logger.warning("Failed to register the executor: " + e.getMessage());
+            }
+            registrationFailed = true;
+        }
+    }
+
+    private void deregister() {
+        try {
+            jobQueue.deregister();
+        } catch (SQLException | RuntimeException e) {
+            Logger.debug(() -> "Failed to deregister the executor: " + e.getMessage());
         }
     }
 
-    private Connection getConnection() throws SQLException {
-        Config config = Config.instanceOf();
-        String url = "jdbc:postgresql://" + config.getDbHost() + ":" + config.getDbPort() + "/" + config.getDbDatabase();
-        log("Connecting to database: " + url);
-        //log("Using user: " + config.getDbUser() + " and password: " + config.getDbPassword());
-        return DriverManager.getConnection(url, config.getDbUser(), config.getDbPassword());
+    /**
+     * Cancels the running processes with a kill request and deletes the requests.
+     *
+     * @param source how the kill requests were found (kill_request by polling, notification), the reason of the cancellation
+     */
+    private void cancelProcesses(List<UUID> processIds, String source) throws SQLException {
+        ExecutorEvents.Kill killEvent = new ExecutorEvents.Kill();
+        killEvent.begin();
+        for (UUID processId : processIds) {
+            ProcessWrapper pw = runningProcesses.get(processId);
+            if (pw != null) {
+                Logger.info("Cancelling process: " + processId + " (" + source + ")");
+                cancelProcess(processId, pw, source);
+            }
+        }
+        jobQueue.deleteKillRequests(processIds);
+        killEvent.source = source;
+        killEvent.processIds = processIds.toString();
+        killEvent.count = processIds.size();
+        killEvent.commit();
+    }
+
+    /**
+     * Deletes kill requests of processes that are already finished (or do not exist anymore),
+     * so that the kill request table does not grow with requests nobody is going to handle.
+     */
+    private void cleanupStaleKillRequests() throws SQLException {
+        long now = System.currentTimeMillis();
+        if (now - lastKillRequestCleanup < killRequestCleanupIntervalSeconds * 1000L) {
+            return;
+        }
+        lastKillRequestCleanup = now;
+        int deleted = jobQueue.deleteStaleKillRequests();
+        if (deleted > 0) {
+            Logger.info("Deleted " + deleted + " stale kill request(s)");
+        }
+    }
+
+    /**
+     * Requeues a failed process for its next attempt with the backoff of its retry policy, if the failure is retryable
+     * and attempts are left. The process then waits in the queue (not_before), not in a thread of the executor.
+     *
+     * @return true if the process was requeued
+     */
+    private boolean retry(UUID id, ProcessWrapper pw, Throwable error) {
+        DynamicConfig.RetryPolicy policy = pw.retryPolicy;
+        if (policy == null || error == null || !policy.shouldRetry(pw.attempt, ForkedProcessException.classNames(error))) {
+            return false;
+        }
+        long backoffSeconds = policy.getBackoffSeconds(pw.attempt);
+        Timestamp notBefore = Timestamp.from(Instant.now().plusSeconds(backoffSeconds));
+        Logger.info("Process " + id + " (type: " + pw.type + ") failed in attempt " + pw.attempt + " of " + policy.getMaxAttempts()
+                + ", retrying in " + backoffSeconds + " s");
+        Metrics.PROCESSES_RETRIED.inc(pw.type);
+        finalStateWriter.submit(id, ProcessState.CREATED, new JobQueue.Attempt(pw.attempt, pw.getStarted(), RETRIED, String.valueOf(error), notBefore));
+        return true;
+    }
+
+    private void updateFinalProcessState(UUID id, ProcessWrapper pw, ProcessState state, Throwable error) {
+        Metrics.PROCESSES_FINISHED.inc(pw.type, state.name());
+        if (pw.created != null) {
+            Metrics.END_TO_END_SECONDS.observe((System.currentTimeMillis() - pw.created.getTime()) / 1000.0, pw.type);
+        }
+        //the history of attempts is kept for the types that may be retried
+        JobQueue.Attempt attempt = pw.retryPolicy == null ? null
+                : new JobQueue.Attempt(pw.attempt, pw.getStarted(), state.name(), error == null ? null : String.valueOf(error), null);
+        finalStateWriter.submit(id, state, attempt);
+    }
+
+    /**
+     * A process waiting for admission to be run again, see {@link #awaitIdentical}.
+     */
+    private static final class PendingRun {
+        final ProcessWrapper pw;
+        // finishes the process if it is canceled meanwhile, closed when the process is started
+        final CancellationToken.Registration registration;
+        final Runnable run;
+
+        PendingRun(ProcessWrapper pw, CancellationToken.Registration registration, Runnable run) {
+            this.pw = pw;
+            this.registration = registration;
+            this.run = run;
+        }
     }
 
     private static class ProcessWrapper {
-        final Future<?> future;
-        final AtomicBoolean cancelRequested;
+        final String type;
+        final String submitter;
+        final Timestamp created;
+        final DynamicConfig.Cost cost;
+        final DynamicConfig.ExecutionMode executionMode;
+        final int attempt;
+        final DynamicConfig.RetryPolicy retryPolicy;
+        final CancellationToken cancellationToken = new CancellationToken();
+        volatile Future<?> future;
+        // waiting for an identical process (result_cache_ttl) without a thread and a slot
+        volatile boolean waiting = false;
+        volatile boolean completed = false;
+        private boolean started = false; // guarded by this
+        private Timestamp startedAt; // guarded by this
+        private boolean finished = false; // guarded by this
+        private boolean threadAbandoned = false; // guarded by this
+
+        ProcessWrapper(String type, String submitter, Timestamp created, DynamicConfig.Cost cost, DynamicConfig.ExecutionMode executionMode,
+                       int attempt, DynamicConfig.RetryPolicy retryPolicy) {
+            this.type = type;
+            this.submitter = submitter;
+            this.created = created;
+            this.cost = cost;
+            this.executionMode = executionMode;
+            this.attempt = attempt;
+            this.retryPolicy = retryPolicy;
+        }
+
+        /**
+         * @return false if the process must not run anymore (given up on before it got a thread)
+         */
+        synchronized boolean markStarted() {
+            started = true;
+            startedAt = Timestamp.from(Instant.now());
+            return !finished;
+        }
+
+        /**
+         * @return when the process got its thread, null if it did not
+         */
+        synchronized Timestamp getStarted() {
+            return startedAt;
+        }
+
+        /**
+         * Called when the process ended.
+         *
+         * @return true if the final state is to be written, false if the process was already given up on
+         */
+        synchronized boolean finish() {
+            boolean first = !finished;
+            finished = true;
+            return first;
+        }
+
+        /**
+         * Gives up on a canceled process that did not end.
+         *
+         * @return true if the final state is to be written, false if the process ended in the meantime
+         */
+        synchronized boolean abandon() {
+            if (finished) {
+                return false;
+            }
+            finished = true;
+            threadAbandoned = started;
+            return true;
+        }
+
+        /**
+         * @return true if the process was given up on while its thread was still running it
+         */
+        synchronized boolean isThreadAbandoned() {
+            return threadAbandoned;
+        }
 
-        ProcessWrapper(Future<?> future, AtomicBoolean cancelRequested) {
-            this.future = future;
-            this.cancelRequested = cancelRequested;
+        /**
+         * @return final state of the canceled process, FAILED when it exceeded max_runtime
+         */
+        ProcessState getCanceledState() {
+            return "max_runtime".equals(cancellationToken.getReason()) ? ProcessState.FAILED : ProcessState.CANCELED;
         }
     }
 
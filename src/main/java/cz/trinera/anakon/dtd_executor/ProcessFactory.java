@@ -1,50 +1,134 @@
 package cz.trinera.anakon.dtd_executor;
 
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ContextProcess;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.Process;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ProcessContext;
 import cz.trinera.anakon.dtd_executor.dtd_definitions.UndefinedProcess;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLClassLoader;
-import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ProcessFactory {
 
-    public static cz.trinera.anakon.dtd_executor.dtd_definitions.Process load(String type) throws Exception {
+    private static final ProcessClassCache CLASS_CACHE = new ProcessClassCache();
+    private static final ForkedJvmPool FORKED_JVMS = new ForkedJvmPool();
+
+    /**
+     * @param cancelGracePeriodSeconds time a canceled forked process gets to end before its child JVM is killed
+     */
+    public static Process load(String type, int cancelGracePeriodSeconds) throws Exception {
         File processDefinitionDir = Config.Utils.getExistingReadableDir(Config.instanceOf().getProcessesDefinitionDir());
-        List<DynamicConfig.Process> processDefinitions = loadProcessesFromDynamicConfig();
-        DynamicConfig.Process processDefinition = findProcess(type, processDefinitions);
+        DynamicConfig dynamicConfig = DynamicConfigProvider.instanceOf().get();
+        DynamicConfig.Process processDefinition = dynamicConfig.findProcess(type);
         if (processDefinition == null) {
             throw new RuntimeException("Definition for process '" + type + "' not found");
         }
 
         //we don't want to load all the jars in the directory and randomly pick classes from them
         //URL[] jarUrls = lookForExistingJars(processDefinitionDir);
+        File jarFile = findJar(processDefinitionDir, processDefinition);
+        Logger.debug(() -> "Loading process definition for type '" + type + "' from " + jarFile.getName());
+
+        DynamicConfig.ExecutorConfig executorConfig = dynamicConfig.getExecutorConfig();
+        ExecutorEvents.ClassLoad event = new ExecutorEvents.ClassLoad();
+        event.type = type;
+        event.jar = jarFile.getName();
+        event.className = processDefinition.getClassName();
+        event.isolation = processDefinition.getIsolation().name();
+        event.begin();
+        if (processDefinition.getIsolation() == DynamicConfig.Isolation.FORKED) {
+            //the class is loaded (and validated) by the child JVM
+            event.success = true;
+            event.commit();
+            return new ForkedProcess(FORKED_JVMS, jarFile, processDefinition.getClassName(),
+                    processDefinition.getJvmOptions(), executorConfig.getForkedWarmJvms(), cancelGracePeriodSeconds);
+        }
+        long start = System.nanoTime();
+        try {
+            Process process = load(jarFile, processDefinition.getClassName(),
+                    executorConfig.getClassCacheMaxJars(), executorConfig.getClassCacheIdleTimeout() * 1000L);
+            event.success = true;
+            return process;
+        } finally {
+            event.commit();
+            Metrics.CLASS_LOAD_SECONDS.observeSince(start, type);
+        }
+    }
+
+    /**
+     * @return jar of the process type (jar_name, TYPE.jar by default) in processes.definition.dir
+     */
+    static File findJar(DynamicConfig.Process processDefinition) throws IOException {
+        return findJar(Config.Utils.getExistingReadableDir(Config.instanceOf().getProcessesDefinitionDir()), processDefinition);
+    }
+
+    private static File findJar(File processDefinitionDir, DynamicConfig.Process processDefinition) {
+        String type = processDefinition.getType();
         String jarFileName = processDefinition.getJarName() == null ? type + ".jar" : processDefinition.getJarName();
-        System.out.println("Loading process definition for type '" + type + "' from " + jarFileName);
         File jarFile = new File(processDefinitionDir, jarFileName);
         if (!jarFile.exists() || !jarFile.isFile() || !jarFile.canRead()) {
             throw new RuntimeException("Jar file for process type '" + type + "' not found or not readable: " + jarFile.getAbsolutePath());
         }
+        return jarFile;
+    }
 
-        //load only the required jar
-        URL[] jarUrls = new URL[]{jarFile.toURI().toURL()};
-        ClassAndLoader cl = loadClass(jarUrls, processDefinition);
-        Class<?> cls = cl.cls;
-        URLClassLoader loader = cl.loader;
-        System.out.println("Process definition loaded: " + processDefinition.getClassName());
+    /**
+     * Loads the process class from the jar and returns the process ready to be run.
+     * The class loader is cached and shared by all runs of processes from the jar.
+     */
+    static Process load(File jarFile, String className, int classCacheMaxJars, long classCacheIdleTimeoutMs) throws Exception {
+        ProcessClassCache.Lease lease;
+        try {
+            lease = CLASS_CACHE.acquire(jarFile, className, classCacheMaxJars, classCacheIdleTimeoutMs);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(".jar for class not found: " + className, e);
+        }
+        try {
+            Class<?> cls = lease.getProcessClass();
+            Logger.debug(() -> "Process definition loaded: " + className);
+
+            RunMethod runMethod = RUN_METHODS.get(cls);
+            runMethod.validate(cls);
 
-        // create instance of process
-        Object processImplementationInstance = cls.getDeclaredConstructor().newInstance();
-        Method method = findRunMethod(cls);
+            // create instance of process
+            Object processImplementationInstance = cls.getDeclaredConstructor().newInstance();
 
-        return runProcess(processImplementationInstance, method, loader);
+            return runProcess(processImplementationInstance, runMethod, lease);
+        } catch (Exception | Error e) {
+            lease.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the idle pre-started child JVMs of forked processes.
+     */
+    public static void shutdownForkedJvms() {
+        FORKED_JVMS.shutdown();
+    }
+
+    /**
+     * Closes class loaders of process definition jars that have not been used for a long time.
+     */
+    public static void evictIdleClassLoaders() throws IOException {
+        DynamicConfig.ExecutorConfig executorConfig = DynamicConfigProvider.instanceOf().get().getExecutorConfig();
+        CLASS_CACHE.evict(executorConfig.getClassCacheMaxJars(), executorConfig.getClassCacheIdleTimeout() * 1000L);
+    }
+
+    /**
+     * Closes the class loaders of all jars not used by a running process, the next load of their classes starts cold.
+     */
+    static void clearClassCache() {
+        CLASS_CACHE.evict(0, 0);
     }
 
     private static URL[] lookForExistingJars(File processDefinitionDir) throws MalformedURLException {
@@ -57,90 +141,111 @@ public class ProcessFactory {
         return jarUrls;
     }
 
-    private static List<DynamicConfig.Process> loadProcessesFromDynamicConfig() throws IOException {
-        File dynamicConfigFile = Config.Utils.getExistingReadableFile(Config.instanceOf().getDynamicConfigFile());
-        DynamicConfig dynamicConfig = DynamicConfig.create(dynamicConfigFile);
-        return dynamicConfig.getProcesses();
-    }
-
-    private static DynamicConfig.Process findProcess(String processType, List<DynamicConfig.Process> processes) {
-        for (DynamicConfig.Process process : processes) {
-            if (process.getType().equals(processType)) {
-                return process;
-            }
+    /**
+     * How to invoke method run(...) of a process class. Resolved and validated once per class.
+     */
+    private static final ClassValue<RunMethod> RUN_METHODS = new ClassValue<RunMethod>() {
+        @Override
+        protected RunMethod computeValue(Class<?> cls) {
+            return RunMethod.resolve(cls);
         }
-        return null;
-    }
-
-    static final class ClassAndLoader {
-        final Class<?> cls;
-        final URLClassLoader loader;
-
-        ClassAndLoader(Class<?> cls, URLClassLoader loader) {
-            this.cls = cls;
-            this.loader = loader;
-        }
-    }
+    };
 
-    private static ClassAndLoader loadClass(URL[] jarUrls, DynamicConfig.Process process) {
-        URLClassLoader loader = new URLClassLoader(jarUrls,
-                cz.trinera.anakon.dtd_executor.dtd_definitions.Process.class.getClassLoader()
-        );
+    private static Method findRunMethod(Class<?> cls) throws NoSuchMethodException {
+        Method method;
         try {
-            Class<?> cls = Class.forName(process.getClassName(), true, loader);
-            return new ClassAndLoader(cls, loader);
-        } catch (ClassNotFoundException e) {
-            try {
-                loader.close();
-            } catch (IOException ignored) {
-            }
-            throw new RuntimeException(".jar for class not found: " + process.getClassName(), e);
+            method = cls.getMethod("run", ProcessContext.class);
+        } catch (NoSuchMethodException e) {
+            method = cls.getMethod(
+                    "run",
+                    UUID.class,
+                    String.class,
+                    String.class,
+                    File.class,
+                    File.class,
+                    File.class,
+                    AtomicBoolean.class
+            );
         }
-    }
-
-    private static Method findRunMethod(Class<?> cls) throws NoSuchMethodException {
-        Method method = cls.getMethod(
-                "run",
-                UUID.class,
-                String.class,
-                String.class,
-                File.class,
-                File.class,
-                File.class,
-                AtomicBoolean.class
-        );
         if (!Modifier.isPublic(method.getModifiers())) {
             throw new RuntimeException(cls.getName() + ": method run(...) is not public");
         }
         return method;
     }
 
-    private static cz.trinera.anakon.dtd_executor.dtd_definitions.Process runProcess(Object instance, Method method, URLClassLoader loader) {
-        return (id, type, inputData, logFile, outputDir, configFile, cancelRequested) -> {
+    private static Process runProcess(Object instance, RunMethod runMethod, ProcessClassCache.Lease lease) {
+        return (ContextProcess) context -> {
             Thread t = Thread.currentThread();
             ClassLoader prev = t.getContextClassLoader();
-            t.setContextClassLoader(loader);
+            t.setContextClassLoader(lease.getClassLoader());
             try {
-                method.invoke(instance, id, type, inputData, logFile, outputDir, configFile, cancelRequested);
-            } catch (IllegalAccessException e) {
-                throw new RuntimeException("Failed to invoke run on " + instance.getClass().getName(), e);
-            } catch (InvocationTargetException e) {
-                Throwable cause = e.getCause();
-                if (cause instanceof Exception) {
-                    throw (Exception) cause;
-                } else if (cause instanceof Error) {
-                    throw (Error) cause;
-                } else {
-                    throw new RuntimeException(cause);
-                }
+                runMethod.invoke(instance, context);
             } finally {
                 t.setContextClassLoader(prev);
-                try {
-                    loader.close();
-                } catch (IOException ignored) {
-                }
+                lease.release();
             }
         };
     }
 
+    private static final class RunMethod {
+        private static final MethodType RUN_TYPE = MethodType.methodType(void.class,
+                Object.class, UUID.class, String.class, String.class, File.class, File.class, File.class, AtomicBoolean.class);
+        private static final MethodType RUN_CONTEXT_TYPE = MethodType.methodType(void.class, Object.class, ProcessContext.class);
+
+        final boolean implementsProcess;
+        final MethodHandle handle;
+        final boolean takesContext;
+        final String error;
+
+        private RunMethod(boolean implementsProcess, MethodHandle handle, boolean takesContext, String error) {
+            this.implementsProcess = implementsProcess;
+            this.handle = handle;
+            this.takesContext = takesContext;
+            this.error = error;
+        }
+
+        static RunMethod resolve(Class<?> cls) {
+            //class from the jar implements the executor's Process interface (shared through the parent class loader)
+            if (Process.class.isAssignableFrom(cls)) {
+                return new RunMethod(true, null, false, null);
+            }
+            //duck typed class, just having the method run(ProcessContext) or run(...) with the right signature
+            try {
+                Method method = findRunMethod(cls);
+                boolean takesContext = method.getParameterCount() == 1;
+                MethodHandle handle = MethodHandles.publicLookup().unreflect(method).asType(takesContext ? RUN_CONTEXT_TYPE : RUN_TYPE);
+                return new RunMethod(false, handle, takesContext, null);
+            } catch (NoSuchMethodException e) {
+                return new RunMethod(false, null, false, "Method run(...) not found: " + e.getMessage());
+            } catch (IllegalAccessException | RuntimeException e) {
+                return new RunMethod(false, null, false, e.getMessage());
+            }
+        }
+
+        void validate(Class<?> cls) throws NoSuchMethodException {
+            if (error != null) {
+                throw new NoSuchMethodException(cls.getName() + ": " + error);
+            }
+        }
+
+        void invoke(Object instance, ProcessContext context) throws Exception {
+            if (implementsProcess) {
+                ((Process) instance).run(context);
+                return;
+            }
+            try {
+                if (takesContext) {
+                    handle.invokeExact(instance, context);
+                } else {
+                    handle.invokeExact(instance, context.getId(), context.getType(), context.getInputData(), context.getLogFile(),
+                            context.getOutputDir(), context.getConfigFile(), context.getCancelRequested());
+                }
+            } catch (Exception | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
 }
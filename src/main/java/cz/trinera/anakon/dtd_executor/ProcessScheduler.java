@@ -0,0 +1,287 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Decides which of the waiting (CREATED) processes should fill the free slots of the executor.
+ * <p>
+ * Process types with higher priority go first. Among types with the same priority, slots are shared in proportion
+ * to the weights of the types (weighted fair share): the next slot goes to the type with the lowest number of running
+ * and already selected processes divided by its weight. Types at their max_concurrent limit are skipped.
+ * If submitters are known, processes of one type are taken from the submitters in the same fair way.
+ * With a resource budget, a process is selected only if its cost fits into what is left of the budget,
+ * so lighter processes can still fill the slots that a heavy one would not fit into. So that heavy processes are not
+ * starved by lighter ones, what is left is reserved for the first process that does not fit (by priority, then
+ * the oldest one): others are selected only if they fit beside it. A process whose cost exceeds the whole budget
+ * is selected alone, once nothing is running on the executor.
+ */
+public class ProcessScheduler {
+
+    private ProcessScheduler() {
+    }
+
+    /**
+     * @param candidates         waiting processes, ordered by creation time
+     * @param slots              number of free slots
+     * @param runningByType      number of processes of each type running on this executor
+     * @param runningBySubmitter number of processes of each submitter running on this executor
+     * @param definitions        process definitions by type (null for unknown type)
+     * @param maxConcurrent      max_concurrent of each type on this executor (null if not limited)
+     * @param budget             resources left for new processes, null if not limited
+     * @return selected candidates, in the order they should be started
+     */
+    public static List<Candidate> select(List<Candidate> candidates, int slots,
+                                         Map<String, Integer> runningByType, Map<String, Integer> runningBySubmitter,
+                                         Function<String, DynamicConfig.Process> definitions,
+                                         Function<String, Integer> maxConcurrent, Budget budget) {
+        Map<String, TypeQueue> queues = new LinkedHashMap<>();
+        for (Candidate candidate : candidates) {
+            queues.computeIfAbsent(candidate.type, type -> new TypeQueue(type, definitions.apply(type), maxConcurrent.apply(type), runningByType.getOrDefault(type, 0)))
+                    .add(candidate);
+        }
+        Map<String, Integer> usedBySubmitter = new HashMap<>(runningBySubmitter);
+        TypeQueue reserved = budget == null ? null : reserveBudget(queues.values(), budget);
+
+        List<Candidate> selected = new ArrayList<>();
+        while (selected.size() < slots) {
+            TypeQueue best = null;
+            for (TypeQueue queue : queues.values()) {
+                if (queue.isEmpty() || queue.isAtLimit()) {
+                    continue;
+                }
+                if (budget != null && (queue == reserved ? !budget.fitsReservation() : !budget.fits(queue.cost))) {
+                    continue;
+                }
+                if (best == null || queue.compareTo(best) < 0) {
+                    best = queue;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            Candidate candidate = best.poll(usedBySubmitter);
+            if (budget != null) {
+                if (best == reserved) {
+                    budget.reserve(null);
+                    reserved = null;
+                }
+                budget.take(best.cost);
+            }
+            if (candidate.submitter != null) {
+                usedBySubmitter.merge(candidate.submitter, 1, Integer::sum);
+            }
+            selected.add(candidate);
+        }
+        return selected;
+    }
+
+    /**
+     * Reserves the budget for the first process that does not fit into it: of the type with the highest priority,
+     * then the oldest one. A reservation made by the caller (for a process claimed earlier) is kept.
+     *
+     * @return queue of the process, null if all processes fit or the budget was already reserved
+     */
+    private static TypeQueue reserveBudget(Collection<TypeQueue> queues, Budget budget) {
+        if (budget.hasReservation()) {
+            return null;
+        }
+        TypeQueue first = null;
+        for (TypeQueue queue : queues) {
+            if (queue.isEmpty() || queue.isAtLimit() || budget.fits(queue.cost)) {
+                continue;
+            }
+            if (first == null || queue.priority > first.priority
+                    || (queue.priority == first.priority && queue.oldest().before(first.oldest()))) {
+                first = queue;
+            }
+        }
+        if (first != null) {
+            budget.reserve(first.cost);
+        }
+        return first;
+    }
+
+    /**
+     * Resources not used by running processes. Limits set to 0 are not checked.
+     */
+    public static final class Budget {
+        private final boolean heapLimited;
+        private final boolean cpuLimited;
+        private long heapMbLeft;
+        private double cpuLeft;
+        private boolean idle;
+        private DynamicConfig.Cost reservation;
+
+        /**
+         * @param limit   resource_budget of the executor
+         * @param used    summed cost of the running processes
+         * @param running number of the running processes
+         */
+        public Budget(DynamicConfig.Cost limit, DynamicConfig.Cost used, int running) {
+            this.heapLimited = limit.getHeapMb() > 0;
+            this.cpuLimited = limit.getCpu() > 0;
+            this.heapMbLeft = (long) limit.getHeapMb() - used.getHeapMb();
+            this.cpuLeft = limit.getCpu() - used.getCpu();
+            this.idle = running == 0;
+        }
+
+        /**
+         * @return true if a process of the cost never fits into the limit, it can then only run alone
+         */
+        public static boolean exceeds(DynamicConfig.Cost cost, DynamicConfig.Cost limit) {
+            return (limit.getHeapMb() > 0 && cost.getHeapMb() > limit.getHeapMb())
+                    || (limit.getCpu() > 0 && cost.getCpu() > limit.getCpu() + 1e-9);
+        }
+
+        /**
+         * @return true if the cost fits into what is left, beside the reservation
+         */
+        boolean fits(DynamicConfig.Cost cost) {
+            long heapMb = cost.getHeapMb() + (reservation == null ? 0 : reservation.getHeapMb());
+            double cpu = cost.getCpu() + (reservation == null ? 0.0 : reservation.getCpu());
+            return (!heapLimited || heapMb <= heapMbLeft) && (!cpuLimited || cpu <= cpuLeft + 1e-9);
+        }
+
+        /**
+         * @return true if the reserved cost fits into what is left, or into the idle executor (even if it exceeds the limit)
+         */
+        boolean fitsReservation() {
+            return idle || ((!heapLimited || reservation.getHeapMb() <= heapMbLeft) && (!cpuLimited || reservation.getCpu() <= cpuLeft + 1e-9));
+        }
+
+        boolean hasReservation() {
+            return reservation != null;
+        }
+
+        /**
+         * @param cost of the process that the rest of the budget is kept for, null to cancel the reservation
+         */
+        void reserve(DynamicConfig.Cost cost) {
+            reservation = cost;
+        }
+
+        void take(DynamicConfig.Cost cost) {
+            heapMbLeft -= cost.getHeapMb();
+            cpuLeft -= cost.getCpu();
+            idle = false;
+        }
+    }
+
+    public static final class Candidate {
+        final UUID id;
+        final String type;
+        final String submitter;
+        final Timestamp created;
+
+        public Candidate(UUID id, String type, String submitter, Timestamp created) {
+            this.id = id;
+            this.type = type;
+            this.submitter = submitter;
+            this.created = created;
+        }
+
+        public UUID getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getSubmitter() {
+            return submitter;
+        }
+
+        public Timestamp getCreated() {
+            return created;
+        }
+    }
+
+    private static final class TypeQueue implements Comparable<TypeQueue> {
+        final String type;
+        final int priority;
+        final int weight;
+        final Integer maxConcurrent;
+        final DynamicConfig.Cost cost;
+        int used;
+        // waiting processes of the type by submitter, each ordered by creation time
+        final Map<String, Deque<Candidate>> bySubmitter = new LinkedHashMap<>();
+        int size = 0;
+
+        TypeQueue(String type, DynamicConfig.Process definition, Integer maxConcurrent, int running) {
+            this.type = type;
+            this.priority = definition == null ? 0 : definition.getPriority();
+            this.weight = definition == null ? 1 : Math.max(1, definition.getWeight());
+            this.maxConcurrent = maxConcurrent;
+            this.cost = definition == null ? new DynamicConfig.Cost() : definition.getCost();
+            this.used = running;
+        }
+
+        void add(Candidate candidate) {
+            bySubmitter.computeIfAbsent(candidate.submitter == null ? "" : candidate.submitter, s -> new ArrayDeque<>()).addLast(candidate);
+            size++;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean isAtLimit() {
+            return maxConcurrent != null && used >= maxConcurrent;
+        }
+
+        Timestamp oldest() {
+            Timestamp oldest = null;
+            for (Deque<Candidate> deque : bySubmitter.values()) {
+                if (!deque.isEmpty() && (oldest == null || deque.peekFirst().created.before(oldest))) {
+                    oldest = deque.peekFirst().created;
+                }
+            }
+            return oldest;
+        }
+
+        Candidate poll(Map<String, Integer> usedBySubmitter) {
+            Deque<Candidate> best = null;
+            int bestUsed = 0;
+            for (Map.Entry<String, Deque<Candidate>> entry : bySubmitter.entrySet()) {
+                Deque<Candidate> deque = entry.getValue();
+                if (deque.isEmpty()) {
+                    continue;
+                }
+                int submitterUsed = usedBySubmitter.getOrDefault(entry.getKey(), 0);
+                if (best == null || submitterUsed < bestUsed
+                        || (submitterUsed == bestUsed && deque.peekFirst().created.before(best.peekFirst().created))) {
+                    best = deque;
+                    bestUsed = submitterUsed;
+                }
+            }
+            size--;
+            used++;
+            return best.pollFirst();
+        }
+
+        @Override
+        public int compareTo(TypeQueue other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            // used / weight < other.used / other.weight, without division
+            long share = (long) used * other.weight;
+            long otherShare = (long) other.used * weight;
+            if (share != otherShare) {
+                return share < otherShare ? -1 : 1;
+            }
+            return oldest().compareTo(other.oldest());
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package cz.trinera.anakon.dtd_executor;
 
 public enum ProcessState {
-    CREATED, //never set to this by executor, only by anakon_backend
+    CREATED, //set by anakon_backend, by executor only when requeueing a process (lease expired, retry)
     RUNNING,
     COMPLETED,
     FAILED,
@@ -0,0 +1,130 @@
+package cz.trinera.anakon.dtd_executor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads running the processes.
+ * <p>
+ * Processes run either on a bounded pool of named platform threads, or on virtual threads (one per process)
+ * if the runtime supports them (JDK 21+). Virtual threads are created through reflection, so that the executor
+ * can still be built for and run on older runtimes, where the virtual mode falls back to the platform pool.
+ * Both kinds of threads are interrupted by {@code Future.cancel(true)}.
+ * <p>
+ * A platform thread still running a process the executor gave up on (see {@link #abandoned()}) does not count
+ * into the pool size, so that it does not hold back the processes started instead of it.
+ */
+class ProcessThreads {
+
+    private static final String THREAD_NAME_PREFIX = "dtd-process-";
+    private static final long PLATFORM_KEEP_ALIVE_SECONDS = 60;
+
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+
+    private final ThreadPoolExecutor platformPool;
+    private ExecutorService virtualExecutor;
+    private int platformPoolSize; // guarded by this
+    private int abandonedCount = 0; // guarded by this
+
+    /**
+     * @param platformPoolSize maximal number of platform threads, processes over the limit wait in the queue
+     */
+    ProcessThreads(int platformPoolSize) {
+        AtomicInteger counter = new AtomicInteger();
+        int size = Math.max(1, platformPoolSize);
+        this.platformPoolSize = size;
+        this.platformPool = new ThreadPoolExecutor(size, size, PLATFORM_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, THREAD_NAME_PREFIX + counter.incrementAndGet()));
+        this.platformPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads
+     */
+    static boolean isVirtualSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Resolves the configured mode to the one actually used on this runtime.
+     */
+    static DynamicConfig.ExecutionMode resolve(DynamicConfig.ExecutionMode mode) {
+        if (mode == DynamicConfig.ExecutionMode.PLATFORM || !isVirtualSupported()) {
+            return DynamicConfig.ExecutionMode.PLATFORM;
+        }
+        return DynamicConfig.ExecutionMode.VIRTUAL;
+    }
+
+    synchronized void setPlatformPoolSize(int platformPoolSize) {
+        this.platformPoolSize = Math.max(1, platformPoolSize);
+        resize();
+    }
+
+    /**
+     * Adds a thread to the pool for a process that keeps running after the executor gave up on it,
+     * {@link #abandonedEnded()} must follow when the process ends.
+     */
+    synchronized void abandoned() {
+        abandonedCount++;
+        resize();
+    }
+
+    synchronized void abandonedEnded() {
+        abandonedCount--;
+        resize();
+    }
+
+    private void resize() {
+        int size = platformPoolSize + abandonedCount;
+        if (size > platformPool.getMaximumPoolSize()) {
+            platformPool.setMaximumPoolSize(size);
+            platformPool.setCorePoolSize(size);
+        } else if (size < platformPool.getMaximumPoolSize()) {
+            platformPool.setCorePoolSize(size);
+            platformPool.setMaximumPoolSize(size);
+        }
+    }
+
+    synchronized Future<?> submit(Runnable task, DynamicConfig.ExecutionMode mode) {
+        if (resolve(mode) == DynamicConfig.ExecutionMode.VIRTUAL) {
+            if (virtualExecutor == null) {
+                virtualExecutor = newThreadPerTaskExecutor(VIRTUAL_THREAD_FACTORY);
+            }
+            return virtualExecutor.submit(task);
+        }
+        return platformPool.submit(task);
+    }
+
+    /**
+     * Executors.newThreadPerTaskExecutor(factory), available since JDK 21 (same as virtual threads).
+     */
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads not available", e);
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().name(THREAD_NAME_PREFIX + "v-", 1).factory(), or null if virtual threads are not supported.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, THREAD_NAME_PREFIX + "v-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package cz.trinera.anakon.dtd_executor;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.SimpleProcessContext;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persists the progress reported by running processes through their {@link SimpleProcessContext}.
+ * <p>
+ * Processes only update their context in memory. Every flushIntervalMs, a single writer thread collects the contexts
+ * whose progress changed since the last write and writes the latest progress of all of them in one batch, so a process
+ * reporting every record costs at most one update of its row per interval. The ETA is estimated from the percentage
+ * done and the time the process has been running. A failed write is not retried, the next interval writes
+ * the then latest progress.
+ */
+public class ProgressWriter implements AutoCloseable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long MIN_FLUSH_INTERVAL_MS = 100;
+    private static final long CLOSE_TIMEOUT_MS = 10_000;
+
+    private final JobQueue jobQueue;
+    private final Map<UUID, Tracked> tracked = new ConcurrentHashMap<>();
+    private final Thread writerThread;
+    private volatile long flushIntervalMs;
+    private volatile boolean closed = false;
+    private boolean failing = false; // accessed by the writer thread only
+
+    public ProgressWriter(JobQueue jobQueue, long flushIntervalMs) {
+        this.jobQueue = jobQueue;
+        configure(flushIntervalMs);
+        this.writerThread = new Thread(this::run, "dtd-progress-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public void configure(long flushIntervalMs) {
+        this.flushIntervalMs = Math.max(MIN_FLUSH_INTERVAL_MS, flushIntervalMs);
+    }
+
+    /**
+     * Starts persisting the progress of a process that is about to run.
+     */
+    public void track(SimpleProcessContext context) {
+        tracked.put(context.getId(), new Tracked(context, System.currentTimeMillis()));
+    }
+
+    /**
+     * Stops persisting the progress of a finished process, after its last change is written.
+     */
+    public void untrack(UUID id) {
+        Tracked t = tracked.get(id);
+        if (t != null) {
+            t.finished = true;
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushIntervalMs);
+            } catch (InterruptedException e) {
+                //closed, write what is left
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                //the thread must survive, otherwise progress of all processes would silently stop being written
+                if (!failing) {
+                    Logger.error("Progress writer failed", e);
+                }
+                failing = true;
+            }
+        }
+    }
+
+    private void flush() {
+        List<JobQueue.ProgressUpdate> updates = new ArrayList<>();
+        List<Tracked> written = new ArrayList<>();
+        List<Long> versions = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Tracked t : tracked.values()) {
+            boolean finished = t.finished; //read before the version, so that the last change is never missed
+            long version = t.context.getProgressVersion();
+            if (version != t.writtenVersion) {
+                try {
+                    updates.add(new JobQueue.ProgressUpdate(t.context.getId(), toJson(t, now), new Timestamp(now)));
+                    written.add(t);
+                    versions.add(version);
+                } catch (JsonProcessingException e) {
+                    Logger.warning("Failed to serialize progress of process " + t.context.getId() + ": " + e.getMessage());
+                }
+            }
+            if (finished) {
+                tracked.remove(t.context.getId());
+            }
+        }
+        if (updates.isEmpty()) {
+            return;
+        }
+        try {
+            jobQueue.updateProgress(updates);
+            for (int i = 0; i < written.size(); i++) {
+                written.get(i).writtenVersion = versions.get(i);
+            }
+            failing = false;
+        } catch (SQLException e) {
+            //progress is informative, keep it quiet while the database (or sql/dtd_progress.sql) is missing
+            if (!failing) {
+                Logger.warning("Failed to persist progress of " + updates.size() + " process(es): " + e.getMessage());
+            }
+            failing = true;
+        }
+    }
+
+    private static String toJson(Tracked t, long now) throws JsonProcessingException {
+        Map<String, Object> progress = t.context.getProgress();
+        Object percent = progress.get("percent");
+        if (percent instanceof Double) {
+            double percentDone = (Double) percent;
+            if (percentDone > 0 && percentDone < 100) {
+                long elapsedMs = now - t.startedMillis;
+                long remainingMs = (long) (elapsedMs * (100 - percentDone) / percentDone);
+                progress.put("eta", Instant.ofEpochMilli(now + remainingMs).toString());
+            }
+        }
+        return MAPPER.writeValueAsString(progress);
+    }
+
+    /**
+     * Writes the last changes and stops the writer thread (waiting up to CLOSE_TIMEOUT_MS).
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Tracked {
+        final SimpleProcessContext context;
+        final long startedMillis;
+        volatile boolean finished = false;
+        long writtenVersion = 0; // accessed by the writer thread only
+
+        Tracked(SimpleProcessContext context, long startedMillis) {
+            this.context = context;
+            this.startedMillis = startedMillis;
+        }
+    }
+}
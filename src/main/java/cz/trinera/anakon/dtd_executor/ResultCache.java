@@ -0,0 +1,193 @@
+package cz.trinera.anakon.dtd_executor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.Checkpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Memoization of results of process types with result_cache_ttl.
+ * <p>
+ * A process is identified by its result key: a digest of the type, the input data as canonical JSON (keys sorted,
+ * no whitespace) and the content of the jar of the type, so that a new version of the process never reuses results
+ * of the previous one. The key is stored with the process (dtd.result_key, see sql/dtd_result_cache.sql).
+ * A process whose key matches a process COMPLETED less than result_cache_ttl ago is completed right away with
+ * the outputs of that process, hard-linked (copied if the job directories are on different file systems)
+ * into its own job directory. A process whose key matches a process running on this executor waits for it
+ * without taking a slot or a thread (see {@link #join(String, CompletableFuture)}).
+ */
+class ResultCache {
+
+    static final String OUTPUT_LOG = "output.log";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    private final Path executionDir;
+    // runs of cacheable processes on this executor, completed with the id of the process when it ended (null if not COMPLETED)
+    private final Map<String, CompletableFuture<UUID>> inFlight = new ConcurrentHashMap<>();
+    private final Map<File, JarDigest> jarDigests = new ConcurrentHashMap<>();
+
+    ResultCache(Path executionDir) {
+        this.executionDir = executionDir;
+    }
+
+    /**
+     * @return hex SHA-256 of the type, the canonical input data and the jar content
+     * @throws IOException if the input data is not valid JSON or the jar cannot be read
+     */
+    String key(String type, String inputData, File jarFile) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(type.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(canonicalJson(inputData).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(jarDigest(jarFile).getBytes(StandardCharsets.UTF_8));
+        return hex(digest.digest());
+    }
+
+    /**
+     * @return the input data with the keys of all objects sorted and without whitespace, "null" for no input data
+     */
+    static String canonicalJson(String inputData) throws IOException {
+        if (inputData == null || inputData.trim().isEmpty()) {
+            return "null";
+        }
+        //a tree keeps the order of the keys, maps are sorted by ORDER_MAP_ENTRIES_BY_KEYS
+        Object value = MAPPER.treeToValue(MAPPER.readTree(inputData), Object.class);
+        return MAPPER.writeValueAsString(value);
+    }
+
+    /**
+     * Joins the run of a process with the same key running on this executor, or registers the caller's run.
+     *
+     * @param run completed by the caller through {@link #leave(String, CompletableFuture, UUID)} if registered
+     * @return run of the process with the same key, completed with its id when it ended (with null if it did not complete),
+     * null if there is no such process and the run of the caller was registered
+     */
+    CompletableFuture<UUID> join(String key, CompletableFuture<UUID> run) {
+        return inFlight.putIfAbsent(key, run);
+    }
+
+    /**
+     * Ends the run registered by {@link #join(String, CompletableFuture)}, processes waiting for it are then completed
+     * with its outputs (or run on their own). Only the first call for the run has an effect.
+     *
+     * @param completedId id of the process, null if it did not complete
+     */
+    void leave(String key, CompletableFuture<UUID> run, UUID completedId) {
+        inFlight.remove(key, run);
+        run.complete(completedId);
+    }
+
+    /**
+     * Links (or copies) the files of the job directory of the source process into the job directory of the target
+     * process, except its log and checkpoint. The log of the target refers to the source and contains a copy of its log.
+     *
+     * @throws IOException if the job directory of the source does not exist anymore or cannot be read
+     */
+    void copyOutputs(UUID sourceId, UUID targetId) throws IOException {
+        Path source = executionDir.resolve(sourceId.toString());
+        Path target = executionDir.resolve(targetId.toString());
+        if (!Files.isDirectory(source)) {
+            throw new IOException("Job directory of process " + sourceId + " does not exist anymore");
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(source)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        Files.createDirectories(target);
+        for (Path file : files) {
+            Path relative = source.relativize(file);
+            String name = relative.toString();
+            if (name.equals(OUTPUT_LOG) || name.startsWith(Checkpoint.FILE_NAME)) {
+                continue;
+            }
+            Path copy = target.resolve(relative);
+            Files.createDirectories(copy.getParent());
+            Files.deleteIfExists(copy);
+            try {
+                Files.createLink(copy, file);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(file, copy);
+            }
+        }
+        Path log = target.resolve(OUTPUT_LOG);
+        Files.write(log, ("Result reused from process " + sourceId + " (same type, input data and jar)\n")
+                .getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        Path sourceLog = source.resolve(OUTPUT_LOG);
+        if (Files.isRegularFile(sourceLog)) {
+            try (OutputStream out = Files.newOutputStream(log, StandardOpenOption.APPEND)) {
+                Files.copy(sourceLog, out);
+            }
+        }
+    }
+
+    /**
+     * @return hex SHA-256 of the jar content, computed again only when the jar changed (size or modification time)
+     */
+    private String jarDigest(File jarFile) throws IOException {
+        long lastModified = jarFile.lastModified();
+        long size = jarFile.length();
+        JarDigest cached = jarDigests.get(jarFile);
+        if (cached != null && cached.lastModified == lastModified && cached.size == size) {
+            return cached.digest;
+        }
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(jarFile.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        JarDigest computed = new JarDigest(lastModified, size, hex(digest.digest()));
+        jarDigests.put(jarFile, computed);
+        return computed.digest;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //required of every Java platform
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static final class JarDigest {
+        final long lastModified;
+        final long size;
+        final String digest;
+
+        JarDigest(long lastModified, long size, String digest) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+}
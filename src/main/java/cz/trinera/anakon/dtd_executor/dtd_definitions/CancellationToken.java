@@ -0,0 +1,177 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cancellation of a running process (kill request, max_runtime exceeded, executor shutdown).
+ * <p>
+ * Checking {@link #isCancelled()} between units of work is enough for processes that never block for long.
+ * Blocking calls that ignore interrupts should be replaced by their asynchronous variants awaited with
+ * {@link #await(CompletableFuture)}, or aborted by a callback registered with {@link #onCancel(Runnable)},
+ * so that a canceled process ends within seconds.
+ */
+public class CancellationToken {
+
+    private final AtomicBoolean flag;
+    private final List<Runnable> callbacks = new ArrayList<>(); // guarded by this
+    private boolean cancelled = false; // guarded by this
+    private volatile String reason; // written under this
+
+    public CancellationToken() {
+        this(new AtomicBoolean(false));
+    }
+
+    /**
+     * @param flag flag set on cancellation, shared with processes using the cancelRequested parameter of
+     *             {@link Process#run(java.util.UUID, String, String, java.io.File, java.io.File, java.io.File, AtomicBoolean)}
+     */
+    public CancellationToken(AtomicBoolean flag) {
+        this.flag = flag;
+    }
+
+    /**
+     * Cancels the process and runs the registered callbacks (in the calling thread), only the first call has an effect.
+     *
+     * @return true if this call canceled the process
+     * @throws CallbackException if a callback failed, thrown after the process was canceled and all callbacks ran
+     */
+    public boolean cancel(String reason) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            this.reason = reason;
+            toRun = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        flag.set(true);
+        CallbackException failure = null;
+        for (Runnable callback : toRun) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                //a failing callback must not prevent the others (nor the cancellation itself)
+                if (failure == null) {
+                    failure = new CallbackException(e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the process was canceled (also when only the shared flag was set)
+     */
+    public boolean isCancelled() {
+        return flag.get();
+    }
+
+    /**
+     * @return flag set on cancellation, passed to processes as cancelRequested
+     */
+    public AtomicBoolean getFlag() {
+        return flag;
+    }
+
+    /**
+     * @return why the process was canceled (e.g. kill_request, max_runtime), null if it was not canceled through the token
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @throws InterruptedException if the process was canceled, ends the process as CANCELED when not caught
+     */
+    public void throwIfCancelled() throws InterruptedException {
+        if (isCancelled()) {
+            throw new InterruptedException("Process canceled" + (reason == null ? "" : " (" + reason + ")"));
+        }
+    }
+
+    /**
+     * Registers a callback run on cancellation (e.g. aborting a pending request), right away if already canceled
+     * (its failure is then thrown from here). The callback must not block.
+     *
+     * @return registration to close when the callback is not needed anymore
+     */
+    public Registration onCancel(Runnable callback) {
+        synchronized (this) {
+            if (!cancelled) {
+                callbacks.add(callback);
+                return () -> {
+                    synchronized (CancellationToken.this) {
+                        callbacks.remove(callback);
+                    }
+                };
+            }
+        }
+        callback.run();
+        return () -> {
+        };
+    }
+
+    /**
+     * Waits for the future (e.g. from HttpClient.sendAsync) as the equivalent blocking call would, but cancels it
+     * and returns right away when the process is canceled or its thread interrupted.
+     *
+     * @throws IOException          if the future failed with an IOException or another checked exception
+     * @throws InterruptedException if the process was canceled
+     */
+    public <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        Registration registration = onCancel(() -> future.cancel(true));
+        try {
+            return future.get();
+        } catch (InterruptedException | CancellationException e) {
+            future.cancel(true);
+            throw new InterruptedException("Process canceled" + (reason == null ? "" : " (" + reason + ")"));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            registration.close();
+        }
+    }
+
+    /**
+     * Registered callback, closing it unregisters the callback.
+     */
+    @FunctionalInterface
+    public interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Failure of a callback run on cancellation, failures of further callbacks are suppressed by it.
+     */
+    public static final class CallbackException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CallbackException(RuntimeException cause) {
+            super("Cancellation callback failed: " + cause, cause);
+        }
+    }
+}
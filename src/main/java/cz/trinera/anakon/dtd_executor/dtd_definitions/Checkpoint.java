@@ -0,0 +1,178 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * State of a long-running process saved in its job directory (checkpoint.json), so that a DTD run again after
+ * a failure or a restart of the executor continues where it stopped instead of starting from the beginning.
+ * <p>
+ * Besides the state of the process (e.g. paging cursor and counters), the checkpoint records the sizes of the output
+ * files at the time it was saved. Restoring the checkpoint truncates the outputs to these sizes, dropping what
+ * the interrupted run wrote after its last checkpoint, so that the resumed run does not write it twice.
+ * The checkpoint file is replaced atomically after the outputs are synced to disk, so it never refers to data
+ * that may be lost.
+ */
+public class Checkpoint {
+
+    public static final String FILE_NAME = "checkpoint.json";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Data data;
+
+    private Checkpoint(Data data) {
+        this.data = data;
+    }
+
+    /**
+     * @return when the checkpoint was saved
+     */
+    public Instant getCreated() {
+        return data.created == null ? null : Instant.parse(data.created);
+    }
+
+    /**
+     * @return state of the process as saved (JSON object)
+     */
+    public Map<String, Object> getState() {
+        return data.state == null ? Collections.emptyMap() : Collections.unmodifiableMap(data.state);
+    }
+
+    /**
+     * @return state bound to the given class (e.g. with public fields named as the saved values)
+     */
+    public <T> T getState(Class<T> stateClass) {
+        return MAPPER.convertValue(getState(), stateClass);
+    }
+
+    /**
+     * @return sizes in bytes of the output files (relative to the job directory) when the checkpoint was saved
+     */
+    public Map<String, Long> getOutputs() {
+        return data.outputs == null ? Collections.emptyMap() : Collections.unmodifiableMap(data.outputs);
+    }
+
+    /**
+     * Reads the checkpoint of the job directory without touching the outputs.
+     *
+     * @return checkpoint, null if there is none
+     */
+    public static Checkpoint read(File jobDir) throws IOException {
+        Path file = jobDir.toPath().resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        return new Checkpoint(MAPPER.readValue(file.toFile(), Data.class));
+    }
+
+    /**
+     * Reads the checkpoint of the job directory and truncates the outputs to their checkpointed sizes.
+     * A checkpoint whose output is missing or shorter than recorded (e.g. compressed or deleted meanwhile) cannot
+     * be resumed from, it is deleted and the process starts from the beginning.
+     *
+     * @return checkpoint to resume from, null if there is none
+     */
+    public static Checkpoint restore(File jobDir) throws IOException {
+        Checkpoint checkpoint = read(jobDir);
+        if (checkpoint == null) {
+            return null;
+        }
+        for (Map.Entry<String, Long> output : checkpoint.getOutputs().entrySet()) {
+            File file = resolve(jobDir, output.getKey());
+            if (!file.isFile() || file.length() < output.getValue()) {
+                delete(jobDir);
+                return null;
+            }
+        }
+        for (Map.Entry<String, Long> output : checkpoint.getOutputs().entrySet()) {
+            File file = resolve(jobDir, output.getKey());
+            if (file.length() > output.getValue()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(output.getValue());
+                }
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Saves the state together with the current sizes of the output files. The process must flush (or close)
+     * its writers of these files first.
+     *
+     * @param state       JSON-serializable state (map or object with public fields) of the process
+     * @param outputFiles output files (relative to the job directory) the process appends to
+     * @return the saved checkpoint
+     */
+    public static Checkpoint write(File jobDir, Object state, String... outputFiles) throws IOException {
+        Data data = new Data();
+        data.created = Instant.now().toString();
+        data.state = MAPPER.convertValue(state, new TypeReference<Map<String, Object>>() {
+        });
+        data.outputs = new LinkedHashMap<>();
+        for (String outputFile : outputFiles) {
+            File file = resolve(jobDir, outputFile);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+                data.outputs.put(outputFile, channel.size());
+            }
+        }
+        Path target = jobDir.toPath().resolve(FILE_NAME);
+        Path temp = jobDir.toPath().resolve(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(MAPPER.writeValueAsBytes(data)));
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new Checkpoint(data);
+    }
+
+    /**
+     * Deletes the checkpoint, e.g. when the process completed.
+     */
+    public static void delete(File jobDir) throws IOException {
+        Files.deleteIfExists(jobDir.toPath().resolve(FILE_NAME));
+    }
+
+    private static File resolve(File jobDir, String outputFile) {
+        Path path = jobDir.toPath().resolve(outputFile).normalize();
+        if (!path.startsWith(jobDir.toPath().normalize())) {
+            throw new IllegalArgumentException("Output file outside of the job directory: " + outputFile);
+        }
+        return path.toFile();
+    }
+
+    /**
+     * Content of checkpoint.json.
+     */
+    private static class Data {
+        @JsonProperty("created")
+        String created;
+        @JsonProperty("state")
+        Map<String, Object> state;
+        @JsonProperty("outputs")
+        Map<String, Long> outputs;
+    }
+}
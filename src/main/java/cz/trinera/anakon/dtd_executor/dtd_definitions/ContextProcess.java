@@ -0,0 +1,24 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process implemented with a {@link ProcessContext} (progress reporting, parsed inputs) instead of the separate
+ * parameters of {@link Process#run(UUID, String, String, File, File, File, AtomicBoolean)}.
+ * <p>
+ * It can still be run through the old signature (e.g. from a main method or by an executor without ProcessContext),
+ * progress is then kept only in memory.
+ */
+@FunctionalInterface
+public interface ContextProcess extends Process {
+
+    @Override
+    void run(ProcessContext context) throws Exception;
+
+    @Override
+    default void run(UUID id, String type, String inputData, File logFile, File outputDir, File configFile, AtomicBoolean cancelRequested) throws Exception {
+        run(new SimpleProcessContext(id, type, inputData, logFile, outputDir, configFile, cancelRequested));
+    }
+}
@@ -6,10 +6,19 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Interface for a DTD process that can be executed by the executor.
+ * Processes reporting progress implement {@link ContextProcess} instead.
  */
 @FunctionalInterface
 public interface Process {
 
     void run(UUID id, String type, String inputData, File logFile, File outputDir, File configFile, AtomicBoolean cancelRequested) throws Exception;
 
+    /**
+     * Runs the process with the given context, the executor always calls this method.
+     */
+    default void run(ProcessContext context) throws Exception {
+        run(context.getId(), context.getType(), context.getInputData(), context.getLogFile(), context.getOutputDir(),
+                context.getConfigFile(), context.getCancelRequested());
+    }
+
 }
@@ -0,0 +1,114 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Everything a running process gets from the executor: its identity, parsed inputs, files, cancellation and a way
+ * to report progress.
+ * <p>
+ * Progress is cheap to report: the executor only keeps the latest values in memory and persists them to the database
+ * at a throttled rate (progress_flush_interval_ms), so a process may update it for every record it processes.
+ * Implementations are thread-safe.
+ */
+public interface ProcessContext {
+
+    UUID getId();
+
+    String getType();
+
+    /**
+     * @return inputs of the process as JSON (input_data of the DTD)
+     */
+    String getInputData();
+
+    /**
+     * @return inputs parsed from the JSON object, empty if there are none
+     */
+    Map<String, Object> getInputs() throws IOException;
+
+    /**
+     * @return inputs bound to the given class (e.g. with public fields named as the inputs), unknown inputs are ignored
+     */
+    <T> T getInputs(Class<T> inputsClass) throws IOException;
+
+    /**
+     * @return value of the input as a string, null if not set
+     */
+    String getInputString(String name) throws IOException;
+
+    /**
+     * @return value of the input as a number, null if not set
+     */
+    Long getInputLong(String name) throws IOException;
+
+    File getLogFile();
+
+    File getOutputDir();
+
+    /**
+     * @return configuration file of the process type (TYPE.config in processes.definition.dir), null if there is none
+     */
+    File getConfigFile();
+
+    /**
+     * @return flag set when the process should stop, shared with the executor
+     */
+    AtomicBoolean getCancelRequested();
+
+    /**
+     * @return whether the process should stop (flag set or its thread interrupted)
+     */
+    boolean isCancelRequested();
+
+    /**
+     * @return cancellation of the process, for registering callbacks that abort blocking work (see {@link CancellationToken})
+     */
+    CancellationToken getCancellationToken();
+
+    /**
+     * @return when the process is canceled for exceeding max_runtime of its type, null if there is no limit
+     */
+    Instant getDeadline();
+
+    /**
+     * Reports that done out of total units of work are finished, the percentage done is computed from them.
+     */
+    void setProgress(long done, long total);
+
+    /**
+     * Reports the percentage done (0-100) directly, for processes that do not count units of work.
+     */
+    void setPercentDone(double percent);
+
+    void setCounter(String name, long value);
+
+    void incrementCounter(String name, long delta);
+
+    /**
+     * Reports what the process is doing now (e.g. "Exporting results"), shown to the user with the progress.
+     */
+    void setStatusMessage(String message);
+
+    /**
+     * Returns the checkpoint saved by an earlier run of this DTD (failed, or interrupted by a restart of the executor),
+     * with the output files truncated to their checkpointed sizes. The process then continues from the saved state,
+     * appending to its outputs instead of creating them again.
+     *
+     * @return checkpoint to resume from, null when the process starts from the beginning
+     */
+    Checkpoint getCheckpoint() throws IOException;
+
+    /**
+     * Saves the state of the process (e.g. paging cursor and counters) with the current sizes of the given output
+     * files to the job directory, see {@link Checkpoint}. Writers of the outputs must be flushed first.
+     * It syncs the files to disk, so it should be called after a page of work, not after every record.
+     *
+     * @param outputFiles output files (relative to the output directory) the process appends to
+     */
+    void saveCheckpoint(Object state, String... outputFiles) throws IOException;
+}
@@ -0,0 +1,22 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions;
+
+import java.io.IOException;
+
+/**
+ * Failure that is likely to go away when the process runs again later, e.g. an unavailable (503) or overloaded (429)
+ * external service. A process of a type with a retry policy (retry.max_attempts in the dynamic configuration) failing
+ * with it is requeued with a backoff instead of ending as FAILED, other exceptions only if they are listed in
+ * retry.retryable_exceptions.
+ */
+public class RetryableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RetryableException(String message) {
+        super(message);
+    }
+
+    public RetryableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,224 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link ProcessContext} keeping the reported progress in memory. The executor polls {@link #getProgressVersion()}
+ * and persists {@link #getProgress()} when it changed.
+ */
+public class SimpleProcessContext implements ProcessContext {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final UUID id;
+    private final String type;
+    private final String inputData;
+    private final File logFile;
+    private final File outputDir;
+    private final File configFile;
+    private final CancellationToken cancellationToken;
+    private final Instant deadline;
+    private Map<String, Object> inputs; // parsed on first use
+    private Checkpoint checkpoint; // restored on first use
+    private boolean checkpointRestored = false;
+
+    // progress, guarded by this
+    private long progressVersion = 0;
+    private Double percentDone;
+    private Long done;
+    private Long total;
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    private String statusMessage;
+
+    public SimpleProcessContext(UUID id, String type, String inputData, File logFile, File outputDir, File configFile, AtomicBoolean cancelRequested) {
+        this(id, type, inputData, logFile, outputDir, configFile, new CancellationToken(cancelRequested), null);
+    }
+
+    public SimpleProcessContext(UUID id, String type, String inputData, File logFile, File outputDir, File configFile,
+                                CancellationToken cancellationToken, Instant deadline) {
+        this.id = id;
+        this.type = type;
+        this.inputData = inputData;
+        this.logFile = logFile;
+        this.outputDir = outputDir;
+        this.configFile = configFile;
+        this.cancellationToken = cancellationToken;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public UUID getId() {
+        return id;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public String getInputData() {
+        return inputData;
+    }
+
+    @Override
+    public synchronized Map<String, Object> getInputs() throws IOException {
+        if (inputs == null) {
+            Map<String, Object> parsed = inputData == null || inputData.trim().isEmpty()
+                    ? null
+                    : MAPPER.readValue(inputData, new TypeReference<Map<String, Object>>() {
+            });
+            inputs = parsed == null ? Collections.emptyMap() : Collections.unmodifiableMap(parsed);
+        }
+        return inputs;
+    }
+
+    @Override
+    public <T> T getInputs(Class<T> inputsClass) throws IOException {
+        return MAPPER.convertValue(getInputs(), inputsClass);
+    }
+
+    @Override
+    public String getInputString(String name) throws IOException {
+        Object value = getInputs().get(name);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public Long getInputLong(String name) throws IOException {
+        Object value = getInputs().get(name);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Input " + name + " is not a number: " + value);
+        }
+    }
+
+    @Override
+    public File getLogFile() {
+        return logFile;
+    }
+
+    @Override
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    @Override
+    public File getConfigFile() {
+        return configFile;
+    }
+
+    @Override
+    public AtomicBoolean getCancelRequested() {
+        return cancellationToken.getFlag();
+    }
+
+    @Override
+    public boolean isCancelRequested() {
+        return cancellationToken.isCancelled() || Thread.currentThread().isInterrupted();
+    }
+
+    @Override
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    @Override
+    public Instant getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public synchronized void setProgress(long done, long total) {
+        this.done = done;
+        this.total = total;
+        this.percentDone = total > 0 ? Math.min(100.0, done * 100.0 / total) : null;
+        progressVersion++;
+    }
+
+    @Override
+    public synchronized void setPercentDone(double percent) {
+        this.percentDone = Math.max(0.0, Math.min(100.0, percent));
+        progressVersion++;
+    }
+
+    @Override
+    public synchronized void setCounter(String name, long value) {
+        counters.put(name, value);
+        progressVersion++;
+    }
+
+    @Override
+    public synchronized void incrementCounter(String name, long delta) {
+        counters.merge(name, delta, Long::sum);
+        progressVersion++;
+    }
+
+    @Override
+    public synchronized void setStatusMessage(String message) {
+        this.statusMessage = message;
+        progressVersion++;
+    }
+
+    @Override
+    public synchronized Checkpoint getCheckpoint() throws IOException {
+        if (!checkpointRestored) {
+            checkpoint = Checkpoint.restore(outputDir);
+            checkpointRestored = true;
+        }
+        return checkpoint;
+    }
+
+    @Override
+    public synchronized void saveCheckpoint(Object state, String... outputFiles) throws IOException {
+        checkpoint = Checkpoint.write(outputDir, state, outputFiles);
+        checkpointRestored = true;
+    }
+
+    /**
+     * @return number incremented by every progress update, 0 if no progress was reported
+     */
+    public synchronized long getProgressVersion() {
+        return progressVersion;
+    }
+
+    /**
+     * @return copy of the reported progress: percent, done, total, counters and message (those that were reported)
+     */
+    public synchronized Map<String, Object> getProgress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        if (percentDone != null) {
+            progress.put("percent", percentDone);
+        }
+        if (done != null) {
+            progress.put("done", done);
+            progress.put("total", total);
+        }
+        if (!counters.isEmpty()) {
+            progress.put("counters", new LinkedHashMap<>(counters));
+        }
+        if (statusMessage != null) {
+            progress.put("message", statusMessage);
+        }
+        return progress;
+    }
+}
@@ -5,7 +5,11 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import cz.trinera.anakon.dtd_executor.dtd_definitions.Process;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.CancellationToken;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.Checkpoint;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ContextProcess;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ProcessContext;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.RetryableException;
 import org.apache.http.client.utils.URIBuilder;
 import org.json.JSONObject;
 
@@ -25,8 +29,9 @@ import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
 
-public class DetectVolumesWithLowIssueCountProcess implements Process {
+public class DetectVolumesWithLowIssueCountProcess implements ContextProcess {
 
     private static final int PAUSE_BETWEEN_VOLUME_REQUESTS_MS = 300;
 
@@ -54,12 +59,13 @@ public class DetectVolumesWithLowIssueCountProcess implements Process {
         );
     }
 
-    private static final ObjectMapper objectMapper = new ObjectMapper()
+    //package-private (as the classes and methods below) for the benchmarks in src/jmh
+    static final ObjectMapper objectMapper = new ObjectMapper()
             .registerModule(new JavaTimeModule())
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     private static final int PAGE_SIZE = 100;
 
-    private static class Params {
+    static class Params {
         public String kramerius_base_url;
         public Year year_start = null;
         public Year year_end = null;
@@ -67,27 +73,44 @@ public class DetectVolumesWithLowIssueCountProcess implements Process {
         public String dig_lib_code;
     }
 
+    //saved in the checkpoint
+    static class Paging {
+        public String cursor_mark = "*"; //of the next page
+        public int volumes = 0;
+        public int marked = 0;
+    }
+
     @Override
-    public void run(UUID id, String type, String inputData, File logFile, File outputDir, File configFile, AtomicBoolean cancelRequested) throws Exception {
-        try (BufferedWriter logWriter = Files.newBufferedWriter(logFile.toPath())) {
+    public void run(ProcessContext context) throws Exception {
+        Checkpoint checkpoint = context.getCheckpoint();
+        try (BufferedWriter logWriter = checkpoint == null
+                ? Files.newBufferedWriter(context.getLogFile().toPath())
+                : Files.newBufferedWriter(context.getLogFile().toPath(), CREATE, APPEND)) {
             try {
                 //log parameters
                 logWriter.write("Running " + DetectVolumesWithLowIssueCountProcess.class.getName() + "...\n");
-                logWriter.write("ID: " + id + "\n");
-                logWriter.write("Process type: " + type + "\n");
-                logWriter.write("Input data: " + inputData + "\n");
-                logWriter.write("Log file: " + logFile + "\n");
-                logWriter.write("Output dir: " + outputDir + "\n");
-                //logWriter.write("    Config file: " + configFile + "\n");
-                //logWriter.write("    Cancel requested: " + cancelRequested.get() + "\n");
+                logWriter.write("ID: " + context.getId() + "\n");
+                logWriter.write("Process type: " + context.getType() + "\n");
+                logWriter.write("Input data: " + context.getInputData() + "\n");
+                logWriter.write("Log file: " + context.getLogFile() + "\n");
+                logWriter.write("Output dir: " + context.getOutputDir() + "\n");
+                //logWriter.write("    Config file: " + context.getConfigFile() + "\n");
+                //logWriter.write("    Cancel requested: " + context.isCancelRequested() + "\n");
                 logWriter.newLine();
 
-                Params params = parseInput(inputData);
+                Params params = parseInput(context.getInputData());
 
-                File outputFile = new File(outputDir, "export.csv");
-                writeCsvHeader(outputFile);
+                File outputFile = new File(context.getOutputDir(), "export.csv");
+                Paging paging;
+                if (checkpoint == null) {
+                    writeCsvHeader(outputFile);
+                    paging = new Paging();
+                } else {
+                    paging = checkpoint.getState(Paging.class);
+                    logWriter.write("Resuming from checkpoint of " + checkpoint.getCreated() + " (" + paging.volumes + " volumes processed)\n");
+                }
 
-                process(logWriter, params, outputFile);
+                process(logWriter, params, outputFile, context, paging);
 
                 logWriter.write("Exported data to " + outputFile.getName() + "\n");
 
@@ -100,7 +123,7 @@ public class DetectVolumesWithLowIssueCountProcess implements Process {
         }
     }
 
-    private static class KrameriusVolumesSearchResult {
+    static class KrameriusVolumesSearchResult {
 
         public KrameriusResponse response;
         public String nextCursorMark;
@@ -124,7 +147,7 @@ public class DetectVolumesWithLowIssueCountProcess implements Process {
         }
     }
 
-    private static class KrameriusItemsSearchResult {
+    static class KrameriusItemsSearchResult {
 
         public KrameriusResponse response;
 
@@ -171,28 +194,33 @@ public class DetectVolumesWithLowIssueCountProcess implements Process {
         }
     }
 
-    private void process(BufferedWriter log, Params params, File outputFile) throws Exception {
+    /**
+     * Processes the volumes page by page from paging.cursor_mark, saving a checkpoint after each page.
+     */
+    private void process(BufferedWriter log, Params params, File outputFile, ProcessContext context, Paging paging) throws Exception {
         URIBuilder volumesUriBuilder = buildVolumesUri(params);
+        CancellationToken cancellationToken = context.getCancellationToken();
 
         String currentCursorMark;
-        String nextCursorMark = "*";
+        String nextCursorMark = paging.cursor_mark;
         KrameriusVolumesSearchResult volumes;
         HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(); //default HTTP_2 causes GOAWAY
-        int volumeCount = 0;
-        int markedVolumeCount = 0;
+        int volumeCount = paging.volumes;
+        int markedVolumeCount = paging.marked;
         do {
             currentCursorMark = nextCursorMark;
             volumesUriBuilder.setParameter("cursorMark", currentCursorMark);
 
             URI volumeUrl = volumesUriBuilder.build();
-            volumes = getRequest(log, httpClient, KrameriusVolumesSearchResult.class, volumeUrl);
+            volumes = getRequest(log, httpClient, KrameriusVolumesSearchResult.class, volumeUrl, cancellationToken);
             //log.write("next cursor: " + volumes.nextCursorMark + "\n");
             //log.write("per-volumes: " + volumes.response.docs.size() + "\n");
             volumeCount += volumes.response.docs.size();
 
             for (var volume : volumes.response.docs) {
+                cancellationToken.throwIfCancelled();
                 URIBuilder itemsUriBuilder = buildItemsUri(params, volume.pid);
-                KrameriusItemsSearchResult items = getRequest(log, httpClient, KrameriusItemsSearchResult.class, itemsUriBuilder.build());
+                KrameriusItemsSearchResult items = getRequest(log, httpClient, KrameriusItemsSearchResult.class, itemsUriBuilder.build(), cancellationToken);
                 int numOfIssues = items.response.numFound;
                 //log.write("per-items: " + numOfIssues + "\n");
 
@@ -204,6 +232,10 @@ public class DetectVolumesWithLowIssueCountProcess implements Process {
 
             currentCursorMark = nextCursorMark;
             nextCursorMark = volumes.nextCursorMark;
+            paging.cursor_mark = nextCursorMark;
+            paging.volumes = volumeCount;
+            paging.marked = markedVolumeCount;
+            context.saveCheckpoint(paging, outputFile.getName());
             if (volumeCount % 100 == 0) {
                 log.write("Volumes processed: " + volumeCount + ", marked: " + markedVolumeCount + "\n");
             }
@@ -233,11 +265,16 @@ public class DetectVolumesWithLowIssueCountProcess implements Process {
                         ("AND own_parent.pid:" + pid.replace(":", "\\:")));
     }
 
-    private static <T> T getRequest(BufferedWriter log, HttpClient httpClient, Class<T> resultClass, URI uri) throws IOException, InterruptedException {
+    private static <T> T getRequest(BufferedWriter log, HttpClient httpClient, Class<T> resultClass, URI uri, CancellationToken cancellationToken) throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder().GET().uri(uri).build();
 
-        HttpResponse<String> rawResponse = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        //sendAsync, a blocking send would not be aborted by a kill request
+        HttpResponse<String> rawResponse = cancellationToken.await(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
         //log.write(resultClass.getSimpleName() + " response: " + rawResponse + "\n");
+        if (rawResponse.statusCode() == 429 || rawResponse.statusCode() >= 500) {
+            //overloaded or unavailable, the process is retried later (retry of the type)
+            throw new RetryableException("Response code " + rawResponse.statusCode() + " from " + uri);
+        }
         if (rawResponse.statusCode() != 200) {
             throw new RuntimeException("Unexpected response code " + rawResponse.statusCode() + " from " + uri + " with body " + rawResponse.body());
         }
@@ -245,14 +282,14 @@ public class DetectVolumesWithLowIssueCountProcess implements Process {
         return objectMapper.readValue(rawResponse.body(), resultClass);
     }
 
-    private void writeCsvHeader(File outputFile) throws IOException {
+    void writeCsvHeader(File outputFile) throws IOException {
         try (BufferedWriter csvWriter = Files.newBufferedWriter(outputFile.toPath())) {
             csvWriter.write("\"PID\",\"PARENT_MODEL\",\"YEAR\",\"ISSUE_COUNT\",\"URL\"\n");
             csvWriter.flush();
         }
     }
 
-    private void writeSearchResult(File outputFile, BufferedWriter log, KrameriusVolumesSearchResult.KrameriusResponse.Docs volume, int numOfIssues, Params params) throws IOException {
+    void writeSearchResult(File outputFile, BufferedWriter log, KrameriusVolumesSearchResult.KrameriusResponse.Docs volume, int numOfIssues, Params params) throws IOException {
         log.write("Marking volume " + volume.pid + "\n");
         try (BufferedWriter csvWriter = Files.newBufferedWriter(outputFile.toPath(), APPEND)) {
             csvWriter.write("\"" + volume.pid + "\",\"" +
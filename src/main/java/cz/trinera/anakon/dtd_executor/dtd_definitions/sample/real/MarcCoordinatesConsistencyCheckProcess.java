@@ -1,8 +1,11 @@
 package cz.trinera.anakon.dtd_executor.dtd_definitions.sample.real;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
-import cz.trinera.anakon.dtd_executor.dtd_definitions.Process;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.CancellationToken;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.Checkpoint;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ContextProcess;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ProcessContext;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.RetryableException;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -22,15 +25,17 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.json.JSONObject;
 
 import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
 
 //mzk:MZK01:001483797
 //mzk:MZK01:nkc20203177803
 
-public class MarcCoordinatesConsistencyCheckProcess implements Process {
+public class MarcCoordinatesConsistencyCheckProcess implements ContextProcess {
 
     private static final int PAUSE_BETWEEN_VOLUME_REQUESTS_MS = 300;
 
-    private static final ObjectMapper objectMapper = new ObjectMapper()
+    //package-private (as the classes and methods below) for the benchmarks in src/jmh
+    static final ObjectMapper objectMapper = new ObjectMapper()
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
     private static final int PAGE_SIZE = 100;
@@ -55,7 +60,7 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
     private static final Pattern patternEN = Pattern.compile("\\s*(?<cardinal>[ENSW])\\s*" + coordinate + "\\s*");
     private static final Pattern patternCZ = Pattern.compile("\\s*" + coordinate + "\\s*(?<cardinal>v\\.d\\.|s\\.š\\.|j\\.š\\.|z\\.d\\.)\\s*");
 
-    private static class AnakonCoordsSearchResult {
+    static class AnakonCoordsSearchResult {
 
         public AnakonItems hits;
 
@@ -114,28 +119,39 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
     }
 
     @Override
-    public void run(UUID id, String type, String inputData, File logFile, File outputDir, File configFile, AtomicBoolean cancelRequested) throws Exception {
-        try (BufferedWriter logWriter = Files.newBufferedWriter(logFile.toPath())) {
+    public void run(ProcessContext context) throws Exception {
+        Checkpoint checkpoint = context.getCheckpoint();
+        try (BufferedWriter logWriter = checkpoint == null
+                ? Files.newBufferedWriter(context.getLogFile().toPath())
+                : Files.newBufferedWriter(context.getLogFile().toPath(), CREATE, APPEND)) {
             try {
                 //log parameters
                 logWriter.write("    Running " + MarcCoordinatesConsistencyCheckProcess.class.getName() + "...\n");
-                logWriter.write("    ID: " + id + "\n");
-                logWriter.write("    Process type: " + type + "\n");
-                logWriter.write("    Input data: " + inputData + "\n");
-                logWriter.write("    Log file: " + logFile + "\n");
-                logWriter.write("    Output dir: " + outputDir + "\n");
-                logWriter.write("    Config file: " + configFile + "\n");
-                logWriter.write("    Cancel requested: " + cancelRequested.get() + "\n");
-
-                Params params = parseInput(inputData);
-
-                Properties config = loadConfig(logWriter, configFile);
-
-                File outputFile = new File(outputDir, "export.csv");
-                writeCsvHeader(outputFile);
+                logWriter.write("    ID: " + context.getId() + "\n");
+                logWriter.write("    Process type: " + context.getType() + "\n");
+                logWriter.write("    Input data: " + context.getInputData() + "\n");
+                logWriter.write("    Log file: " + context.getLogFile() + "\n");
+                logWriter.write("    Output dir: " + context.getOutputDir() + "\n");
+                logWriter.write("    Config file: " + context.getConfigFile() + "\n");
+                logWriter.write("    Cancel requested: " + context.isCancelRequested() + "\n");
+
+                Params params = context.getInputs(Params.class);
+
+                Properties config = loadConfig(logWriter, context.getConfigFile());
+
+                File outputFile = new File(context.getOutputDir(), "export.csv");
+                Counters counters;
+                if (checkpoint == null) {
+                    writeCsvHeader(outputFile);
+                    counters = new Counters();
+                } else {
+                    counters = checkpoint.getState(Counters.class);
+                    logWriter.write("Resuming from checkpoint of " + checkpoint.getCreated() + " (" + counters.processed + " records processed)\n");
+                }
 
                 logWriter.write("\n");
-                Counters counters = process(logWriter, params, outputFile, config);
+                context.setStatusMessage("Checking records");
+                process(logWriter, params, outputFile, config, context, counters);
 
                 logWriter.write("\n");
                 logWriter.write("Processed records summary:\n");
@@ -187,18 +203,21 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
         return properties;
     }
 
-    private Counters process(BufferedWriter log, Params params, File outputFile, Properties config) throws IOException, InterruptedException {
+    /**
+     * Checks the records page by page from counters.from, saving a checkpoint after each page.
+     */
+    private void process(BufferedWriter log, Params params, File outputFile, Properties config, ProcessContext context, Counters counters) throws IOException, InterruptedException {
         HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(); //default HTTP_2 causes GOAWAY
         AnakonCoordsSearchResult result;
         int size = PAGE_SIZE;
-        int from = 0;
+        int from = counters.from;
 
         List<String> filters = buildFilters(params);
-        Counters counters = new Counters();
 
         do {
+            context.getCancellationToken().throwIfCancelled();
             String body = "{\"size\":" + size + ",\"track_total_hits\":true,\"from\":" + from + ",\"query\":{\"bool\":{\"must\":[" + String.join(",", filters) + "]}}}";
-            result = postAnakonSearchRequest(httpClient, AnakonCoordsSearchResult.class, body, config);
+            result = postAnakonSearchRequest(httpClient, AnakonCoordsSearchResult.class, body, config, context.getCancellationToken());
 
             for (AnakonCoordsSearchResult.AnakonItems.Item item : result.hits.hits) {
                 String errMessage = checkKeysSize(item._source);
@@ -219,12 +238,15 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
             counters.total = result.hits.total.value;
             counters.processed += result.hits.hits.size();
             log.write(String.format("Processed %d/%d records (%d errors)\n", counters.processed, counters.total, counters.errors));
+            context.setProgress(counters.processed, counters.total);
+            context.setCounter("errors", counters.errors);
             from += size;
+            counters.from = from;
+            context.saveCheckpoint(counters, outputFile.getName());
         } while (result.hits.total.value > from);
-        return counters;
     }
 
-    private static String checkKeysSize(AnakonCoordsSearchResult.AnakonItems.Item.ItemData item) {
+    static String checkKeysSize(AnakonCoordsSearchResult.AnakonItems.Item.ItemData item) {
         if (item.df_255 == null) {
             return "Missing field df_255";
         }
@@ -239,7 +261,7 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
         return null;
     }
 
-    private static class ItemProcessor {
+    static class ItemProcessor {
         private final List<String> errors = new ArrayList<>();
         private Coords coords1;
         private Coords coords2;
@@ -351,7 +373,7 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
         return filters;
     }
 
-    private void writeSearchResult(File outputFile, BufferedWriter log, AnakonCoordsSearchResult.AnakonItems.Item item, String errorMessage, int index) throws IOException {
+    void writeSearchResult(File outputFile, BufferedWriter log, AnakonCoordsSearchResult.AnakonItems.Item item, String errorMessage, int index) throws IOException {
         var missing_coords = new AnakonCoordsSearchResult.AnakonItems.Item.ItemData.Coords();
         var missing_partial = new AnakonCoordsSearchResult.AnakonItems.Item.ItemData.Parted_coords();
 
@@ -399,7 +421,7 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
         return s.replaceAll("\"", "\"\"").replaceAll(",", ";");
     }
 
-    private void writeCsvHeader(File outputFile) throws IOException {
+    void writeCsvHeader(File outputFile) throws IOException {
         try (BufferedWriter csvWriter = Files.newBufferedWriter(outputFile.toPath())) {
             //počet řádků zde musí sedět na počet sloupců v writeSearchResult
             csvWriter.write("\"ID záznamu (instituce:aleph_báze:pole_001)\"");
@@ -413,17 +435,7 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
         }
     }
 
-    private Params parseInput(String inputData) throws JsonProcessingException {
-        //load configuration
-        Params params = objectMapper.readValue(inputData, Params.class);
-        //check here for required parameters, if there are any
-        /*if (params.anakon_base_url == null) {
-            throw new IllegalArgumentException("Missing required parameter: anakon_base_url");
-        }*/
-        return params;
-    }
-
-    private static <T> T postAnakonSearchRequest(HttpClient httpClient, Class<T> resultClass, String body, Properties config) throws IOException, InterruptedException {
+    private static <T> T postAnakonSearchRequest(HttpClient httpClient, Class<T> resultClass, String body, Properties config, CancellationToken cancellationToken) throws IOException, InterruptedException {
         String anakonSearchUrl = config.getProperty("anakon_base_url") + "/search";
         String authHeader = httpBasicAuth(config.getProperty("anakon_username"), config.getProperty("anakon_password"));
         HttpRequest request = HttpRequest.newBuilder()
@@ -433,7 +445,12 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
                 .POST(HttpRequest.BodyPublishers.ofString(body))
                 .build();
 
-        HttpResponse<String> rawResponse = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        //sendAsync, a blocking send would not be aborted by a kill request
+        HttpResponse<String> rawResponse = cancellationToken.await(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+        if (rawResponse.statusCode() == 429 || rawResponse.statusCode() >= 500) {
+            //overloaded or unavailable, the process is retried later (retry of the type)
+            throw new RetryableException("Response code " + rawResponse.statusCode() + " from " + anakonSearchUrl);
+        }
         if (rawResponse.statusCode() != 200) {
             throw new RuntimeException("Unexpected response code " + rawResponse.statusCode() + " from " + anakonSearchUrl + " with body " + rawResponse.body());
         }
@@ -446,7 +463,7 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
     }
 
 
-    private static class Coords {
+    static class Coords {
         private String cardinal;
         private int degrees;
         private int minutes;
@@ -526,9 +543,11 @@ public class MarcCoordinatesConsistencyCheckProcess implements Process {
         }
     }
 
+    //saved in the checkpoint
     private static class Counters {
         public int total = 0;
         public int processed = 0;
         public int errors = 0;
+        public int from = 0; //next page
     }
 }
@@ -74,7 +74,8 @@ public class TestExportCsv implements Process {
         }
     }
 
-    private void fillCsvFileWithRandomData(File outputFile, boolean includeHeaders) throws IOException {
+    //package-private for the benchmarks in src/jmh
+    void fillCsvFileWithRandomData(File outputFile, boolean includeHeaders) throws IOException {
         try (BufferedWriter csvWriter = Files.newBufferedWriter(outputFile.toPath())) {
             if (includeHeaders) {
                 csvWriter.write("\"ID\",\"NAME\",\"VALUE\"\n");
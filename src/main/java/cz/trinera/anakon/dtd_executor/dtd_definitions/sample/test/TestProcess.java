@@ -1,19 +1,15 @@
 package cz.trinera.anakon.dtd_executor.dtd_definitions.sample.test;
 
-import cz.trinera.anakon.dtd_executor.dtd_definitions.Process;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ContextProcess;
+import cz.trinera.anakon.dtd_executor.dtd_definitions.ProcessContext;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.nio.file.Files;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
-public class TestProcess implements Process {
-
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+public class TestProcess implements ContextProcess {
 
     public static class Params {
         public Integer max_duration;
@@ -21,20 +17,22 @@ public class TestProcess implements Process {
     }
 
     @Override
-    public void run(UUID id, String type, String inputData, File logFile, File outputDir, File configFile, AtomicBoolean cancelRequested) throws Exception {
+    public void run(ProcessContext context) throws Exception {
+        UUID id = context.getId();
+        File logFile = context.getLogFile();
         try (BufferedWriter logWriter = Files.newBufferedWriter(logFile.toPath())) {
 
             //log parameters
             logWriter.write("    Running " + TestProcess.class.getName() + "...\n");
             logWriter.write("    ID: " + id + "\n");
-            logWriter.write("    Process type: " + type + "\n");
-            logWriter.write("    Input data: " + inputData + "\n");
+            logWriter.write("    Process type: " + context.getType() + "\n");
+            logWriter.write("    Input data: " + context.getInputData() + "\n");
             logWriter.write("    Log file: " + logFile + "\n");
-            logWriter.write("    Output dir: " + outputDir + "\n");
-            logWriter.write("    Config file: " + configFile + "\n");
-            logWriter.write("    Cancel requested: " + cancelRequested.get() + "\n");
+            logWriter.write("    Output dir: " + context.getOutputDir() + "\n");
+            logWriter.write("    Config file: " + context.getConfigFile() + "\n");
+            logWriter.write("    Cancel requested: " + context.isCancelRequested() + "\n");
 
-            Params params = objectMapper.readValue(inputData, Params.class);
+            Params params = context.getInputs(Params.class);
 
             //current time in milliseconds
             long startTime = System.currentTimeMillis();
@@ -52,7 +50,7 @@ public class TestProcess implements Process {
 
             for (int i = 0; i < 60; i++) {
                 //canceled?
-                if (cancelRequested.get() || Thread.currentThread().isInterrupted()) {
+                if (context.isCancelRequested()) {
                     logWriter.write("Process " + id + " cancelled\n");
                     return;
                 }
@@ -86,12 +84,14 @@ public class TestProcess implements Process {
 
                 logWriter.write("Test tick " + i + "\n");
                 logWriter.flush();
+                context.setProgress(i, 60);
                 Thread.sleep(1000); // Simulate work for 1 second
             }
             if ("will".equals(params.failure_strategy)) {
                 logWriter.write("Process " + id + " finished but was supposed to fail due to 'will_fail' strategy\n");
                 throw new Exception("Process " + id + " finished but was supposed to fail due to 'will_fail' strategy");
             }
+            context.setProgress(60, 60);
             logWriter.write("Process " + id + " finished successfully\n");
         }
     }
@@ -3,7 +3,9 @@
 DIR="$(cd "$(dirname "$0")" && pwd)"
 JAR="$DIR/anakon-dtd-executor-1.9.0.jar"
 CONFIG_FILE="$DIR/config.properties"
-LOG="$DIR/anakon-dtd-executor.log"
+# Log file with rotation is set by log.file in config.properties, e.g. log.file=/path/to/anakon-dtd-executor.log.
+# Only the JVM's own output (e.g. crashes) goes to this file, it is overwritten on each start.
+OUT="$DIR/anakon-dtd-executor.out"
 PID_FILE="$DIR/anakon-dtd-executor.pid"
 
 # Jestli už běží, tak nebudeme spouštět znovu
@@ -13,7 +15,7 @@ if [ -f "$PID_FILE" ] && kill -0 $(cat "$PID_FILE") 2>/dev/null; then
 fi
 
 nohup nice -n 10 java -jar "$JAR" --config_file "$CONFIG_FILE" \
-  >> "$LOG" 2>&1 &
+  > "$OUT" 2>&1 &
 
 echo $! > "$PID_FILE"
 echo "Executor started with PID $!"
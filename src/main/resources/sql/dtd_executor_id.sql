@@ -0,0 +1,7 @@
+-- Ownership of claimed DTDs (executor version 7+).
+-- Every executor stamps the DTDs it claims with its executor id (property executor.id in config.properties).
+
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS executor_id VARCHAR(255);
+
+-- Speeds up claiming the oldest CREATED DTDs.
+CREATE INDEX IF NOT EXISTS dtd_created_queue_idx ON dtd (created) WHERE state = 'CREATED';
@@ -0,0 +1,26 @@
+-- Registry of the running executors (executor version 8+).
+-- Every executor registers itself with the process types it serves (served_types/served_tags in the dynamic
+-- configuration), its capacity and its current load, and refreshes the row at most once per polling interval.
+-- The row is deleted when the executor stops, rows of executors that died are deleted by the other executors
+-- after 10 (maximal) polling intervals without a heartbeat.
+
+CREATE TABLE IF NOT EXISTS dtd_executor
+(
+    id                       VARCHAR(255) PRIMARY KEY, -- executor.id from config.properties
+    version                  INTEGER      NOT NULL,
+    served_types             VARCHAR(255)[],           -- NULL if the executor serves all types
+    served_tags              VARCHAR(255)[] NOT NULL,
+    max_concurrent_processes INTEGER      NOT NULL,
+    running_processes        INTEGER      NOT NULL,
+    started                  TIMESTAMP    NOT NULL,
+    last_heartbeat           TIMESTAMP    NOT NULL
+);
+
+-- Speeds up claiming the oldest CREATED DTDs of the types served by an executor.
+CREATE INDEX IF NOT EXISTS dtd_created_type_queue_idx ON dtd (type, created) WHERE state = 'CREATED';
+
+-- Waiting DTDs and free slots of the live executors serving them, e.g. to find DTDs no executor is going to run:
+-- SELECT w.type, w.waiting,
+--        (SELECT coalesce(sum(e.max_concurrent_processes - e.running_processes), 0) FROM dtd_executor e
+--         WHERE e.served_types IS NULL OR w.type = ANY (e.served_types)) AS free_slots
+-- FROM (SELECT type, count(*) AS waiting FROM dtd WHERE state = 'CREATED' GROUP BY type) w;
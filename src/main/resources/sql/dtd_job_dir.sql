@@ -0,0 +1,9 @@
+-- Maintenance of job directories (job_dir_maintenance_interval in the dynamic configuration).
+-- Sizes of the job directories of finished DTDs, recorded by the executor that maintains process.execution.dir.
+
+-- Size of the job directory in bytes (after compression), 0 once the directory was deleted by the retention.
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS output_bytes BIGINT;
+-- When the files of the job directory were compressed, the directory is then only checked for the retention.
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS output_maintained TIMESTAMP;
+-- When the job directory was deleted by the retention (retention_days of the type or job_dir_retention_days).
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS job_dir_deleted TIMESTAMP;
@@ -0,0 +1,3 @@
+-- Speeds up looking up kill requests of the DTDs running on an executor (dtd_id = ANY(...)).
+
+CREATE INDEX IF NOT EXISTS dtd_kill_request_dtd_id_idx ON dtd_kill_request (dtd_id);
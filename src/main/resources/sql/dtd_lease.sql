@@ -0,0 +1,8 @@
+-- Leases of RUNNING DTDs (lease_duration in the dynamic configuration).
+-- The executor running a DTD renews its lease periodically. When the executor dies, the lease expires
+-- and another executor requeues the DTD or marks it FAILED (on_lease_expired of the process type).
+
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS lease_expires TIMESTAMP;
+
+-- Speeds up looking for expired leases.
+CREATE INDEX IF NOT EXISTS dtd_running_lease_idx ON dtd (lease_expires) WHERE state = 'RUNNING';
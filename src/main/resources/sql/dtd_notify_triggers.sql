@@ -0,0 +1,38 @@
+-- Triggers notifying the executors (LISTEN/NOTIFY) about new DTDs and kill requests.
+-- Used when executor_config.listen_notify is enabled in the dynamic configuration.
+-- The channel is the argument of the triggers (see CREATE TRIGGER below) and must match
+-- executor_config.notification_channel (default dtd_events). To use another channel, change the argument
+-- of both triggers and run the script again, the functions themselves do not need to change.
+-- Payloads: 'created:<dtd_id>' and 'kill:<dtd_id>'.
+
+CREATE OR REPLACE FUNCTION dtd_notify_created() RETURNS trigger AS
+$$
+BEGIN
+    IF NEW.state = 'CREATED' AND (TG_OP = 'INSERT' OR OLD.state IS DISTINCT FROM NEW.state) THEN
+        PERFORM pg_notify(COALESCE(TG_ARGV[0], 'dtd_events'), 'created:' || NEW.id);
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS dtd_notify_created ON dtd;
+CREATE TRIGGER dtd_notify_created
+    AFTER INSERT OR UPDATE OF state
+    ON dtd
+    FOR EACH ROW
+EXECUTE PROCEDURE dtd_notify_created('dtd_events'); -- channel, executor_config.notification_channel
+
+CREATE OR REPLACE FUNCTION dtd_notify_kill_request() RETURNS trigger AS
+$$
+BEGIN
+    PERFORM pg_notify(COALESCE(TG_ARGV[0], 'dtd_events'), 'kill:' || NEW.dtd_id);
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS dtd_notify_kill_request ON dtd_kill_request;
+CREATE TRIGGER dtd_notify_kill_request
+    AFTER INSERT
+    ON dtd_kill_request
+    FOR EACH ROW
+EXECUTE PROCEDURE dtd_notify_kill_request('dtd_events'); -- channel, executor_config.notification_channel
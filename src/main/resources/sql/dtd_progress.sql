@@ -0,0 +1,8 @@
+-- Progress reported by running processes through ProcessContext (progress_flush_interval_ms in the dynamic configuration).
+
+-- Latest progress of the process as JSON, e.g.
+-- {"percent": 42.5, "done": 425, "total": 1000, "counters": {"errors": 3}, "message": "Checking records", "eta": "2025-01-01T12:00:00Z"}
+-- Only the reported values are present, eta is estimated by the executor from the percentage done.
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS progress JSONB;
+-- When the progress was last written.
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS progress_updated TIMESTAMP;
@@ -0,0 +1,8 @@
+-- Reuse of results of identical DTDs (result_cache_ttl of a process type in the dynamic configuration).
+-- result_key identifies the type, the input data (as canonical JSON) and the jar of the process. A DTD with the key
+-- of a DTD COMPLETED less than result_cache_ttl ago is completed with the outputs of that DTD instead of running.
+
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS result_key VARCHAR(64);
+
+-- Speeds up looking for the latest completed DTD with the key.
+CREATE INDEX IF NOT EXISTS dtd_result_key_idx ON dtd (type, result_key, finished) WHERE state = 'COMPLETED' AND result_key IS NOT NULL;
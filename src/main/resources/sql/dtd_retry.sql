@@ -0,0 +1,21 @@
+-- Retries of failed DTDs (retry of a process type in the dynamic configuration).
+-- A DTD failing with a retryable exception is requeued (state CREATED) with the number of its next attempt
+-- and not_before set to the backoff; executors claim it only after not_before.
+
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS attempt INTEGER NOT NULL DEFAULT 1;
+ALTER TABLE dtd ADD COLUMN IF NOT EXISTS not_before TIMESTAMP;
+
+-- History of the attempts of DTDs of types with a retry policy, one row per run.
+-- outcome is the final state of the run (COMPLETED, FAILED, CANCELED) or RETRIED if the DTD was requeued,
+-- error is the exception the run failed with.
+CREATE TABLE IF NOT EXISTS dtd_attempt (
+    dtd_id      UUID         NOT NULL REFERENCES dtd (id) ON DELETE CASCADE,
+    attempt     INTEGER      NOT NULL,
+    executor_id VARCHAR(255),
+    started     TIMESTAMP,
+    finished    TIMESTAMP    NOT NULL,
+    outcome     VARCHAR(20)  NOT NULL,
+    error       TEXT,
+    not_before  TIMESTAMP,
+    PRIMARY KEY (dtd_id, attempt)
+);
@@ -0,0 +1,4 @@
+-- Speeds up reading the oldest CREATED DTDs of each type and submitter, required with submitter_column
+-- in the dynamic configuration. Replace created_by with the configured column.
+
+CREATE INDEX IF NOT EXISTS dtd_submitter_queue_idx ON dtd (type, created_by, created) WHERE state = 'CREATED';
@@ -0,0 +1,88 @@
+package cz.trinera.anakon.dtd_executor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DynamicConfigProviderTest {
+
+    @TempDir
+    Path dir;
+
+    private long modified = 1_000_000_000_000L;
+
+    @Test
+    public void badFileKeepsLastGoodAndNextGoodFileLoads() throws IOException {
+        File file = dir.resolve("dyn.yaml").toFile();
+        write(file, config(2));
+        DynamicConfigProvider provider = new DynamicConfigProvider(file);
+        DynamicConfig good = provider.get();
+        assertEquals(2, good.getExecutorConfig().getMaxConcurrentProcesses());
+
+        write(file, "executor_config: [");
+        assertSame(good, provider.get());
+        assertSame(good, provider.get());
+
+        write(file, config(3));
+        assertEquals(3, provider.get().getExecutorConfig().getMaxConcurrentProcesses());
+    }
+
+    @Test
+    public void unreadableFileKeepsLastGoodAndIsReadAgain() throws IOException {
+        File file = dir.resolve("dyn.yaml").toFile();
+        write(file, config(2));
+        DynamicConfigProvider provider = new DynamicConfigProvider(file);
+        DynamicConfig good = provider.get();
+
+        assertTrue(file.delete());
+        assertSame(good, provider.get());
+
+        write(file, config(4));
+        assertEquals(4, provider.get().getExecutorConfig().getMaxConcurrentProcesses());
+    }
+
+    @Test
+    public void fileThatWasNeverGoodIsRejected() throws IOException {
+        File file = dir.resolve("dyn.yaml").toFile();
+        write(file, "executor_config: [");
+        DynamicConfigProvider provider = new DynamicConfigProvider(file);
+
+        assertThrows(IOException.class, provider::get);
+        write(file, config(1));
+        assertEquals(1, provider.get().getExecutorConfig().getMaxConcurrentProcesses());
+    }
+
+    @Test
+    public void touchedFileIsNotParsedAgain() throws IOException {
+        File file = dir.resolve("dyn.yaml").toFile();
+        write(file, config(2));
+        DynamicConfigProvider provider = new DynamicConfigProvider(file);
+        DynamicConfig good = provider.get();
+
+        write(file, config(2));
+        assertSame(good, provider.get());
+    }
+
+    private static String config(int maxConcurrentProcesses) {
+        return "executor_config:\n  max_concurrent_processes: " + maxConcurrentProcesses + "\nprocesses:\n  - type: t\n";
+    }
+
+    /**
+     * Writes the file with a new modification time, the file system may not tell apart writes within the same second.
+     */
+    private void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        modified += 10_000;
+        assertTrue(file.setLastModified(modified));
+    }
+}
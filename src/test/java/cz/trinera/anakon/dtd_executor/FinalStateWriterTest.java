@@ -0,0 +1,173 @@
+package cz.trinera.anakon.dtd_executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FinalStateWriterTest {
+
+    @Test
+    public void transientErrorsAreRecognized() {
+        assertTrue(FinalStateWriter.isTransient(new SQLException("connection refused", "08001")));
+        assertTrue(FinalStateWriter.isTransient(new SQLException("could not serialize access", "40001")));
+        assertTrue(FinalStateWriter.isTransient(new SQLException("deadlock detected", "40P01")));
+        assertTrue(FinalStateWriter.isTransient(new SQLTransientConnectionException("pool exhausted")));
+        SQLException chained = new SQLException("batch entry 0 failed", "XX000");
+        chained.setNextException(new SQLException("terminating connection", "08006"));
+        assertTrue(FinalStateWriter.isTransient(chained));
+
+        assertFalse(FinalStateWriter.isTransient(new SQLException("duplicate key", "23505")));
+        assertFalse(FinalStateWriter.isTransient(new SQLException("no state")));
+    }
+
+    @Test
+    public void transientFailuresAreRetriedUntilTheyPass() throws Exception {
+        int failures = FinalStateWriter.PERMANENT_FAILURE_ATTEMPTS * 5;
+        AtomicInteger calls = new AtomicInteger();
+        FakeJobQueue jobQueue = new FakeJobQueue(batch -> calls.incrementAndGet() <= failures
+                ? new SQLException("connection refused", "08001") : null);
+        List<UUID> ids = submitAndClose(jobQueue, 3);
+
+        assertEquals(failures + 1, jobQueue.calls.size());
+        assertEquals(ids, jobQueue.written);
+    }
+
+    @Test
+    public void permanentFailureIsIsolatedAndDropped() throws Exception {
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ids.add(UUID.randomUUID());
+        }
+        UUID bad = ids.get(1);
+        FakeJobQueue jobQueue = new FakeJobQueue(batch -> batch.contains(bad) ? new SQLException("duplicate key", "23505") : null);
+        FinalStateWriter writer = new FinalStateWriter(jobQueue.asJobQueue(), ids.size(), 1000, 1, 2);
+        for (UUID id : ids) {
+            writer.submit(id, ProcessState.COMPLETED);
+        }
+        jobQueue.awaitCalls(1); //the batch is complete, closing would not wait for the rest of it
+        writer.close();
+
+        //halves: [0 1 2 3] -> [0 1] -> [0] written, [1] dropped -> [2 3] written
+        int attempts = FinalStateWriter.PERMANENT_FAILURE_ATTEMPTS;
+        List<List<UUID>> expectedCalls = new ArrayList<>();
+        expectedCalls.addAll(Collections.nCopies(attempts, ids));
+        expectedCalls.addAll(Collections.nCopies(attempts, ids.subList(0, 2)));
+        expectedCalls.add(ids.subList(0, 1));
+        expectedCalls.addAll(Collections.nCopies(attempts, ids.subList(1, 2)));
+        expectedCalls.add(ids.subList(2, 4));
+        assertEquals(expectedCalls, jobQueue.calls);
+        assertEquals(List.of(ids.get(0), ids.get(2), ids.get(3)), jobQueue.written);
+        assertTrue(writer.getPendingIds().isEmpty());
+    }
+
+    @Test
+    public void unexpectedExceptionDoesNotStopTheWriter() throws Exception {
+        UUID bad = UUID.randomUUID();
+        FakeJobQueue jobQueue = new FakeJobQueue(batch -> {
+            if (batch.contains(bad)) {
+                throw new IllegalStateException("bug");
+            }
+            return null;
+        });
+        FinalStateWriter writer = new FinalStateWriter(jobQueue.asJobQueue(), 1, 0, 1, 2);
+        writer.submit(bad, ProcessState.FAILED);
+        UUID good = UUID.randomUUID();
+        writer.submit(good, ProcessState.COMPLETED);
+        writer.close();
+
+        assertEquals(List.of(good), jobQueue.written);
+        assertTrue(writer.getPendingIds().isEmpty());
+    }
+
+    @Test
+    public void pendingIdsAreKeptUntilTheStateIsWritten() throws Exception {
+        CountDownLatch databaseBack = new CountDownLatch(1);
+        FakeJobQueue jobQueue = new FakeJobQueue(batch -> databaseBack.getCount() > 0
+                ? new SQLException("connection refused", "08001") : null);
+        FinalStateWriter writer = new FinalStateWriter(jobQueue.asJobQueue(), 1, 0, 1, 2);
+        UUID id = UUID.randomUUID();
+        writer.submit(id, ProcessState.COMPLETED);
+        assertEquals(Set.of(id), writer.getPendingIds());
+
+        jobQueue.awaitCalls(3);
+        assertEquals(Set.of(id), writer.getPendingIds(), "still failing");
+
+        databaseBack.countDown();
+        writer.close();
+        assertEquals(List.of(id), jobQueue.written);
+        assertTrue(writer.getPendingIds().isEmpty());
+    }
+
+    private static List<UUID> submitAndClose(FakeJobQueue jobQueue, int count) throws InterruptedException {
+        FinalStateWriter writer = new FinalStateWriter(jobQueue.asJobQueue(), count, 1000, 1, 2);
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            writer.submit(id, ProcessState.COMPLETED);
+        }
+        jobQueue.awaitCalls(1); //the batch is complete, closing would not wait for the rest of it
+        writer.close();
+        return ids;
+    }
+
+    /**
+     * Job queue writing final states into a list, failing with what the script returns for the batch.
+     * Other methods of the job queue are not supported.
+     */
+    private static class FakeJobQueue {
+        final List<List<UUID>> calls = Collections.synchronizedList(new ArrayList<>());
+        final List<UUID> written = Collections.synchronizedList(new ArrayList<>());
+        private final Function<List<UUID>, SQLException> script;
+
+        FakeJobQueue(Function<List<UUID>, SQLException> script) {
+            this.script = script;
+        }
+
+        JobQueue asJobQueue() {
+            return (JobQueue) Proxy.newProxyInstance(JobQueue.class.getClassLoader(), new Class<?>[]{JobQueue.class}, (proxy, method, args) -> {
+                if (!method.getName().equals("finish")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                @SuppressWarnings("unchecked")
+                List<JobQueue.FinishedJob> jobs = (List<JobQueue.FinishedJob>) args[0];
+                finish(jobs);
+                return null;
+            });
+        }
+
+        synchronized void finish(List<JobQueue.FinishedJob> jobs) throws SQLException {
+            List<UUID> batch = jobs.stream().map(JobQueue.FinishedJob::getId).collect(Collectors.toList());
+            calls.add(batch);
+            notifyAll();
+            SQLException failure = script.apply(batch);
+            if (failure != null) {
+                throw failure;
+            }
+            written.addAll(batch);
+        }
+
+        synchronized void awaitCalls(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (calls.size() < count && System.nanoTime() < deadline) {
+                wait(100);
+            }
+        }
+    }
+}
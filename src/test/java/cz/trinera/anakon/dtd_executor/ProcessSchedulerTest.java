@@ -0,0 +1,198 @@
+package cz.trinera.anakon.dtd_executor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProcessSchedulerTest {
+
+    private static final Map<String, Integer> NONE = Collections.emptyMap();
+
+    private final List<ProcessScheduler.Candidate> candidates = new ArrayList<>();
+    private long created = 0;
+
+    @Test
+    public void higherPriorityGoesFirst() throws IOException {
+        DynamicConfig config = config("  - type: low\n",
+                "  - type: high\n    priority: 5\n");
+        add("low", null, 3);
+        add("high", null, 1);
+
+        assertEquals(List.of("high"), types(select(config, 1, NONE, NONE, null)));
+        assertEquals(List.of("high", "low", "low"), types(select(config, 3, NONE, NONE, null)));
+    }
+
+    @Test
+    public void slotsAreSharedByWeight() throws IOException {
+        DynamicConfig config = config("  - type: a\n    weight: 2\n",
+                "  - type: b\n");
+        add("b", null, 10);
+        add("a", null, 10);
+
+        List<String> selected = types(select(config, 6, NONE, NONE, null));
+        assertEquals(4, Collections.frequency(selected, "a"));
+        assertEquals(2, Collections.frequency(selected, "b"));
+    }
+
+    @Test
+    public void runningProcessesCountIntoTheShare() throws IOException {
+        DynamicConfig config = config("  - type: a\n    weight: 2\n",
+                "  - type: b\n");
+        add("a", null, 1);
+        add("b", null, 1);
+
+        //2 running of a with weight 2 (share 2 * 1) against none of b (share 0 * 2)
+        assertEquals(List.of("b"), types(select(config, 1, Map.of("a", 2), NONE, null)));
+    }
+
+    @Test
+    public void typesAtMaxConcurrentAreSkipped() throws IOException {
+        DynamicConfig config = config("  - type: limited\n    priority: 5\n    max_concurrent: 2\n",
+                "  - type: other\n");
+        add("limited", null, 5);
+        add("other", null, 5);
+
+        assertEquals(List.of("other", "other"), types(select(config, 2, Map.of("limited", 2), NONE, null)));
+        List<String> selected = types(select(config, 4, Map.of("limited", 1), NONE, null));
+        assertEquals(List.of("limited", "other", "other", "other"), selected);
+    }
+
+    @Test
+    public void submittersOfOneTypeAreServedFairly() throws IOException {
+        DynamicConfig config = config("  - type: t\n");
+        add("t", "alice", 3);
+        add("t", "bob", 1);
+
+        assertEquals(List.of("alice", "bob", "alice"), submitters(select(config, 3, NONE, NONE, null)));
+        assertEquals(List.of("bob"), submitters(select(config, 1, NONE, Map.of("alice", 1), null)));
+    }
+
+    @Test
+    public void oldestProcessOfTheSubmitterGoesFirst() throws IOException {
+        DynamicConfig config = config("  - type: t\n");
+        add("t", "alice", 3);
+
+        List<ProcessScheduler.Candidate> selected = select(config, 2, NONE, NONE, null);
+        assertEquals(candidates.subList(0, 2), selected);
+    }
+
+    @Test
+    public void lightProcessesFillWhatHeavyOnesDoNotFitInto() throws IOException {
+        DynamicConfig config = config("  - type: light\n    cost: {heap_mb: 100}\n",
+                "  - type: heavy\n    priority: 5\n    cost: {heap_mb: 600}\n");
+        add("heavy", null, 2);
+        add("light", null, 5);
+
+        List<String> selected = types(select(config, 10, NONE, NONE, budget(1000, 0, 0)));
+        assertEquals(List.of("heavy", "light", "light", "light", "light"), selected);
+    }
+
+    @Test
+    public void budgetIsReservedForTheFirstProcessThatDoesNotFit() throws IOException {
+        DynamicConfig config = config("  - type: light\n    cost: {heap_mb: 100}\n",
+                "  - type: heavy\n    cost: {heap_mb: 800}\n");
+        add("heavy", null, 1);
+        add("light", null, 5);
+
+        //500 left: the heavy one does not fit and light ones would take the rest forever
+        assertTrue(select(config, 10, NONE, NONE, budget(1000, 500, 5)).isEmpty());
+        //900 left: the heavy one fits, the rest is left to the light ones
+        assertEquals(List.of("heavy", "light"), types(select(config, 10, NONE, NONE, budget(1000, 100, 1))));
+    }
+
+    @Test
+    public void lightProcessesFitBesideTheReservation() throws IOException {
+        DynamicConfig config = config("  - type: light\n    cost: {heap_mb: 100}\n",
+                "  - type: heavy\n    cost: {heap_mb: 800}\n");
+        add("heavy", null, 1);
+        add("light", null, 5);
+
+        //2000 - 1300 used = 700 left, 800 reserved: nothing fits beside it
+        assertTrue(select(config, 10, NONE, NONE, budget(2000, 1300, 3)).isEmpty());
+        //2000 - 1100 used = 900 left: the heavy one and one light one
+        assertEquals(List.of("heavy", "light"), types(select(config, 10, NONE, NONE, budget(2000, 1100, 3))));
+    }
+
+    @Test
+    public void reservationGoesToTheHigherPriorityThenTheOldest() throws IOException {
+        DynamicConfig config = config("  - type: light\n    cost: {heap_mb: 100}\n",
+                "  - type: old\n    cost: {heap_mb: 700}\n",
+                "  - type: young\n    cost: {heap_mb: 700}\n",
+                "  - type: urgent\n    priority: 5\n    cost: {heap_mb: 900}\n");
+        add("old", null, 1);
+        add("young", null, 1);
+        add("light", null, 3);
+
+        //300 left: 700 reserved for the oldest one, nothing fits beside it
+        assertTrue(select(config, 10, NONE, NONE, budget(1000, 700, 1)).isEmpty());
+        //800 left: the oldest one and one light one
+        assertEquals(List.of("old", "light"), types(select(config, 10, NONE, NONE, budget(1000, 200, 1))));
+
+        add("urgent", null, 1);
+        //800 left: 900 reserved for the type with higher priority
+        assertTrue(select(config, 10, NONE, NONE, budget(1000, 200, 1)).isEmpty());
+    }
+
+    @Test
+    public void oversizedProcessRunsAloneOnIdleExecutor() throws IOException {
+        DynamicConfig config = config("  - type: light\n    cost: {heap_mb: 100}\n",
+                "  - type: huge\n    cost: {heap_mb: 5000}\n");
+        add("huge", null, 2);
+        add("light", null, 3);
+
+        assertTrue(select(config, 10, NONE, NONE, budget(1000, 100, 1)).isEmpty());
+        assertTrue(select(config, 10, NONE, NONE, budget(1000, 0, 1)).isEmpty(), "a process without cost is running");
+        assertEquals(List.of("huge"), types(select(config, 10, NONE, NONE, budget(1000, 0, 0))));
+    }
+
+    @Test
+    public void oversizedCostExceedsTheLimit() {
+        DynamicConfig.Cost limit = new DynamicConfig.Cost(1000, 4);
+        assertTrue(ProcessScheduler.Budget.exceeds(new DynamicConfig.Cost(1001, 0), limit));
+        assertTrue(ProcessScheduler.Budget.exceeds(new DynamicConfig.Cost(0, 4.5), limit));
+        assertFalse(ProcessScheduler.Budget.exceeds(new DynamicConfig.Cost(1000, 4), limit));
+        assertFalse(ProcessScheduler.Budget.exceeds(new DynamicConfig.Cost(5000, 0), new DynamicConfig.Cost(0, 4)), "heap not limited");
+    }
+
+    private static DynamicConfig config(String... processes) throws IOException {
+        String yaml = "executor_config:\n  max_concurrent_processes: 10\nprocesses:\n" + String.join("", processes);
+        return DynamicConfig.parse(yaml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ProcessScheduler.Budget budget(int heapLimitMb, int usedHeapMb, int running) {
+        return new ProcessScheduler.Budget(new DynamicConfig.Cost(heapLimitMb, 0), new DynamicConfig.Cost(usedHeapMb, 0), running);
+    }
+
+    private void add(String type, String submitter, int count) {
+        for (int i = 0; i < count; i++) {
+            candidates.add(new ProcessScheduler.Candidate(UUID.randomUUID(), type, submitter, new Timestamp(++created * 1000)));
+        }
+    }
+
+    private List<ProcessScheduler.Candidate> select(DynamicConfig config, int slots, Map<String, Integer> runningByType,
+                                                    Map<String, Integer> runningBySubmitter, ProcessScheduler.Budget budget) {
+        return ProcessScheduler.select(candidates, slots, runningByType, new HashMap<>(runningBySubmitter),
+                config::findProcess, type -> config.findProcess(type).getMaxConcurrent(), budget);
+    }
+
+    private static List<String> types(List<ProcessScheduler.Candidate> selected) {
+        return selected.stream().map(ProcessScheduler.Candidate::getType).collect(Collectors.toList());
+    }
+
+    private static List<String> submitters(List<ProcessScheduler.Candidate> selected) {
+        return selected.stream().map(ProcessScheduler.Candidate::getSubmitter).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,127 @@
+package cz.trinera.anakon.dtd_executor;
+
+import cz.trinera.anakon.dtd_executor.dtd_definitions.Checkpoint;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResultCacheTest {
+
+    @TempDir
+    Path executionDir;
+
+    @Test
+    public void keyOrderAndWhitespaceDoNotChangeTheKey() throws IOException {
+        ResultCache cache = new ResultCache(executionDir);
+        File jar = jar("v1");
+
+        String key = cache.key("export", "{\"b\": 1, \"a\": {\"d\": [1, 2], \"c\": null}}", jar);
+
+        assertEquals(key, cache.key("export", "{\"a\":{\"c\":null,\"d\":[1,2]},\"b\":1}", jar));
+        assertEquals(key, cache.key("export", "\n{ \"a\" : { \"d\" : [ 1 , 2 ] , \"c\" : null } ,\n  \"b\" : 1 }\n", jar));
+        assertNotEquals(key, cache.key("export", "{\"a\":{\"c\":null,\"d\":[2,1]},\"b\":1}", jar), "order of an array matters");
+        assertNotEquals(key, cache.key("export", "{\"a\":{\"c\":null,\"d\":[1,2]},\"b\":2}", jar));
+        assertNotEquals(key, cache.key("other", "{\"a\":{\"c\":null,\"d\":[1,2]},\"b\":1}", jar));
+    }
+
+    @Test
+    public void canonicalJson() throws IOException {
+        assertEquals("{\"a\":[{\"x\":1,\"y\":2}],\"b\":\"s\"}", ResultCache.canonicalJson(" {\"b\":\"s\", \"a\":[{\"y\":2,\"x\":1}]} "));
+        assertEquals("null", ResultCache.canonicalJson(null));
+        assertEquals("null", ResultCache.canonicalJson("  "));
+        assertThrows(IOException.class, () -> ResultCache.canonicalJson("{\"a\":"));
+    }
+
+    @Test
+    public void changedJarChangesTheKey() throws IOException {
+        ResultCache cache = new ResultCache(executionDir);
+        File jar = jar("v1");
+        String key = cache.key("export", "{}", jar);
+        assertEquals(key, cache.key("export", "{}", jar));
+
+        //same size, new content and modification time
+        Files.write(jar.toPath(), "v2".getBytes(StandardCharsets.UTF_8));
+        assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+        String changed = cache.key("export", "{}", jar);
+
+        assertNotEquals(key, changed);
+        assertEquals(changed, new ResultCache(executionDir).key("export", "{}", jar));
+    }
+
+    @Test
+    public void copyOutputsLinksFilesExceptLogAndCheckpoint() throws IOException {
+        UUID source = UUID.randomUUID();
+        UUID target = UUID.randomUUID();
+        write(source + "/export.csv", "a;1\n");
+        write(source + "/sub/report.json", "{}");
+        write(source + "/" + ResultCache.OUTPUT_LOG, "exported 1 row\n");
+        write(source + "/" + Checkpoint.FILE_NAME, "{}");
+        write(source + "/" + Checkpoint.FILE_NAME + ".tmp", "{");
+
+        new ResultCache(executionDir).copyOutputs(source, target);
+
+        Path sourceDir = executionDir.resolve(source.toString());
+        Path targetDir = executionDir.resolve(target.toString());
+        assertTrue(Files.isSameFile(sourceDir.resolve("export.csv"), targetDir.resolve("export.csv")), "hard link");
+        assertTrue(Files.isSameFile(sourceDir.resolve("sub/report.json"), targetDir.resolve("sub/report.json")));
+        assertFalse(Files.exists(targetDir.resolve(Checkpoint.FILE_NAME)));
+        assertFalse(Files.exists(targetDir.resolve(Checkpoint.FILE_NAME + ".tmp")));
+        String log = read(target + "/" + ResultCache.OUTPUT_LOG);
+        assertTrue(log.startsWith("Result reused from process " + source), log);
+        assertTrue(log.endsWith("exported 1 row\n"), log);
+        assertEquals("exported 1 row\n", read(source + "/" + ResultCache.OUTPUT_LOG));
+    }
+
+    @Test
+    public void copyOutputsOfDeletedJobDirectoryFails() {
+        ResultCache cache = new ResultCache(executionDir);
+
+        assertThrows(IOException.class, () -> cache.copyOutputs(UUID.randomUUID(), UUID.randomUUID()));
+    }
+
+    @Test
+    public void joinReturnsTheRunOfTheSameKeyUntilItLeaves() {
+        ResultCache cache = new ResultCache(executionDir);
+        CompletableFuture<UUID> first = new CompletableFuture<>();
+        CompletableFuture<UUID> second = new CompletableFuture<>();
+        UUID completed = UUID.randomUUID();
+
+        assertNull(cache.join("key", first));
+        assertSame(first, cache.join("key", second));
+        cache.leave("key", first, completed);
+
+        assertEquals(completed, first.join());
+        assertNull(cache.join("key", second));
+    }
+
+    private File jar(String content) throws IOException {
+        Path jar = executionDir.resolve("process.jar");
+        Files.write(jar, content.getBytes(StandardCharsets.UTF_8));
+        return jar.toFile();
+    }
+
+    private void write(String name, String content) throws IOException {
+        Path file = executionDir.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(String name) throws IOException {
+        return new String(Files.readAllBytes(executionDir.resolve(name)), StandardCharsets.UTF_8);
+    }
+}
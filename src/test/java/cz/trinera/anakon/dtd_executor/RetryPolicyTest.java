@@ -0,0 +1,122 @@
+package cz.trinera.anakon.dtd_executor;
+
+import cz.trinera.anakon.dtd_executor.dtd_definitions.RetryableException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void backoffGrowsByMultiplierUpToMax() throws IOException {
+        DynamicConfig.RetryPolicy policy = policy("{max_attempts: 10, initial_backoff: 10, backoff_multiplier: 3, max_backoff: 100}");
+
+        assertEquals(10, policy.getBackoffSeconds(1));
+        assertEquals(30, policy.getBackoffSeconds(2));
+        assertEquals(90, policy.getBackoffSeconds(3));
+        assertEquals(100, policy.getBackoffSeconds(4));
+        assertEquals(100, policy.getBackoffSeconds(5000), "no overflow");
+    }
+
+    @Test
+    public void defaultBackoff() throws IOException {
+        DynamicConfig.RetryPolicy policy = policy("{max_attempts: 20}");
+
+        assertEquals(30, policy.getBackoffSeconds(1));
+        assertEquals(60, policy.getBackoffSeconds(2));
+        assertEquals(1920, policy.getBackoffSeconds(7));
+        assertEquals(3600, policy.getBackoffSeconds(8));
+    }
+
+    @Test
+    public void multiplierBelowOneKeepsBackoffConstant() throws IOException {
+        DynamicConfig.RetryPolicy policy = policy("{max_attempts: 5, initial_backoff: 10, backoff_multiplier: 0.5}");
+
+        assertEquals(10, policy.getBackoffSeconds(1));
+        assertEquals(10, policy.getBackoffSeconds(4));
+    }
+
+    @Test
+    public void retriesStopAtMaxAttempts() throws IOException {
+        DynamicConfig.RetryPolicy policy = policy("{max_attempts: 3}");
+        Set<String> retryable = ForkedProcessException.classNames(new RetryableException("503"));
+
+        assertTrue(policy.shouldRetry(1, retryable));
+        assertTrue(policy.shouldRetry(2, retryable));
+        assertFalse(policy.shouldRetry(3, retryable));
+        assertFalse(policy.shouldRetry(4, retryable));
+    }
+
+    @Test
+    public void singleAttemptIsNotRetried() throws IOException {
+        assertNull(policy("{initial_backoff: 5}"), "max_attempts defaults to 1");
+        assertNull(policy("{max_attempts: 1}"));
+    }
+
+    @Test
+    public void retryableExceptionAndItsSubclassesAreRetried() throws IOException {
+        DynamicConfig.RetryPolicy policy = policy("{max_attempts: 3}");
+
+        assertTrue(policy.shouldRetry(1, ForkedProcessException.classNames(new RetryableException("503"))));
+        assertTrue(policy.shouldRetry(1, ForkedProcessException.classNames(new RetryableException("429") {
+        })));
+        assertFalse(policy.shouldRetry(1, ForkedProcessException.classNames(new IOException("disk full"))));
+    }
+
+    @Test
+    public void listedExceptionsMatchBySuperclassAndCause() throws IOException {
+        DynamicConfig.RetryPolicy policy = policy("{max_attempts: 3, retryable_exceptions: [java.io.IOException]}");
+
+        assertTrue(policy.shouldRetry(1, ForkedProcessException.classNames(new SocketTimeoutException("read timed out"))));
+        assertTrue(policy.shouldRetry(1, ForkedProcessException.classNames(
+                new IllegalStateException("wrapped", new UncheckedIOException(new ConnectException("refused"))))));
+        assertFalse(policy.shouldRetry(1, ForkedProcessException.classNames(new IllegalStateException("bug"))));
+    }
+
+    @Test
+    public void failuresInChildJvmMatchByTheirClasses() throws IOException {
+        DynamicConfig.RetryPolicy policy = policy("{max_attempts: 3, retryable_exceptions: [java.net.ConnectException]}");
+        Set<String> childClasses = new LinkedHashSet<>(List.of("java.lang.RuntimeException", "java.lang.Exception",
+                "java.lang.Throwable", "java.net.ConnectException", "java.net.SocketException", "java.io.IOException"));
+
+        Set<String> names = ForkedProcessException.classNames(new ForkedProcessException("refused", childClasses));
+
+        assertTrue(names.containsAll(childClasses));
+        assertTrue(policy.shouldRetry(1, names));
+        assertFalse(policy.shouldRetry(1, ForkedProcessException.classNames(
+                new ForkedProcessException("bug", Set.of("java.lang.IllegalStateException")))));
+    }
+
+    @Test
+    public void classNamesIncludeSuperclassesAndCausesOnce() {
+        Exception first = new IllegalStateException("first");
+        Exception second = new IOException("second");
+        first.initCause(second);
+        second.initCause(first); //a cycle in the causes
+
+        Set<String> names = ForkedProcessException.classNames(first);
+
+        assertEquals(List.of("java.lang.IllegalStateException", "java.lang.RuntimeException", "java.lang.Exception",
+                "java.lang.Throwable", "java.io.IOException"), List.copyOf(names));
+    }
+
+    /**
+     * @return retry policy of a type, null if it is not retried
+     */
+    private static DynamicConfig.RetryPolicy policy(String retry) throws IOException {
+        String yaml = "executor_config:\n  max_concurrent_processes: 1\nprocesses:\n  - type: t\n    retry: " + retry + "\n";
+        return DynamicConfig.parse(yaml.getBytes(StandardCharsets.UTF_8)).findProcess("t").getRetry();
+    }
+}
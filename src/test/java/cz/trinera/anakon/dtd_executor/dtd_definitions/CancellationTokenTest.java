@@ -0,0 +1,88 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CancellationTokenTest {
+
+    @Test
+    public void failingCallbacksAreThrownAfterAllCallbacksRan() {
+        CancellationToken token = new CancellationToken();
+        List<String> ran = new ArrayList<>();
+        IllegalStateException first = new IllegalStateException("first");
+        IllegalStateException second = new IllegalStateException("second");
+        token.onCancel(() -> {
+            ran.add("a");
+            throw first;
+        });
+        token.onCancel(() -> ran.add("b"));
+        token.onCancel(() -> {
+            ran.add("c");
+            throw second;
+        });
+
+        CancellationToken.CallbackException e = assertThrows(CancellationToken.CallbackException.class, () -> token.cancel("kill_request"));
+
+        assertSame(first, e.getCause());
+        assertSame(second, e.getSuppressed()[0]);
+        assertEquals(List.of("a", "b", "c"), ran);
+        assertTrue(token.isCancelled());
+        assertEquals("kill_request", token.getReason());
+        assertFalse(token.cancel("again"));
+    }
+
+    @Test
+    public void callbackRegisteredAfterCancellationRunsRightAway() {
+        CancellationToken token = new CancellationToken();
+        token.cancel("max_runtime");
+        List<String> ran = new ArrayList<>();
+
+        token.onCancel(() -> ran.add("a"));
+
+        assertEquals(List.of("a"), ran);
+        assertThrows(IllegalStateException.class, () -> token.onCancel(() -> {
+            throw new IllegalStateException("fails");
+        }));
+    }
+
+    @Test
+    public void closedRegistrationIsNotRun() {
+        CancellationToken token = new CancellationToken();
+        List<String> ran = new ArrayList<>();
+        token.onCancel(() -> ran.add("a")).close();
+
+        token.cancel(null);
+
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    public void awaitUnregistersItsCallback() throws Exception {
+        CancellationToken token = new CancellationToken();
+        CompletableFuture<String> future = CompletableFuture.completedFuture("done");
+
+        assertEquals("done", token.await(future));
+        token.cancel("kill_request");
+
+        assertFalse(future.isCancelled());
+    }
+
+    @Test
+    public void awaitOfCanceledTokenCancelsTheFuture() {
+        CancellationToken token = new CancellationToken();
+        token.cancel("kill_request");
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        assertThrows(InterruptedException.class, () -> token.await(future));
+        assertTrue(future.isCancelled());
+    }
+}
@@ -0,0 +1,147 @@
+package cz.trinera.anakon.dtd_executor.dtd_definitions;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CheckpointTest {
+
+    @TempDir
+    Path jobDir;
+
+    @Test
+    public void restoreTruncatesOutputsToCheckpointedSizes() throws IOException {
+        write("export.csv", "a;1\nb;2\n");
+        write("sub/items.txt", "x\n");
+        Checkpoint.write(jobDir.toFile(), Map.of("cursor", "b", "count", 2), "export.csv", "sub/items.txt");
+        //the interrupted run went on after its last checkpoint
+        append("export.csv", "c;3\nd;");
+        append("sub/items.txt", "y\n");
+
+        Checkpoint checkpoint = Checkpoint.restore(jobDir.toFile());
+
+        assertNotNull(checkpoint);
+        assertEquals("b", checkpoint.getState().get("cursor"));
+        assertEquals(2, checkpoint.getState().get("count"));
+        assertEquals(Map.of("export.csv", 8L, "sub/items.txt", 2L), checkpoint.getOutputs());
+        assertEquals("a;1\nb;2\n", read("export.csv"));
+        assertEquals("x\n", read("sub/items.txt"));
+    }
+
+    @Test
+    public void restoreBindsStateToClass() throws IOException {
+        write("export.csv", "");
+        Checkpoint.write(jobDir.toFile(), Map.of("cursor", "b", "count", 2), "export.csv");
+
+        State state = Checkpoint.restore(jobDir.toFile()).getState(State.class);
+
+        assertEquals("b", state.cursor);
+        assertEquals(2, state.count);
+    }
+
+    @Test
+    public void restoreWithoutCheckpointReturnsNull() throws IOException {
+        write("export.csv", "a;1\n");
+
+        assertNull(Checkpoint.restore(jobDir.toFile()));
+        assertEquals("a;1\n", read("export.csv"));
+    }
+
+    @Test
+    public void restoreDropsCheckpointOfMissingOrShorterOutput() throws IOException {
+        write("export.csv", "a;1\nb;2\n");
+        Checkpoint.write(jobDir.toFile(), Map.of(), "export.csv");
+        write("export.csv", "a;1\n"); //e.g. replaced meanwhile
+
+        assertNull(Checkpoint.restore(jobDir.toFile()));
+        assertFalse(Files.exists(jobDir.resolve(Checkpoint.FILE_NAME)));
+        assertEquals("a;1\n", read("export.csv"));
+
+        Checkpoint.write(jobDir.toFile(), Map.of(), "export.csv");
+        Files.delete(jobDir.resolve("export.csv"));
+        assertNull(Checkpoint.restore(jobDir.toFile()));
+    }
+
+    @Test
+    public void corruptCheckpointIsRejected() throws IOException {
+        write("export.csv", "a;1\nb;2\n");
+        write(Checkpoint.FILE_NAME, "{\"created\": \"2026-01-01T00:00:00Z\", \"outputs\": {\"export.csv\": 4");
+
+        assertThrows(IOException.class, () -> Checkpoint.restore(jobDir.toFile()));
+        assertEquals("a;1\nb;2\n", read("export.csv"));
+    }
+
+    @Test
+    public void writeLeavesNoTemporaryFile() throws IOException {
+        write("export.csv", "a;1\n");
+        //a run killed while writing the previous checkpoint
+        write(Checkpoint.FILE_NAME + ".tmp", "{\"created\": \"20");
+        assertNull(Checkpoint.read(jobDir.toFile()));
+
+        Checkpoint.write(jobDir.toFile(), Map.of("cursor", "a"), "export.csv");
+
+        assertFalse(Files.exists(jobDir.resolve(Checkpoint.FILE_NAME + ".tmp")));
+        try (var files = Files.list(jobDir)) {
+            assertArrayEquals(new Object[]{Checkpoint.FILE_NAME, "export.csv"},
+                    files.map(file -> file.getFileName().toString()).sorted().toArray());
+        }
+        assertEquals("a", Checkpoint.read(jobDir.toFile()).getState().get("cursor"));
+    }
+
+    @Test
+    public void writeReplacesPreviousCheckpoint() throws IOException {
+        write("export.csv", "a;1\n");
+        Checkpoint.write(jobDir.toFile(), Map.of("cursor", "a"), "export.csv");
+        append("export.csv", "b;2\n");
+        Checkpoint.write(jobDir.toFile(), Map.of("cursor", "b"), "export.csv");
+
+        Checkpoint checkpoint = Checkpoint.read(jobDir.toFile());
+
+        assertEquals("b", checkpoint.getState().get("cursor"));
+        assertEquals(Map.of("export.csv", 8L), checkpoint.getOutputs());
+    }
+
+    @Test
+    public void outputsOutsideOfJobDirectoryAreRejected() throws IOException {
+        File outside = Files.createTempFile("checkpoint", ".csv").toFile();
+        try {
+            assertThrows(IllegalArgumentException.class,
+                    () -> Checkpoint.write(jobDir.toFile(), Map.of(), "../" + outside.getName()));
+        } finally {
+            outside.delete();
+        }
+    }
+
+    private void write(String name, String content) throws IOException {
+        Path file = jobDir.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void append(String name, String content) throws IOException {
+        Files.write(jobDir.resolve(name), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    private String read(String name) throws IOException {
+        return new String(Files.readAllBytes(jobDir.resolve(name)), StandardCharsets.UTF_8);
+    }
+
+    public static class State {
+        public String cursor;
+        public int count;
+    }
+}